@@ -13,35 +13,57 @@ import java.io.IOException;
 import java.io.StringReader;
 
 import de.blinkt.openvpn.core.ConfigParser;
+import de.blinkt.openvpn.core.ConnectTimeline;
 import de.blinkt.openvpn.core.ProfileManager;
 import de.blinkt.openvpn.core.VPNLaunchHelper;
 
 public class OpenVpnApi {
 
     private static final String  TAG = "OpenVpnApi";
+    private static final ProfileCache mProfileCache = new ProfileCache(8);
+
     @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1)
     public static void startVpn(Context context, String inlineConfig, String sCountry, String userName, String pw) throws RemoteException {
         if (TextUtils.isEmpty(inlineConfig)) throw new RemoteException("config is empty");
             startVpnInternal(context, inlineConfig, sCountry, userName, pw);
     }
 
+    /**
+     * @return cache of the profiles parsed from the configs passed to startVpn, for its
+     * statistics or to change its size
+     */
+    public static ProfileCache getProfileCache() {
+        return mProfileCache;
+    }
+
     static void startVpnInternal(Context context, String inlineConfig, String sCountry, String userName, String pw) throws RemoteException {
-        ConfigParser cp = new ConfigParser();
+        ConnectTimeline.begin(context);
+        String key = ProfileCache.hashConfig(inlineConfig);
+        // A copy of its own, the service may still use the profile of the last connect
+        VpnProfile vp = mProfileCache.get(key);
         try {
-            cp.parseConfig(new StringReader(inlineConfig));
-            VpnProfile vp = cp.convertProfile();// Analysis.ovpn
-            Log.d(TAG, "startVpnInternal: =============="+cp+"\n" +
-                    vp);
-            vp.mName = sCountry;
-            if (vp.checkProfile(context) != de.blinkt.openvpn.R.string.no_error_found){
-                throw new RemoteException(context.getString(vp.checkProfile(context)));
+            if (vp == null) {
+                ConfigParser cp = new ConfigParser();
+                cp.parseConfig(new StringReader(inlineConfig));
+                vp = cp.convertProfile();// Analysis.ovpn
+                Log.d(TAG, "startVpnInternal: =============="+cp+"\n" +
+                        vp);
+                vp.mName = sCountry;
+                if (vp.checkProfile(context) != de.blinkt.openvpn.R.string.no_error_found){
+                    throw new RemoteException(context.getString(vp.checkProfile(context)));
+                }
+                vp.mProfileCreator = context.getPackageName();
+                mProfileCache.put(key, vp);
             }
-            vp.mProfileCreator = context.getPackageName();
+            ConnectTimeline.mark(ConnectTimeline.Phase.CONFIG_PARSED);
+            vp.mName = sCountry;
             vp.mUsername = userName;
             vp.mPassword = pw;
             ProfileManager.setTemporaryProfile(context, vp);
+            ConnectTimeline.mark(ConnectTimeline.Phase.PROFILE_SAVED);
             VPNLaunchHelper.startOpenVpn(vp, context);
         } catch (IOException | ConfigParser.ConfigParseError e) {
+            ConnectTimeline.abort();
             throw new RemoteException(e.getMessage());
         }
     }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn;
+
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import de.blinkt.openvpn.core.VpnStatus;
+
+/**
+ * Parsed and validated profiles of the configs passed to {@link OpenVpnApi}, keyed by a hash of
+ * the config text. Connecting again with the same config reuses the profile instead of parsing
+ * and checking it again. The least recently used profiles are evicted once more than
+ * {@link #setMaxEntries(int)} configs are cached.
+ * <p>
+ * The cache keeps copies of its own and hands out a new copy on every hit, so a profile that is
+ * used or changed by a running connection is never given to the next one.
+ */
+public class ProfileCache {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final LinkedHashMap<String, VpnProfile> mProfiles = new LinkedHashMap<>(16, 0.75f, true);
+    private int mMaxEntries;
+
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    ProfileCache(int maxEntries) {
+        mMaxEntries = maxEntries;
+    }
+
+    /**
+     * @param maxEntries number of profiles to keep, 0 disables the cache
+     */
+    public synchronized void setMaxEntries(int maxEntries) {
+        mMaxEntries = maxEntries;
+        trim();
+    }
+
+    /**
+     * @return a copy of the profile that was parsed from config or null, counts as hit or miss
+     */
+    synchronized VpnProfile get(String key) {
+        VpnProfile profile = key == null ? null : mProfiles.get(key);
+        VpnProfile copy = profile == null ? null : profile.copy(profile.mName);
+        if (copy != null)
+            mHits++;
+        else
+            mMisses++;
+        return copy;
+    }
+
+    /**
+     * Caches a copy of profile, later changes to profile are not seen by the cache
+     */
+    synchronized void put(String key, VpnProfile profile) {
+        if (key == null)
+            return;
+        VpnProfile copy = profile.copy(profile.mName);
+        if (copy == null)
+            return;
+        mProfiles.put(key, copy);
+        trim();
+    }
+
+    public synchronized void clear() {
+        mProfiles.clear();
+    }
+
+    public synchronized int size() {
+        return mProfiles.size();
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictions() {
+        return mEvictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%d profiles cached, %d hits, %d misses, %d evictions",
+                mProfiles.size(), mHits, mMisses, mEvictions);
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, VpnProfile>> it = mProfiles.entrySet().iterator();
+        while (mProfiles.size() > mMaxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+            mEvictions++;
+        }
+    }
+
+    /**
+     * @return key for config, null if it cannot be hashed
+     */
+    static String hashConfig(String config) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] utf8Bytes = config.getBytes(UTF_8);
+            digest.update(utf8Bytes, 0, utf8Bytes.length);
+            return new BigInteger(1, digest.digest()).toString(16);
+        } catch (NoSuchAlgorithmException e) {
+            VpnStatus.logException("Hashing VPN config", e);
+            return null;
+        }
+    }
+}
@@ -265,6 +265,15 @@ public class VpnProfile implements Serializable, Cloneable {
         mUuid = uuid;
     }
 
+    // Only used to encode and decode the profile
+    public int getProfileVersion() {
+        return mProfileVersion;
+    }
+
+    public void setProfileVersion(int profileVersion) {
+        mProfileVersion = profileVersion;
+    }
+
     public String getName() {
         if (TextUtils.isEmpty(mName))
             return "No profile name";
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.res.Resources;
+
+import java.util.Formatter;
+import java.util.Locale;
+
+import de.blinkt.openvpn.R;
+
+/**
+ * Formats byte counts and speeds like B, kB, MB, GB and bit/s, kbit/s, Mbit/s, Gbit/s.
+ * <p>
+ * The unit is looked up in a table of thresholds instead of computing logarithms on every call.
+ * The thresholds are computed once with the floating point math of the original
+ * implementation, so values right at a unit boundary keep the unit they were always shown with.
+ * The format strings are loaded once per locale and every thread reuses its Formatter.
+ */
+public class ByteCountFormatter {
+
+    private static final int[] VOLUME_IDS = {R.string.volume_byte, R.string.volume_kbyte,
+            R.string.volume_mbyte, R.string.volume_gbyte};
+    private static final int[] SPEED_IDS = {R.string.bits_per_second, R.string.kbits_per_second,
+            R.string.mbits_per_second, R.string.gbits_per_second};
+
+    private static final double[] VOLUME_DIVISORS = divisors(1024);
+    private static final double[] SPEED_DIVISORS = divisors(1000);
+    private static final long[] VOLUME_THRESHOLDS = thresholds(1024);
+    private static final long[] SPEED_THRESHOLDS = thresholds(1000);
+
+    // Guarded by the class
+    private static Locale mLocale;
+    private static String[] mVolumeFormats;
+    private static String[] mSpeedFormats;
+
+    private static final ThreadLocal<CachedFormatter> mFormatter = new ThreadLocal<>();
+
+    /**
+     * Formatter for one locale that writes into its own builder
+     */
+    private static class CachedFormatter {
+        final Locale mLocale;
+        final StringBuilder mOut = new StringBuilder(16);
+        final Formatter mFormatter;
+
+        CachedFormatter(Locale locale) {
+            mLocale = locale;
+            mFormatter = new Formatter(mOut, locale);
+        }
+    }
+
+    private ByteCountFormatter() {
+    }
+
+    /**
+     * @param speed bytes is a speed in bytes per second that is shown in bits per second
+     */
+    public static String format(long bytes, boolean speed, Resources res) {
+        StringBuilder sb = new StringBuilder(16);
+        formatTo(sb, bytes, speed, res);
+        return sb.toString();
+    }
+
+    /**
+     * Like {@link #format} but appends to sb, allows to reuse one builder for several values
+     */
+    public static void formatTo(StringBuilder sb, long bytes, boolean speed, Resources res) {
+        Locale locale = res.getConfiguration().locale;
+        formatTo(sb, bytes, speed, locale, getFormats(res, locale, speed));
+    }
+
+    /**
+     * @param formats format strings of the units from byte to giga in locale
+     */
+    static void formatTo(StringBuilder sb, long bytes, boolean speed, Locale locale, String[] formats) {
+        if (speed)
+            bytes = bytes * 8;
+
+        int exp = exponent(bytes, speed ? SPEED_THRESHOLDS : VOLUME_THRESHOLDS);
+        float bytesUnit = (float) (bytes / (speed ? SPEED_DIVISORS : VOLUME_DIVISORS)[exp]);
+
+        CachedFormatter formatter = mFormatter.get();
+        if (formatter == null || !formatter.mLocale.equals(locale)) {
+            formatter = new CachedFormatter(locale);
+            mFormatter.set(formatter);
+        }
+        formatter.mOut.setLength(0);
+        formatter.mFormatter.format(formats[exp], bytesUnit);
+        sb.append(formatter.mOut);
+    }
+
+    /**
+     * @return index of the unit, 0 for bytes up to 3 for giga
+     */
+    static int exponent(long bytes, long[] thresholds) {
+        int exp = 0;
+        while (exp < thresholds.length && bytes >= thresholds[exp])
+            exp++;
+        return exp;
+    }
+
+    private static synchronized String[] getFormats(Resources res, Locale locale, boolean speed) {
+        if (!locale.equals(mLocale)) {
+            mVolumeFormats = new String[VOLUME_IDS.length];
+            mSpeedFormats = new String[SPEED_IDS.length];
+            for (int i = 0; i < VOLUME_IDS.length; i++) {
+                mVolumeFormats[i] = res.getString(VOLUME_IDS[i]);
+                mSpeedFormats[i] = res.getString(SPEED_IDS[i]);
+            }
+            mLocale = locale;
+        }
+        return speed ? mSpeedFormats : mVolumeFormats;
+    }
+
+    private static double[] divisors(int unit) {
+        double[] divisors = new double[4];
+        for (int exp = 0; exp < divisors.length; exp++)
+            divisors[exp] = Math.pow(unit, exp);
+        return divisors;
+    }
+
+    /**
+     * @return for the units kilo, mega and giga the smallest value that
+     * (int) (Math.log(value) / Math.log(unit)) puts into that unit
+     */
+    private static long[] thresholds(int unit) {
+        long[] thresholds = new long[3];
+        for (int exp = 1; exp <= thresholds.length; exp++) {
+            // The exact power is close to the threshold, search well around it
+            long low = (long) Math.pow(unit, exp) / 2;
+            long high = (long) Math.pow(unit, exp) * 2;
+            while (low < high) {
+                long mid = low + (high - low) / 2;
+                if ((int) (Math.log(mid) / Math.log(unit)) >= exp)
+                    high = mid;
+                else
+                    low = mid + 1;
+            }
+            thresholds[exp - 1] = low;
+        }
+        return thresholds;
+    }
+}
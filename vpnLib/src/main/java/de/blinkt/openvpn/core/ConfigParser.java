@@ -9,7 +9,6 @@ import android.os.Build;
 import androidx.core.util.Pair;
 import android.text.TextUtils;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
@@ -129,6 +128,8 @@ public class ConfigParser {
     private HashMap<String, Vector<Vector<String>>> options = new HashMap<>();
     private HashMap<String, Vector<String>> meta = new HashMap<String, Vector<String>>();
     private String auth_user_pass_file;
+    // Reused for every argument parseline() reads
+    private final StringBuilder mCurrentArg = new StringBuilder();
 
     static public void useEmbbedUserAuth(VpnProfile np, String inlinedata) {
         String data = VpnProfile.getEmbeddedContent(inlinedata);
@@ -154,29 +155,30 @@ public class ConfigParser {
         HashMap<String, String> optionAliases = new HashMap<>();
         optionAliases.put("server-poll-timeout", "timeout-connect");
 
-        BufferedReader br = new BufferedReader(reader);
+        LineReader lr = new LineReader(reader);
+        StringBuilder line = lr.line;
 
         int lineno = 0;
         try {
             while (true) {
-                String line = br.readLine();
+                boolean eof = !lr.readLine();
                 lineno++;
-                if (line == null)
+                if (eof)
                     break;
 
                 if (lineno == 1) {
-                    if ((line.startsWith("PK\003\004")
-                            || (line.startsWith("PK\007\008")))) {
+                    if ((startsWith(line, "PK\003\004")
+                            || (startsWith(line, "PK\007\008")))) {
                         throw new ConfigParseError("Input looks like a ZIP Archive. Import is only possible for OpenVPN config files (.ovpn/.conf)");
                     }
-                    if (line.startsWith("\uFEFF")) {
-                        line = line.substring(1);
+                    if (startsWith(line, "\uFEFF")) {
+                        line.deleteCharAt(0);
                     }
                 }
 
                 // Check for OpenVPN Access Server Meta information
-                if (line.startsWith("# OVPN_ACCESS_SERVER_")) {
-                    Vector<String> metaarg = parsemeta(line);
+                if (startsWith(line, "# OVPN_ACCESS_SERVER_")) {
+                    Vector<String> metaarg = parsemeta(line.toString());
                     meta.put(metaarg.get(0), metaarg);
                     continue;
                 }
@@ -189,7 +191,7 @@ public class ConfigParser {
                 if (args.get(0).startsWith("--"))
                     args.set(0, args.get(0).substring(2));
 
-                checkinlinefile(args, br);
+                checkinlinefile(args, lr);
 
                 String optionname = args.get(0);
                 if (optionAliases.get(optionname) != null)
@@ -214,35 +216,62 @@ public class ConfigParser {
 
     }
 
-    private void checkinlinefile(Vector<String> args, BufferedReader br) throws IOException, ConfigParseError {
+    private void checkinlinefile(Vector<String> args, LineReader lr) throws IOException, ConfigParseError {
         String arg0 = args.get(0).trim();
         // CHeck for <foo>
         if (arg0.startsWith("<") && arg0.endsWith(">")) {
             String argname = arg0.substring(1, arg0.length() - 1);
-            String inlinefile = VpnProfile.INLINE_TAG;
+            StringBuilder inlinefile = new StringBuilder(VpnProfile.INLINE_TAG);
 
             String endtag = String.format("</%s>", argname);
             do {
-                String line = br.readLine();
-                if (line == null) {
+                if (!lr.readLine()) {
                     throw new ConfigParseError(String.format("No endtag </%s> for starttag <%s> found", argname, argname));
                 }
-                if (line.trim().equals(endtag))
+                if (trimmedEquals(lr.line, endtag))
                     break;
-                else {
-                    inlinefile += line;
-                    inlinefile += "\n";
-                }
+                else
+                    inlinefile.append(lr.line).append('\n');
             } while (true);
 
-            if (inlinefile.endsWith("\n"))
-                inlinefile = inlinefile.substring(0, inlinefile.length() - 1);
+            int length = inlinefile.length();
+            if (inlinefile.charAt(length - 1) == '\n')
+                inlinefile.setLength(length - 1);
 
             args.clear();
             args.add(argname);
-            args.add(inlinefile);
+            args.add(inlinefile.toString());
+        }
+
+    }
+
+    private static boolean startsWith(CharSequence line, String prefix) {
+        if (line.length() < prefix.length())
+            return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line.charAt(i) != prefix.charAt(i))
+                return false;
         }
+        return true;
+    }
 
+    /**
+     * Same as line.toString().trim().equals(s) without creating the strings
+     */
+    private static boolean trimmedEquals(CharSequence line, String s) {
+        int start = 0;
+        int end = line.length();
+        while (start < end && line.charAt(start) <= ' ')
+            start++;
+        while (end > start && line.charAt(end - 1) <= ' ')
+            end--;
+        if (end - start != s.length())
+            return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (line.charAt(start + i) != s.charAt(i))
+                return false;
+        }
+        return true;
     }
 
     public String getAuthUserPassFile() {
@@ -257,7 +286,7 @@ public class ConfigParser {
     }
 
     // adapted openvpn's parse function to java
-    private Vector<String> parseline(String line) throws ConfigParseError {
+    private Vector<String> parseline(CharSequence line) throws ConfigParseError {
         Vector<String> parameters = new Vector<String>();
 
         if (line.length() == 0)
@@ -269,7 +298,8 @@ public class ConfigParser {
         char out = 0;
 
         int pos = 0;
-        String currentarg = "";
+        StringBuilder currentarg = mCurrentArg;
+        currentarg.setLength(0);
 
         do {
             // Emulate the c parsing ...
@@ -315,8 +345,8 @@ public class ConfigParser {
                 if (state == linestate.done) {
                     /* ASSERT (parm_len > 0); */
                     state = linestate.initial;
-                    parameters.add(currentarg);
-                    currentarg = "";
+                    parameters.add(currentarg.toString());
+                    currentarg.setLength(0);
                     out = 0;
                 }
 
@@ -330,7 +360,7 @@ public class ConfigParser {
 
             /* store parameter character */
             if (out != 0) {
-                currentarg += out;
+                currentarg.append(out);
             }
         } while (pos++ < line.length());
 
@@ -1007,6 +1037,64 @@ public class ConfigParser {
         return args;
     }
 
+    /**
+     * Splits a Reader into lines like BufferedReader.readLine() but reads them into one reused
+     * StringBuilder instead of creating a String per line.
+     */
+    static class LineReader {
+        private final Reader mReader;
+        private final char[] mBuffer = new char[8192];
+        private int mPos;
+        private int mLimit;
+        private boolean mSkipLF;
+
+        final StringBuilder line = new StringBuilder(256);
+
+        LineReader(Reader reader) {
+            mReader = reader;
+        }
+
+        /**
+         * @return false if the end of the stream has been reached, otherwise the next line
+         * without the line terminator is in {@link #line}
+         */
+        boolean readLine() throws IOException {
+            line.setLength(0);
+            boolean haveChars = false;
+            while (true) {
+                if (mPos >= mLimit) {
+                    mLimit = mReader.read(mBuffer, 0, mBuffer.length);
+                    mPos = 0;
+                    if (mLimit <= 0) {
+                        mLimit = 0;
+                        return haveChars;
+                    }
+                }
+
+                // \r\n that was split between two reads
+                if (mSkipLF) {
+                    mSkipLF = false;
+                    if (mBuffer[mPos] == '\n') {
+                        mPos++;
+                        continue;
+                    }
+                }
+
+                int start = mPos;
+                while (mPos < mLimit) {
+                    char c = mBuffer[mPos++];
+                    if (c == '\n' || c == '\r') {
+                        line.append(mBuffer, start, mPos - 1 - start);
+                        mSkipLF = c == '\r';
+                        return true;
+                    }
+                }
+                line.append(mBuffer, start, mPos - start);
+                haveChars = true;
+            }
+        }
+    }
+
     enum linestate {
         initial,
         readin_single_quote, reading_quoted, reading_unquoted, done
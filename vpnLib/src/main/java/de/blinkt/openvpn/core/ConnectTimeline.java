@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Records when each phase of a connection attempt started by {@link de.blinkt.openvpn.OpenVpnApi}
+ * is reached, from the API call until the CONNECTED state. The last successful attempts are
+ * persisted in the default shared preferences so percentiles survive process restarts.
+ */
+public class ConnectTimeline {
+
+    public enum Phase {
+        START,
+        CONFIG_PARSED,
+        PROFILE_SAVED,
+        BINARY_RESOLVED,
+        PROCESS_SPAWNED,
+        MANAGEMENT_ACCEPTED,
+        HOLD_RELEASED,
+        WAIT,
+        AUTH,
+        GET_CONFIG,
+        ASSIGN_IP,
+        TUN_OPENED,
+        CONNECTED
+    }
+
+    private static final String PREF_KEY = "connect_timeline";
+    private static final int MAX_PERSISTED_ATTEMPTS = 100;
+    private static final Phase[] PHASES = Phase.values();
+
+    private static Context mContext;
+    private static Attempt mCurrent;
+    private static Attempt mLast;
+    private static LinkedList<Attempt> mHistory;
+
+    /**
+     * Starts a new attempt, an attempt that has not reached CONNECTED yet is discarded
+     */
+    public synchronized static void begin(Context c) {
+        setContext(c);
+        mCurrent = new Attempt(System.currentTimeMillis());
+        mCurrent.mark(Phase.START, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Marks the first time the current attempt reaches a phase. Ignored if no attempt is running
+     */
+    public static void mark(Phase phase) {
+        Attempt finished = markAttempt(phase);
+        // Log outside of our lock, VpnStatus has its own
+        if (finished != null)
+            VpnStatus.logDebug(finished.toString());
+    }
+
+    private synchronized static Attempt markAttempt(Phase phase) {
+        if (mCurrent == null)
+            return null;
+        mCurrent.mark(phase, SystemClock.elapsedRealtime());
+
+        if (phase != Phase.CONNECTED)
+            return null;
+
+        mLast = mCurrent;
+        mCurrent = null;
+        loadHistory(null);
+        mHistory.addLast(mLast);
+        while (mHistory.size() > MAX_PERSISTED_ATTEMPTS)
+            mHistory.removeFirst();
+        saveHistory();
+        return mLast;
+    }
+
+    /**
+     * Called for every OpenVPN state, maps the states that are part of the timeline
+     */
+    static void markState(String state, ConnectionStatus level) {
+        switch (state) {
+            case "WAIT":
+                mark(Phase.WAIT);
+                break;
+            case "AUTH":
+                mark(Phase.AUTH);
+                break;
+            case "GET_CONFIG":
+                mark(Phase.GET_CONFIG);
+                break;
+            case "ASSIGN_IP":
+                mark(Phase.ASSIGN_IP);
+                break;
+            case "CONNECTED":
+                mark(Phase.CONNECTED);
+                break;
+            default:
+                if (level == ConnectionStatus.LEVEL_AUTH_FAILED || level == ConnectionStatus.LEVEL_NOTCONNECTED)
+                    abort();
+        }
+    }
+
+    /**
+     * Drops the current attempt, e.g. if the connection failed
+     */
+    public synchronized static void abort() {
+        if (mCurrent != null)
+            mLast = mCurrent;
+        mCurrent = null;
+    }
+
+    /**
+     * @return the attempt that finished or failed last, null if none since the process started
+     */
+    public synchronized static Attempt getLastAttempt() {
+        return mLast;
+    }
+
+    /**
+     * @return persisted successful attempts, oldest first
+     */
+    public synchronized static List<Attempt> getHistory(Context c) {
+        loadHistory(c);
+        return new ArrayList<>(mHistory);
+    }
+
+    /**
+     * @param phase      phase to look at
+     * @param percentile between 0 and 100
+     * @return time in ms from the start of the attempt until the phase was reached over all persisted
+     * attempts, -1 if no attempt reached the phase
+     */
+    public synchronized static long getPercentile(Context c, Phase phase, double percentile) {
+        loadHistory(c);
+        long[] times = new long[mHistory.size()];
+        int n = 0;
+        for (Attempt attempt : mHistory) {
+            long t = attempt.getTimeToPhase(phase);
+            if (t >= 0)
+                times[n++] = t;
+        }
+        if (n == 0)
+            return -1;
+        Arrays.sort(times, 0, n);
+        int rank = (int) Math.ceil(percentile / 100.0 * n);
+        return times[Math.max(0, Math.min(n - 1, rank - 1))];
+    }
+
+    /**
+     * @return one line per phase with the median and 95th percentile time to reach it
+     */
+    public synchronized static String getSummary(Context c) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "Connect timeline over %d attempts (ms from start, p50/p95)", getHistory(c).size()));
+        for (Phase phase : PHASES) {
+            long p50 = getPercentile(c, phase, 50);
+            if (p50 < 0)
+                continue;
+            sb.append(String.format(Locale.US, "\n%s: %d/%d", phase, p50, getPercentile(c, phase, 95)));
+        }
+        return sb.toString();
+    }
+
+    public synchronized static void clearHistory(Context c) {
+        setContext(c);
+        mHistory = new LinkedList<>();
+        mLast = null;
+        saveHistory();
+    }
+
+    private static void setContext(Context c) {
+        if (mContext == null)
+            mContext = c.getApplicationContext();
+    }
+
+    private static void loadHistory(Context c) {
+        if (c != null)
+            setContext(c);
+        if (mHistory != null)
+            return;
+        mHistory = new LinkedList<>();
+
+        String saved = Preferences.getDefaultSharedPreferences(mContext).getString(PREF_KEY, "");
+        for (String line : saved.split("\n")) {
+            Attempt attempt = Attempt.fromString(line);
+            if (attempt != null)
+                mHistory.add(attempt);
+        }
+    }
+
+    private static void saveHistory() {
+        if (mContext == null)
+            return;
+        StringBuilder sb = new StringBuilder();
+        for (Attempt attempt : mHistory)
+            attempt.appendTo(sb).append('\n');
+        SharedPreferences prefs = Preferences.getDefaultSharedPreferences(mContext);
+        prefs.edit().putString(PREF_KEY, sb.toString()).apply();
+    }
+
+    /**
+     * Time of every phase of one connection attempt relative to its start
+     */
+    public static class Attempt {
+        private final long mStartedAt;
+        // Offset from START in ms per phase, -1 if the phase has not been reached
+        private final long[] mOffsets = new long[PHASES.length];
+        private long mStartRealtime;
+
+        private Attempt(long startedAt) {
+            mStartedAt = startedAt;
+            Arrays.fill(mOffsets, -1);
+        }
+
+        private void mark(Phase phase, long now) {
+            if (phase == Phase.START)
+                mStartRealtime = now;
+            if (mOffsets[phase.ordinal()] == -1)
+                mOffsets[phase.ordinal()] = now - mStartRealtime;
+        }
+
+        /**
+         * @return wall clock time the attempt started
+         */
+        public long getStartedAt() {
+            return mStartedAt;
+        }
+
+        /**
+         * @return ms from the start until the phase was reached, -1 if it was not reached
+         */
+        public long getTimeToPhase(Phase phase) {
+            return mOffsets[phase.ordinal()];
+        }
+
+        /**
+         * @return ms between the previous reached phase and this phase, -1 if it was not reached
+         */
+        public long getPhaseDuration(Phase phase) {
+            long t = mOffsets[phase.ordinal()];
+            if (t < 0)
+                return -1;
+            for (int i = phase.ordinal() - 1; i >= 0; i--)
+                if (mOffsets[i] >= 0)
+                    return t - mOffsets[i];
+            return t;
+        }
+
+        public boolean isConnected() {
+            return mOffsets[Phase.CONNECTED.ordinal()] >= 0;
+        }
+
+        private StringBuilder appendTo(StringBuilder sb) {
+            sb.append(mStartedAt);
+            for (long offset : mOffsets)
+                sb.append(',').append(offset);
+            return sb;
+        }
+
+        private static Attempt fromString(String line) {
+            String[] parts = line.split(",");
+            if (parts.length != PHASES.length + 1)
+                return null;
+            try {
+                Attempt attempt = new Attempt(Long.parseLong(parts[0]));
+                for (int i = 0; i < PHASES.length; i++)
+                    attempt.mOffsets[i] = Long.parseLong(parts[i + 1]);
+                return attempt;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("Connect timeline:");
+            for (Phase phase : PHASES) {
+                long duration = getPhaseDuration(phase);
+                if (duration >= 0)
+                    sb.append(String.format(Locale.US, " %s +%d ms", phase, duration));
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -12,13 +12,14 @@ import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.NetworkInfo.State;
+import android.os.Build;
 import android.os.Handler;
+import android.os.PowerManager;
 import android.preference.PreferenceManager;
 
 import de.blinkt.openvpn.R;
 import de.blinkt.openvpn.core.VpnStatus.ByteCountListener;
 
-import java.util.LinkedList;
 import java.util.Objects;
 import java.util.StringTokenizer;
 
@@ -30,9 +31,9 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
     private OpenVPNManagement mManagement;
 
     // Window time in s
-    private final int TRAFFIC_WINDOW = 60;
+    private static volatile int mTrafficWindow = 60;
     // Data traffic limit in bytes
-    private final long TRAFFIC_LIMIT = 64 * 1024;
+    private static volatile long mTrafficLimit = 64 * 1024;
 
     // Time to wait after network disconnect to pause the VPN
     private final int DISCONNECT_WAIT = 20;
@@ -71,39 +72,32 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
         DISCONNECTED
     }
 
-    private static class Datapoint {
-        private Datapoint(long t, long d) {
-            timestamp = t;
-            data = d;
-        }
-
-        long timestamp;
-        long data;
+    private RateEstimator trafficdata = new RateEstimator(mTrafficWindow * 1000L, mTrafficWindow);
+
+    /**
+     * Sets when the VPN is paused after the screen has been turned off: if less than limitBytes
+     * have been transferred in the last windowSeconds. Applies from the next screen off.
+     */
+    public static void setScreenOffTrafficLimit(int windowSeconds, long limitBytes) {
+        if (windowSeconds <= 0 || limitBytes < 0)
+            throw new IllegalArgumentException("Invalid screen off traffic limit");
+        mTrafficWindow = windowSeconds;
+        mTrafficLimit = limitBytes;
     }
 
-    private LinkedList<Datapoint> trafficdata = new LinkedList<>();
-
 
     @Override
     public void updateByteCount(long in, long out, long diffIn, long diffOut) {
         if (screen != connectState.PENDINGDISCONNECT)
             return;
 
-        long total = diffIn + diffOut;
-        trafficdata.add(new Datapoint(System.currentTimeMillis(), total));
-
-        while (trafficdata.getFirst().timestamp <= (System.currentTimeMillis() - TRAFFIC_WINDOW * 1000)) {
-            trafficdata.removeFirst();
-        }
-
-        long windowtraffic = 0;
-        for (Datapoint dp : trafficdata)
-            windowtraffic += dp.data;
+        long now = System.currentTimeMillis();
+        trafficdata.add(now, diffIn + diffOut);
 
-        if (windowtraffic < TRAFFIC_LIMIT) {
+        if (trafficdata.getWindowTotal(now) < mTrafficLimit) {
             screen = connectState.DISCONNECTED;
             VpnStatus.logInfo(R.string.screenoff_pause,
-                    "64 kB", TRAFFIC_WINDOW);
+                    mTrafficLimit / 1024 + " kB", mTrafficWindow);
 
             mManagement.pause(getPauseReason());
         }
@@ -126,11 +120,23 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
         }
     }
 
-    public DeviceStateReceiver(OpenVPNManagement magnagement) {
+    public DeviceStateReceiver(Context context, OpenVPNManagement magnagement) {
         super();
         mManagement = magnagement;
         mManagement.setPauseCallback(this);
         mDisconnectHandler = new Handler();
+        // The VPN may be started while the screen is off, e.g. on boot or by always-on
+        VpnStatus.setFineByteCountNeeded(this, isScreenOn(context));
+    }
+
+    @SuppressWarnings("deprecation")
+    private static boolean isScreenOn(Context context) {
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (pm == null)
+            return true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH)
+            return pm.isInteractive();
+        return pm.isScreenOn();
     }
 
 
@@ -142,6 +148,8 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
         if (ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction())) {
             networkStateChange(context);
         } else if (Intent.ACTION_SCREEN_OFF.equals(intent.getAction())) {
+            // Nobody sees the speed in the notification
+            VpnStatus.setFineByteCountNeeded(this, false);
             boolean screenOffPause = prefs.getBoolean("screenoff", false);
 
             if (screenOffPause) {
@@ -154,6 +162,7 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
                     screen = connectState.DISCONNECTED;
             }
         } else if (Intent.ACTION_SCREEN_ON.equals(intent.getAction())) {
+            VpnStatus.setFineByteCountNeeded(this, true);
             // Network was disabled because screen off
             boolean connected = shouldBeConnected();
             screen = connectState.SHOULDBECONNECTED;
@@ -172,7 +181,13 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
 
 
     private void fillTrafficData() {
-        trafficdata.add(new Datapoint(System.currentTimeMillis(), TRAFFIC_LIMIT));
+        long now = System.currentTimeMillis();
+        int window = mTrafficWindow;
+        if (trafficdata.getWindowMillis() != window * 1000L)
+            trafficdata = new RateEstimator(window * 1000L, window);
+        trafficdata.reset(now);
+        // Do not pause before the window has passed once
+        trafficdata.add(now, mTrafficLimit);
     }
 
     public static boolean equalsObj(Object a, Object b) {
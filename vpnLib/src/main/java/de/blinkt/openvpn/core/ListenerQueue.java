@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.Intent;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of {@link VpnStatus} events for one listener.
+ * <p>
+ * Events are delivered in order on a shared pool thread so a slow listener does not stall the
+ * thread that reports the event. A listener is never called from two threads at the same time.
+ * Byte counts, states and the connected VPN are coalesced with a pending event of the same kind
+ * if {@link VpnStatus.OverflowPolicy#COALESCE_LATEST} is configured for them. The coalesced event
+ * takes the place of the newer event, so it is still delivered after everything posted before
+ * it. If the queue is full the oldest log item is dropped.
+ */
+class ListenerQueue implements Runnable {
+
+    static final int KIND_LOG = 0;
+    static final int KIND_STATE = 1;
+    static final int KIND_BYTECOUNT = 2;
+    static final int KIND_CONNECTED_VPN = 3;
+
+    static volatile int mCapacity = 256;
+    static volatile VpnStatus.OverflowPolicy mStatePolicy = VpnStatus.OverflowPolicy.COALESCE_LATEST;
+    static volatile VpnStatus.OverflowPolicy mByteCountPolicy = VpnStatus.OverflowPolicy.COALESCE_LATEST;
+
+    static final AtomicLong mTotalDropped = new AtomicLong();
+    static final AtomicLong mTotalCoalesced = new AtomicLong();
+
+    private static final ExecutorService mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "VpnStatusListener-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Object mListener;
+    // Guarded by this
+    private final LinkedList<Event> mQueue = new LinkedList<>();
+    private final boolean[] mRegistered = new boolean[4];
+    private boolean mScheduled;
+    private long mDropped;
+    private long mCoalesced;
+
+    ListenerQueue(Object listener) {
+        mListener = listener;
+    }
+
+    Object getListener() {
+        return mListener;
+    }
+
+    synchronized void register(int kind) {
+        mRegistered[kind] = true;
+    }
+
+    /**
+     * Stops delivery of the kind and drops its pending events
+     *
+     * @return true if no kind is registered anymore
+     */
+    synchronized boolean unregister(int kind) {
+        mRegistered[kind] = false;
+        Iterator<Event> it = mQueue.iterator();
+        while (it.hasNext())
+            if (it.next().mKind == kind)
+                it.remove();
+        for (boolean registered : mRegistered)
+            if (registered)
+                return false;
+        return true;
+    }
+
+    synchronized long getDropped() {
+        return mDropped;
+    }
+
+    synchronized long getCoalesced() {
+        return mCoalesced;
+    }
+
+    void post(Event event) {
+        synchronized (this) {
+            if (!mRegistered[event.mKind])
+                return;
+
+            if (policyFor(event.mKind) != VpnStatus.OverflowPolicy.COALESCE_LATEST || !coalesce(event)) {
+                if (mQueue.size() >= mCapacity)
+                    dropOldest();
+                mQueue.addLast(event);
+            }
+
+            if (mScheduled)
+                return;
+            mScheduled = true;
+        }
+        mExecutor.execute(this);
+    }
+
+    private static VpnStatus.OverflowPolicy policyFor(int kind) {
+        switch (kind) {
+            case KIND_STATE:
+            case KIND_CONNECTED_VPN:
+                return mStatePolicy;
+            case KIND_BYTECOUNT:
+                return mByteCountPolicy;
+            default:
+                return VpnStatus.OverflowPolicy.DROP_OLDEST;
+        }
+    }
+
+    private boolean coalesce(Event event) {
+        for (ListIterator<Event> it = mQueue.listIterator(mQueue.size()); it.hasPrevious(); ) {
+            Event pending = it.previous();
+            if (pending.mKind == event.mKind) {
+                it.remove();
+                mQueue.addLast(pending.coalesce(event));
+                mCoalesced++;
+                mTotalCoalesced.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void dropOldest() {
+        // Prefer log items, coalesced kinds have at most one pending event each
+        Iterator<Event> it = mQueue.iterator();
+        Event victim = null;
+        while (it.hasNext()) {
+            Event pending = it.next();
+            if (pending.mKind == KIND_LOG) {
+                it.remove();
+                victim = pending;
+                break;
+            }
+        }
+        if (victim == null)
+            mQueue.removeFirst();
+        mDropped++;
+        mTotalDropped.incrementAndGet();
+    }
+
+    @Override
+    public void run() {
+        boolean done = false;
+        try {
+            while (true) {
+                Event event;
+                synchronized (this) {
+                    event = mQueue.pollFirst();
+                    if (event == null) {
+                        mScheduled = false;
+                        done = true;
+                        return;
+                    }
+                }
+                event.deliver(mListener);
+            }
+        } finally {
+            if (!done) {
+                // Listener threw, let the next post reschedule us
+                synchronized (this) {
+                    mScheduled = false;
+                }
+            }
+        }
+    }
+
+    abstract static class Event {
+        final int mKind;
+
+        Event(int kind) {
+            mKind = kind;
+        }
+
+        abstract void deliver(Object listener);
+
+        /**
+         * @return event that replaces this pending event and the newer one
+         */
+        Event coalesce(Event newer) {
+            return newer;
+        }
+    }
+
+    static class LogEvent extends Event {
+        private final LogItem mItem;
+
+        LogEvent(LogItem item) {
+            super(KIND_LOG);
+            mItem = item;
+        }
+
+        @Override
+        void deliver(Object listener) {
+            ((VpnStatus.LogListener) listener).newLog(mItem);
+        }
+    }
+
+    static class StateEvent extends Event {
+        private final String mState;
+        private final String mMessage;
+        private final int mResId;
+        private final ConnectionStatus mLevel;
+        private final Intent mIntent;
+
+        StateEvent(String state, String message, int resId, ConnectionStatus level, Intent intent) {
+            super(KIND_STATE);
+            mState = state;
+            mMessage = message;
+            mResId = resId;
+            mLevel = level;
+            mIntent = intent;
+        }
+
+        @Override
+        void deliver(Object listener) {
+            ((VpnStatus.StateListener) listener).updateState(mState, mMessage, mResId, mLevel, mIntent);
+        }
+    }
+
+    static class ConnectedVpnEvent extends Event {
+        private final String mUuid;
+
+        ConnectedVpnEvent(String uuid) {
+            super(KIND_CONNECTED_VPN);
+            mUuid = uuid;
+        }
+
+        @Override
+        void deliver(Object listener) {
+            ((VpnStatus.StateListener) listener).setConnectedVPN(mUuid);
+        }
+    }
+
+    static class ByteCountEvent extends Event {
+        private final long mIn;
+        private final long mOut;
+        private final long mDiffIn;
+        private final long mDiffOut;
+
+        ByteCountEvent(long in, long out, long diffIn, long diffOut) {
+            super(KIND_BYTECOUNT);
+            mIn = in;
+            mOut = out;
+            mDiffIn = diffIn;
+            mDiffOut = diffOut;
+        }
+
+        @Override
+        void deliver(Object listener) {
+            ((VpnStatus.ByteCountListener) listener).updateByteCount(mIn, mOut, mDiffIn, mDiffOut);
+        }
+
+        @Override
+        Event coalesce(Event newer) {
+            // Keep the newest totals but do not lose any traffic in the diffs
+            ByteCountEvent n = (ByteCountEvent) newer;
+            return new ByteCountEvent(n.mIn, n.mOut, mDiffIn + n.mDiffIn, mDiffOut + n.mDiffOut);
+        }
+    }
+}
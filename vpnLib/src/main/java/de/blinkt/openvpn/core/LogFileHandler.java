@@ -9,17 +9,13 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Locale;
 
 import de.blinkt.openvpn.R;
@@ -32,10 +28,18 @@ class LogFileHandler extends Handler {
     static final int FLUSH_TO_DISK = 101;
     static final int LOG_INIT = 102;
     public static final int LOG_MESSAGE = 103;
-    public static final int MAGIC_BYTE = 0x55;
-    protected OutputStream mLogFile;
 
+    // Single file format used by older versions, it is deleted on startup
     public static final String LOGFILE_NAME = "logcache.dat";
+    public static final String LOG_DIR_NAME = "logcache";
+
+    // Two full segments hold at least as many items as the in-memory log
+    private static final int RECORDS_PER_SEGMENT = VpnStatus.MAXLOGENTRIES / 2;
+    private static final int MAX_SEGMENTS = 3;
+
+    protected LogSegmentStore mLogStore;
+    // Items read from the cache, handed to VpnStatus in one go
+    private final ArrayList<LogItem> mRestoredItems = new ArrayList<>();
 
 
     public LogFileHandler(Looper looper) {
@@ -47,21 +51,28 @@ class LogFileHandler extends Handler {
     public void handleMessage(Message msg) {
         try {
             if (msg.what == LOG_INIT) {
-                if (mLogFile != null)
-                    throw new RuntimeException("mLogFile not null");
-                readLogCache((File) msg.obj);
-                openLogFile((File) msg.obj);
+                if (mLogStore != null)
+                    throw new RuntimeException("mLogStore not null");
+                File cacheDir = (File) msg.obj;
+                LogSegmentStore store = new LogSegmentStore(new File(cacheDir, LOG_DIR_NAME),
+                        RECORDS_PER_SEGMENT, MAX_SEGMENTS);
+                readLogCache(cacheDir, store);
+                store.open();
+                mLogStore = store;
             } else if (msg.what == LOG_MESSAGE && msg.obj instanceof LogItem) {
                 // Ignore log messages if not yet initialized
-                if (mLogFile == null)
+                if (mLogStore == null)
                     return;
                 writeLogItemToDisk((LogItem) msg.obj);
             } else if (msg.what == TRIM_LOG_FILE) {
-                trimLogFile();
+                if (mLogStore == null)
+                    return;
+                mLogStore.clear();
                 for (LogItem li : VpnStatus.getlogbuffer())
                     writeLogItemToDisk(li);
             } else if (msg.what == FLUSH_TO_DISK) {
-                flushToDisk();
+                if (mLogStore != null)
+                    mLogStore.flush();
             }
 
         } catch (IOException | BufferOverflowException e) {
@@ -72,78 +83,47 @@ class LogFileHandler extends Handler {
 
     }
 
-    private void flushToDisk() throws IOException {
-        mLogFile.flush();
-    }
-
-    private void trimLogFile() {
-        try {
-            mLogFile.flush();
-            ((FileOutputStream) mLogFile).getChannel().truncate(0);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
     private void writeLogItemToDisk(LogItem li) throws IOException {
 
         // We do not really care if the log cache breaks between Android upgrades,
         // write binary format to disc
 
-        byte[] liBytes = li.getMarschaledBytes();
-
-        writeEscapedBytes(liBytes);
-    }
-
-    public void writeEscapedBytes(byte[] bytes) throws IOException {
-        int magic = 0;
-        for (byte b : bytes)
-            if (b == MAGIC_BYTE || b == MAGIC_BYTE + 1)
-                magic++;
-
-        byte eBytes[] = new byte[bytes.length + magic];
-
-        int i = 0;
-        for (byte b : bytes) {
-            if (b == MAGIC_BYTE || b == MAGIC_BYTE + 1) {
-                eBytes[i++] = MAGIC_BYTE + 1;
-                eBytes[i++] = (byte) (b - MAGIC_BYTE);
-            } else {
-                eBytes[i++] = b;
+        // Marshal directly into the record buffer of the store
+        while (true) {
+            ByteBuffer record = mLogStore.beginRecord();
+            try {
+                li.marschalTo(record);
+                break;
+            } catch (BufferOverflowException e) {
+                mLogStore.growRecordBuffer();
             }
         }
-
-        byte[] lenBytes = ByteBuffer.allocate(4).putInt(bytes.length).array();
-        synchronized (mLogFile) {
-            mLogFile.write(MAGIC_BYTE);
-            mLogFile.write(lenBytes);
-            mLogFile.write(eBytes);
-        }
+        mLogStore.commitRecord();
     }
 
-    private void openLogFile(File cacheDir) throws FileNotFoundException {
-        File logfile = new File(cacheDir, LOGFILE_NAME);
-        mLogFile = new FileOutputStream(logfile);
-    }
-
-    private void readLogCache(File cacheDir) {
+    private void readLogCache(File cacheDir, LogSegmentStore store) {
         try {
-            File logfile = new File(cacheDir, LOGFILE_NAME);
-
-
-            if (!logfile.exists() || !logfile.canRead())
-                return;
-
-            FileInputStream log = new FileInputStream(logfile);
-            readCacheContents(log);
-            log.close();
-
+            File legacyLog = new File(cacheDir, LOGFILE_NAME);
+            if (legacyLog.exists())
+                legacyLog.delete();
+
+            int itemsRead = store.replay(new LogSegmentStore.RecordListener() {
+                @Override
+                public void onRecord(ByteBuffer record) throws IOException {
+                    restoreLogItem(record);
+                }
+            });
+            VpnStatus.restoreLogItems(mRestoredItems);
+            VpnStatus.logDebug(R.string.reread_log, itemsRead);
+            if (store.getCorruptBytes() > 0)
+                VpnStatus.logDebug(String.format(Locale.US, "Log cache: dropped %d corrupt bytes", store.getCorruptBytes()));
         } catch (java.io.IOException | java.lang.RuntimeException e) {
             VpnStatus.logError("Reading cached logfile failed");
             VpnStatus.logException(e);
             e.printStackTrace();
             // ignore reading file error
         } finally {
+            mRestoredItems.clear();
             synchronized (VpnStatus.readFileLock) {
                 VpnStatus.readFileLog = true;
                 VpnStatus.readFileLock.notifyAll();
@@ -151,75 +131,25 @@ class LogFileHandler extends Handler {
         }
     }
 
+    /**
+     * Decodes the item straight from the record, it is only copied to report a broken record
+     */
+    protected void restoreLogItem(ByteBuffer record) throws UnsupportedEncodingException {
+        int start = record.position();
+        int len = record.remaining();
 
-    protected void readCacheContents(InputStream in) throws IOException {
-        BufferedInputStream logFile = new BufferedInputStream(in);
-
-        byte[] buf = new byte[16384];
-        int read = logFile.read(buf, 0, 5);
-        int itemsRead = 0;
-
-
-        readloop:
-        while (read >= 5) {
-            int skipped = 0;
-            while (buf[skipped] != MAGIC_BYTE) {
-                skipped++;
-                if (!(logFile.read(buf, skipped + 4, 1) == 1) || skipped + 10 > buf.length) {
-                    VpnStatus.logDebug(String.format(Locale.US, "Skipped %d bytes and no a magic byte found", skipped));
-                    break readloop;
-                }
-            }
-            if (skipped > 0)
-                VpnStatus.logDebug(String.format(Locale.US, "Skipped %d bytes before finding a magic byte", skipped));
-
-            int len = ByteBuffer.wrap(buf, skipped + 1, 4).asIntBuffer().get();
-
-            // Marshalled LogItem
-            int pos = 0;
-            byte buf2[] = new byte[buf.length];
-
-            while (pos < len) {
-                byte b = (byte) logFile.read();
-                if (b == MAGIC_BYTE) {
-                    VpnStatus.logDebug(String.format(Locale.US, "Unexpected magic byte found at pos %d, abort current log item", pos));
-                    read = logFile.read(buf, 1, 4) + 1;
-                    continue readloop;
-                } else if (b == MAGIC_BYTE + 1) {
-                    b = (byte) logFile.read();
-                    if (b == 0)
-                        b = MAGIC_BYTE;
-                    else if (b == 1)
-                        b = MAGIC_BYTE + 1;
-                    else {
-                        VpnStatus.logDebug(String.format(Locale.US, "Escaped byte not 0 or 1: %d", b));
-                        read = logFile.read(buf, 1, 4) + 1;
-                        continue readloop;
-                    }
-                }
-                buf2[pos++] = b;
-            }
-
-            restoreLogItem(buf2, len);
-
-            //Next item
-            read = logFile.read(buf, 0, 5);
-            itemsRead++;
-            if (itemsRead > 2 * VpnStatus.MAXLOGENTRIES) {
-                VpnStatus.logError("Too many logentries read from cache, aborting.");
-                read = 0;
-            }
-
+        LogItem li;
+        try {
+            li = new LogItem(record);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            li = null;
         }
-        VpnStatus.logDebug(R.string.reread_log, itemsRead);
-    }
-
-    protected void restoreLogItem(byte[] buf, int len) throws UnsupportedEncodingException {
-
-        LogItem li = new LogItem(buf, len);
-        if (li.verify()) {
-            VpnStatus.newLogItem(li, true);
+        if (li != null && li.verify()) {
+            mRestoredItems.add(li);
         } else {
+            byte[] buf = new byte[len];
+            record.position(start);
+            record.get(buf);
             VpnStatus.logError(String.format(Locale.getDefault(),
                     "Could not read log item from file: %d: %s",
                     len, bytesToHex(buf, Math.max(len, 80))));
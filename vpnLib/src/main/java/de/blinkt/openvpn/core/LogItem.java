@@ -17,6 +17,7 @@ import java.io.ByteArrayInputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
@@ -24,6 +25,7 @@ import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.FormatFlagsConversionMismatchException;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.UnknownFormatConversionException;
 
@@ -33,6 +35,8 @@ import de.blinkt.openvpn.R;
  * Created by arne on 24.04.16.
  */
 public class LogItem implements Parcelable {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     private Object[] mArgs = null;
     private String mMessage = null;
     private int mRessourceId;
@@ -40,6 +44,12 @@ public class LogItem implements Parcelable {
     VpnStatus.LogLevel mLevel = VpnStatus.LogLevel.INFO;
     private long logtime = System.currentTimeMillis();
     private int mVerbosityLevel = -1;
+    // Result of the last getString(Context) of a resource based item and its locale
+    private volatile Rendered mRendered;
+
+    // Raw resource strings of the locale they were loaded for, shared by all items
+    private static final HashMap<Integer, String> mFormats = new HashMap<>();
+    private static Locale mFormatsLocale;
 
     private LogItem(int ressourceId, Object[] args) {
         mRessourceId = ressourceId;
@@ -89,8 +99,17 @@ public class LogItem implements Parcelable {
 
     public byte[] getMarschaledBytes() throws UnsupportedEncodingException, BufferOverflowException {
         ByteBuffer bb = ByteBuffer.allocate(16384);
+        marschalTo(bb);
+        return Arrays.copyOf(bb.array(), bb.position());
+    }
 
-
+    /**
+     * Writes the same bytes as {@link #getMarschaledBytes()} at the position of bb without any
+     * intermediate copies, so callers can reuse one buffer for all items.
+     *
+     * @throws BufferOverflowException if bb is too small, the position of bb is undefined then
+     */
+    public void marschalTo(ByteBuffer bb) throws BufferOverflowException {
         bb.put((byte) 0x0);               //version
         bb.putLong(logtime);              //8
         bb.putInt(mVerbosityLevel);      //4
@@ -131,15 +150,17 @@ public class LogItem implements Parcelable {
 
             }
         }
-
-        int pos = bb.position();
-        bb.rewind();
-        return Arrays.copyOf(bb.array(), pos);
-
     }
 
     public LogItem(byte[] in, int length) throws UnsupportedEncodingException {
-        ByteBuffer bb = ByteBuffer.wrap(in, 0, length);
+        this(ByteBuffer.wrap(in, 0, length));
+    }
+
+    /**
+     * Reads an item written by {@link #marschalTo(ByteBuffer)} from the position to the limit
+     * of the buffer. Strings are decoded directly from the buffer, it may be a mapped file.
+     */
+    public LogItem(ByteBuffer bb) throws UnsupportedEncodingException {
         bb.get(); // ignore version
         logtime = bb.getLong();
         mVerbosityLevel = bb.getInt();
@@ -151,9 +172,7 @@ public class LogItem implements Parcelable {
         } else {
             if (len > bb.remaining())
                 throw new IndexOutOfBoundsException("String length " + len + " is bigger than remaining bytes " + bb.remaining());
-            byte[] utf8bytes = new byte[len];
-            bb.get(utf8bytes);
-            mMessage = new String(utf8bytes, "UTF-8");
+            mMessage = decodeString(bb, len);
         }
         int numArgs = bb.getInt();
         if (numArgs > 30) {
@@ -193,17 +212,56 @@ public class LogItem implements Parcelable {
             throw new UnsupportedEncodingException(bb.remaining() + " bytes left after unmarshaling everything");
     }
 
-    private void marschalString(String str, ByteBuffer bb) throws UnsupportedEncodingException {
-        byte[] utf8bytes = str.getBytes("UTF-8");
-        bb.putInt(utf8bytes.length);
-        bb.put(utf8bytes);
+    /**
+     * Writes the length and the UTF-8 bytes of str, encoded in place. Unpaired surrogates
+     * become '?' like in String.getBytes()
+     */
+    private static void marschalString(String str, ByteBuffer bb) {
+        int lenPos = bb.position();
+        bb.putInt(0);
+        int len = str.length();
+        for (int i = 0; i < len; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                bb.put((byte) c);
+            } else if (c < 0x800) {
+                bb.put((byte) (0xc0 | (c >> 6)));
+                bb.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, str.charAt(++i));
+                bb.put((byte) (0xf0 | (cp >> 18)));
+                bb.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                bb.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                bb.put((byte) (0x80 | (cp & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                bb.put((byte) '?');
+            } else {
+                bb.put((byte) (0xe0 | (c >> 12)));
+                bb.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                bb.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+        bb.putInt(lenPos, bb.position() - lenPos - 4);
     }
 
-    private String unmarschalString(ByteBuffer bb) throws UnsupportedEncodingException {
+    private static String unmarschalString(ByteBuffer bb) {
         int len = bb.getInt();
-        byte[] utf8bytes = new byte[len];
-        bb.get(utf8bytes);
-        return new String(utf8bytes, "UTF-8");
+        if (len < 0 || len > bb.remaining())
+            throw new IndexOutOfBoundsException("String length " + len + " is bigger than remaining bytes " + bb.remaining());
+        return decodeString(bb, len);
+    }
+
+    private static String decodeString(ByteBuffer bb, int len) {
+        String str;
+        if (bb.hasArray()) {
+            str = new String(bb.array(), bb.arrayOffset() + bb.position(), len, UTF8);
+        } else {
+            ByteBuffer slice = bb.slice();
+            slice.limit(len);
+            str = UTF8.decode(slice).toString();
+        }
+        bb.position(bb.position() + len);
+        return str;
     }
 
 
@@ -251,12 +309,21 @@ public class LogItem implements Parcelable {
                 return mMessage;
             } else {
                 if (c != null) {
+                    Locale locale = getLocale(c);
+                    Rendered rendered = mRendered;
+                    if (rendered != null && rendered.mLocale.equals(locale))
+                        return rendered.mString;
+
+                    String str;
                     if (mRessourceId == R.string.mobile_info)
-                        return getMobileInfoString(c);
-                    if (mArgs == null)
-                        return c.getString(mRessourceId);
+                        str = getMobileInfoString(c);
+                    else if (mArgs == null)
+                        str = getFormat(c, locale, mRessourceId);
                     else
-                        return c.getString(mRessourceId, mArgs);
+                        // Same as c.getString(mRessourceId, mArgs) without the resource lookup
+                        str = String.format(locale, getFormat(c, locale, mRessourceId), mArgs);
+                    mRendered = new Rendered(locale, str);
+                    return str;
                 } else {
                     String str = String.format(Locale.ENGLISH, "Log (no context) resid %d", mRessourceId);
                     if (mArgs != null)
@@ -280,6 +347,34 @@ public class LogItem implements Parcelable {
     }
 
 
+    @SuppressWarnings("deprecation")
+    private static Locale getLocale(Context c) {
+        return c.getResources().getConfiguration().locale;
+    }
+
+    private static synchronized String getFormat(Context c, Locale locale, int resId) {
+        if (!locale.equals(mFormatsLocale)) {
+            mFormats.clear();
+            mFormatsLocale = locale;
+        }
+        String format = mFormats.get(resId);
+        if (format == null) {
+            format = c.getString(resId);
+            mFormats.put(resId, format);
+        }
+        return format;
+    }
+
+    private static class Rendered {
+        final Locale mLocale;
+        final String mString;
+
+        Rendered(Locale locale, String string) {
+            mLocale = locale;
+            mString = string;
+        }
+    }
+
     // TextUtils.join will cause not macked exeception in tests ....
     public static String join(CharSequence delimiter, Object[] tokens) {
         StringBuilder sb = new StringBuilder();
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed size ring of the most recent log items.
+ * <p>
+ * Every item gets a sequence number. Writers are serialized by a private lock that is only held
+ * for storing one item, readers never lock: they copy the slots between a cursor and the head and
+ * use the per slot sequence number to drop slots that have been overwritten while reading.
+ * Once the ring is full the oldest item is overwritten, there is no bulk trimming.
+ * <p>
+ * Items restored from the log cache on startup have no sequence number, they are kept in front
+ * of the live items in {@link #snapshot()} as long as there is room in the ring.
+ */
+class LogRingBuffer {
+    private static final LogItem[] EMPTY = new LogItem[0];
+
+    private final int mCapacity;
+    private final AtomicReferenceArray<LogItem> mItems;
+    // Sequence number of the item in each slot, -1 while the slot is being written
+    private final AtomicLongArray mSequences;
+    private final Object mWriteLock = new Object();
+
+    // Sequence number the next item will get
+    private volatile long mHead;
+    // Lowest sequence number still part of the log, moved by clear()
+    private volatile long mFirst;
+    private volatile LogItem[] mRestored = EMPTY;
+
+    LogRingBuffer(int capacity) {
+        mCapacity = capacity;
+        mItems = new AtomicReferenceArray<>(capacity);
+        mSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++)
+            mSequences.set(i, -1);
+    }
+
+    /**
+     * @return the sequence number of the item
+     */
+    long add(LogItem item) {
+        synchronized (mWriteLock) {
+            long seq = mHead;
+            int slot = (int) (seq % mCapacity);
+            mSequences.set(slot, -1);
+            mItems.set(slot, item);
+            mSequences.set(slot, seq);
+            mHead = seq + 1;
+            return seq;
+        }
+    }
+
+    /**
+     * Puts items from an earlier process in front of the live items
+     *
+     * @param items oldest first
+     */
+    void restore(List<LogItem> items) {
+        synchronized (mWriteLock) {
+            ArrayList<LogItem> restored = new ArrayList<>(mRestored.length + items.size());
+            for (LogItem item : mRestored)
+                restored.add(item);
+            restored.addAll(items);
+            int from = Math.max(0, restored.size() - mCapacity);
+            mRestored = restored.subList(from, restored.size()).toArray(EMPTY);
+        }
+    }
+
+    void clear() {
+        synchronized (mWriteLock) {
+            mFirst = mHead;
+            mRestored = EMPTY;
+            for (int i = 0; i < mCapacity; i++) {
+                mSequences.set(i, -1);
+                mItems.set(i, null);
+            }
+        }
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return the sequence number the next item will get, use as cursor for {@link #readFrom}
+     */
+    long getHeadSequence() {
+        return mHead;
+    }
+
+    /**
+     * @return number of live items in the ring, restored items are not counted
+     */
+    int size() {
+        long head = mHead;
+        return (int) (head - Math.max(mFirst, head - mCapacity));
+    }
+
+    /**
+     * Copies all live items with a sequence number of at least cursor to out, oldest first.
+     * Items that have already been overwritten are skipped.
+     *
+     * @return the cursor to pass to the next call to only get newer items
+     */
+    long readFrom(long cursor, List<LogItem> out) {
+        long head = mHead;
+        long seq = Math.max(cursor, Math.max(mFirst, head - mCapacity));
+        for (; seq < head; seq++) {
+            int slot = (int) (seq % mCapacity);
+            if (mSequences.get(slot) != seq)
+                continue;
+            LogItem item = mItems.get(slot);
+            // Slot was overwritten while we read it
+            if (mSequences.get(slot) != seq)
+                continue;
+            out.add(item);
+        }
+        return head;
+    }
+
+    /**
+     * @return restored items followed by all live items, oldest first, at most capacity items
+     */
+    LogItem[] snapshot() {
+        ArrayList<LogItem> live = new ArrayList<>(mCapacity);
+        LogItem[] restored = mRestored;
+        readFrom(0, live);
+
+        int restoredCount = Math.min(restored.length, mCapacity - live.size());
+        if (restoredCount <= 0)
+            return live.toArray(EMPTY);
+
+        LogItem[] items = new LogItem[restoredCount + live.size()];
+        System.arraycopy(restored, restored.length - restoredCount, items, 0, restoredCount);
+        for (int i = 0; i < live.size(); i++)
+            items[restoredCount + i] = live.get(i);
+        return items;
+    }
+}
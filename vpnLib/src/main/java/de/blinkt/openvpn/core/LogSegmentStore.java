@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log store made of numbered segment files.
+ * <p>
+ * Each segment starts with a magic header followed by records of the form
+ * [int length][int crc32][length bytes]. Once a segment holds enough records a new one is
+ * started and the oldest segments are deleted, nothing is ever rewritten. A crash can only
+ * leave a torn record at the end of the newest segment, it fails the length or CRC check on
+ * the next start, the segment is cut off before it and writing continues after the last valid
+ * record.
+ * <p>
+ * Not thread safe, it is only used from the log writer thread.
+ */
+class LogSegmentStore {
+
+    interface RecordListener {
+        /**
+         * @param record the payload of one record, only valid during the call
+         */
+        void onRecord(ByteBuffer record) throws IOException;
+    }
+
+    private static final int MAGIC = 0x4f564c53; // "OVLS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    static final int MAX_RECORD_SIZE = 1 << 20;
+    private static final String SUFFIX = ".seg";
+
+    private final File mDir;
+    private final int mRecordsPerSegment;
+    private final int mMaxSegments;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mChunk = new byte[4096];
+    // Record header and payload, written with a single write so a crash of the app does not
+    // lose anything that has been appended
+    private ByteBuffer mRecord = ByteBuffer.allocate(16384);
+
+    private OutputStream mOut;
+    private long mSegmentNumber = -1;
+    private int mSegmentRecords;
+    // Newest segment that replay() kept and its number of records, open() continues it
+    private File mResumeSegment;
+    private int mResumeRecords;
+    private long mCorruptBytes;
+
+    /**
+     * @param recordsPerSegment records after which a new segment is started
+     * @param maxSegments       number of segments to keep including the one written to
+     */
+    LogSegmentStore(File dir, int recordsPerSegment, int maxSegments) {
+        mDir = dir;
+        mRecordsPerSegment = recordsPerSegment;
+        mMaxSegments = maxSegments;
+    }
+
+    /**
+     * Reads all valid records, oldest first. Corrupt segment tails are cut off.
+     *
+     * @return number of records read
+     */
+    int replay(RecordListener listener) throws IOException {
+        int records = 0;
+        for (long number : listSegments()) {
+            File segment = segmentFile(number);
+            mSegmentNumber = Math.max(mSegmentNumber, number);
+            int segmentRecords = replaySegment(segment, listener);
+            records += segmentRecords;
+            mResumeSegment = segment.exists() ? segment : null;
+            mResumeRecords = segmentRecords;
+        }
+        return records;
+    }
+
+    private int replaySegment(File segment, RecordListener listener) throws IOException {
+        long validLength;
+        int records = 0;
+
+        FileInputStream in = new FileInputStream(segment);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                validLength = 0;
+            } else {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (map.getInt() != MAGIC || map.getInt() != VERSION) {
+                    validLength = 0;
+                } else {
+                    validLength = HEADER_SIZE;
+                    while (map.remaining() >= RECORD_HEADER_SIZE) {
+                        int len = map.getInt();
+                        int crc = map.getInt();
+                        if (len < 0 || len > MAX_RECORD_SIZE || len > map.remaining())
+                            break;
+
+                        ByteBuffer record = map.slice();
+                        record.limit(len);
+                        mCrc.reset();
+                        updateCrc(record);
+                        if ((int) mCrc.getValue() != crc)
+                            break;
+
+                        record.rewind();
+                        listener.onRecord(record);
+                        map.position(map.position() + len);
+                        validLength = map.position();
+                        records++;
+                    }
+                }
+            }
+
+            mCorruptBytes += size - validLength;
+        } finally {
+            in.close();
+        }
+
+        if (validLength <= HEADER_SIZE) {
+            segment.delete();
+        } else {
+            RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+            try {
+                if (raf.length() > validLength)
+                    raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return number of bytes {@link #replay} dropped because they did not form a valid record
+     */
+    long getCorruptBytes() {
+        return mCorruptBytes;
+    }
+
+    private void updateCrc(ByteBuffer record) {
+        if (record.hasArray()) {
+            mCrc.update(record.array(), record.arrayOffset() + record.position(), record.remaining());
+        } else {
+            while (record.hasRemaining()) {
+                int n = Math.min(mChunk.length, record.remaining());
+                record.get(mChunk, 0, n);
+                mCrc.update(mChunk, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Continues the newest segment found by {@link #replay}, a new segment is only started once
+     * it is full or if there is none
+     */
+    void open() throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs())
+            throw new IOException("Cannot create log directory " + mDir);
+        if (mResumeSegment != null && mResumeSegment.exists()) {
+            mOut = new FileOutputStream(mResumeSegment, true);
+            mSegmentRecords = mResumeRecords;
+        } else {
+            startSegment();
+        }
+        mResumeSegment = null;
+    }
+
+    void append(byte[] data, int offset, int len) throws IOException {
+        while (mRecord.capacity() < RECORD_HEADER_SIZE + len)
+            growRecordBuffer();
+        beginRecord().put(data, offset, len);
+        commitRecord();
+    }
+
+    /**
+     * @return the reusable record buffer, the payload is written from its position on and
+     * appended by {@link #commitRecord()}
+     */
+    ByteBuffer beginRecord() {
+        mRecord.clear();
+        mRecord.position(RECORD_HEADER_SIZE);
+        return mRecord;
+    }
+
+    /**
+     * Doubles the record buffer after the payload did not fit, the payload has to be written
+     * again after {@link #beginRecord()}
+     */
+    void growRecordBuffer() throws IOException {
+        if (mRecord.capacity() >= RECORD_HEADER_SIZE + MAX_RECORD_SIZE)
+            throw new IOException("Log record too big");
+        mRecord = ByteBuffer.allocate(Math.min(mRecord.capacity() * 2, RECORD_HEADER_SIZE + MAX_RECORD_SIZE));
+    }
+
+    void commitRecord() throws IOException {
+        if (mSegmentRecords >= mRecordsPerSegment)
+            startSegment();
+
+        byte[] record = mRecord.array();
+        int len = mRecord.position() - RECORD_HEADER_SIZE;
+        mCrc.reset();
+        mCrc.update(record, RECORD_HEADER_SIZE, len);
+        putInt(record, 0, len);
+        putInt(record, 4, (int) mCrc.getValue());
+        mOut.write(record, 0, RECORD_HEADER_SIZE + len);
+        mSegmentRecords++;
+    }
+
+    void flush() throws IOException {
+        if (mOut != null)
+            mOut.flush();
+    }
+
+    /**
+     * Deletes all segments and starts a new one
+     */
+    void clear() throws IOException {
+        close();
+        mResumeSegment = null;
+        for (long number : listSegments())
+            segmentFile(number).delete();
+        open();
+    }
+
+    void close() throws IOException {
+        if (mOut != null) {
+            mOut.close();
+            mOut = null;
+        }
+    }
+
+    private void startSegment() throws IOException {
+        close();
+        mSegmentNumber++;
+        mSegmentRecords = 0;
+        mOut = new FileOutputStream(segmentFile(mSegmentNumber));
+        byte[] header = new byte[HEADER_SIZE];
+        putInt(header, 0, MAGIC);
+        putInt(header, 4, VERSION);
+        mOut.write(header);
+
+        ArrayList<Long> segments = listSegments();
+        for (int i = 0; i < segments.size() - mMaxSegments; i++)
+            segmentFile(segments.get(i)).delete();
+    }
+
+    private File segmentFile(long number) {
+        return new File(mDir, String.format(Locale.US, "%016d%s", number, SUFFIX));
+    }
+
+    /**
+     * @return numbers of all segments, oldest first
+     */
+    private ArrayList<Long> listSegments() {
+        ArrayList<Long> numbers = new ArrayList<>();
+        String[] names = mDir.list();
+        if (names == null)
+            return numbers;
+        Arrays.sort(names);
+        for (String name : names) {
+            if (!name.endsWith(SUFFIX))
+                continue;
+            try {
+                numbers.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Round trip latencies of management commands, from writing the command to the socket until
+ * the SUCCESS:/ERROR: reply has been read. Commands are grouped by their first word
+ * (hold, password, needok, proxy, ...). The statistics are kept for the lifetime of the process
+ * so they cover all connection attempts.
+ */
+public class ManagementCommandStats {
+    // Bucket i counts latencies in [2^i, 2^(i+1)) microseconds, the last bucket is open ended
+    private static final int BUCKETS = 32;
+
+    private static final ManagementCommandStats mInstance = new ManagementCommandStats();
+
+    private final HashMap<String, Histogram> mHistograms = new HashMap<>();
+
+    public static ManagementCommandStats getInstance() {
+        return mInstance;
+    }
+
+    /**
+     * @return the name a command is accounted under, e.g. "hold" for "hold release\n"
+     */
+    static String commandName(String command) {
+        int end = 0;
+        while (end < command.length() && !Character.isWhitespace(command.charAt(end)))
+            end++;
+        return command.substring(0, end);
+    }
+
+    synchronized void record(String name, long latencyNanos, boolean success) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram();
+            mHistograms.put(name, histogram);
+        }
+        histogram.add(latencyNanos / 1000, success);
+    }
+
+    /**
+     * @return statistics for all commands that have been answered so far
+     */
+    public synchronized List<CommandStats> getStats() {
+        ArrayList<CommandStats> stats = new ArrayList<>(mHistograms.size());
+        for (String name : mHistograms.keySet())
+            stats.add(new CommandStats(name, mHistograms.get(name)));
+        return stats;
+    }
+
+    /**
+     * @param name command name as returned in {@link CommandStats#getCommand()}, e.g. "hold"
+     * @return statistics for this command or null if it has not been answered yet
+     */
+    public synchronized CommandStats getStats(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null)
+            return null;
+        return new CommandStats(name, histogram);
+    }
+
+    public synchronized void reset() {
+        mHistograms.clear();
+    }
+
+    /**
+     * Writes a one line summary per command to the log
+     */
+    public void logStats() {
+        for (CommandStats stats : getStats())
+            VpnStatus.logDebug(stats.toString());
+    }
+
+    private static class Histogram {
+        final long[] buckets = new long[BUCKETS];
+        long count;
+        long errors;
+        long sumMicros;
+        long minMicros = Long.MAX_VALUE;
+        long maxMicros;
+
+        void add(long micros, boolean success) {
+            micros = Math.max(0, micros);
+            int bucket = micros == 0 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+            buckets[Math.min(bucket, BUCKETS - 1)]++;
+            count++;
+            if (!success)
+                errors++;
+            sumMicros += micros;
+            minMicros = Math.min(minMicros, micros);
+            maxMicros = Math.max(maxMicros, micros);
+        }
+    }
+
+    /**
+     * Immutable snapshot of the latencies of one command. All times are in milliseconds
+     */
+    public static class CommandStats {
+        private final String mCommand;
+        private final long[] mBuckets;
+        private final long mCount;
+        private final long mErrors;
+        private final long mSumMicros;
+        private final long mMinMicros;
+        private final long mMaxMicros;
+
+        private CommandStats(String command, Histogram histogram) {
+            mCommand = command;
+            mBuckets = histogram.buckets.clone();
+            mCount = histogram.count;
+            mErrors = histogram.errors;
+            mSumMicros = histogram.sumMicros;
+            mMinMicros = histogram.minMicros;
+            mMaxMicros = histogram.maxMicros;
+        }
+
+        public String getCommand() {
+            return mCommand;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return number of commands answered with ERROR: or not answered before the socket closed
+         */
+        public long getErrors() {
+            return mErrors;
+        }
+
+        public double getMinMs() {
+            return mMinMicros / 1000.0;
+        }
+
+        public double getMaxMs() {
+            return mMaxMicros / 1000.0;
+        }
+
+        public double getMeanMs() {
+            return mSumMicros / 1000.0 / mCount;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return upper bound of the histogram bucket containing the percentile
+         */
+        public double getPercentileMs(double percentile) {
+            long rank = (long) Math.ceil(percentile / 100.0 * mCount);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank && seen > 0)
+                    return Math.min(mMaxMicros, (1L << (i + 1)) - 1) / 1000.0;
+            }
+            return getMaxMs();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "MGMT command %s: %d replies (%d errors), min %.1f ms, median %.1f ms, p95 %.1f ms, max %.1f ms",
+                    mCommand, mCount, mErrors, getMinMs(), getPercentileMs(50), getPercentileMs(95), getMaxMs());
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.net.LocalSocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+
+/**
+ * Single writer for the management socket.
+ * <p>
+ * Callers only enqueue commands, a dedicated thread writes everything that is queued with
+ * one write and flush. Duplicate commands that have not been written yet are collapsed into
+ * one. Since OpenVPN answers every command with exactly one SUCCESS: or ERROR: line in the
+ * order the commands were received, written commands are matched to replies in FIFO order.
+ * The round trip time of every answered command is recorded in {@link ManagementCommandStats}.
+ */
+class ManagementCommandWriter implements Runnable {
+
+    interface ReplyCallback {
+        /**
+         * @param success true for SUCCESS:, false for ERROR: or if the socket was closed
+         * @param reply   the reply line without the SUCCESS:/ERROR: prefix, null if the socket was closed
+         */
+        void onReply(boolean success, String reply);
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final LocalSocket mSocket;
+    private final ManagementCommandStats mStats;
+    private final OutputStream mOutput;
+    private final ByteArrayOutputStream mBatch = new ByteArrayOutputStream(1024);
+
+    // Commands not yet written, guarded by this
+    private final LinkedList<Command> mOutbound = new LinkedList<>();
+    // Written commands waiting for their SUCCESS:/ERROR: line, guarded by this
+    private final LinkedList<Command> mAwaitingReply = new LinkedList<>();
+    private boolean mClosed;
+
+    ManagementCommandWriter(LocalSocket socket, ManagementCommandStats stats) throws IOException {
+        mSocket = socket;
+        mStats = stats;
+        mOutput = socket.getOutputStream();
+    }
+
+    /**
+     * Queues a command for the writer thread
+     *
+     * @param cmd command including the trailing newline
+     * @return the queued command or null if the writer is already closed
+     */
+    Command send(String cmd) {
+        return send(cmd, null, true);
+    }
+
+    /**
+     * @param fds         file descriptors that are sent together with this command
+     * @param expectReply false for commands OpenVPN does not answer
+     */
+    synchronized Command send(String cmd, FileDescriptor[] fds, boolean expectReply) {
+        if (mClosed)
+            return null;
+
+        if (fds == null) {
+            String key = coalesceKey(cmd);
+            if (key != null) {
+                for (Command queued : mOutbound) {
+                    if (key.equals(queued.mCoalesceKey)) {
+                        // Last write wins for commands that set a value (bytecount n)
+                        queued.mCommand = cmd;
+                        return queued;
+                    }
+                }
+            }
+            Command command = new Command(cmd, key, null, expectReply);
+            mOutbound.add(command);
+            notifyAll();
+            return command;
+        }
+
+        Command command = new Command(cmd, null, fds, expectReply);
+        mOutbound.add(command);
+        notifyAll();
+        return command;
+    }
+
+    /**
+     * Commands that are idempotent while they are queued. Sending them twice in a row
+     * has no additional effect on the daemon
+     */
+    private static String coalesceKey(String cmd) {
+        if (cmd.startsWith("bytecount "))
+            return "bytecount";
+        switch (cmd) {
+            case "hold release\n":
+            case "signal SIGUSR1\n":
+            case "state on\n":
+            case "network-change\n":
+            case "network-change samenetwork\n":
+                return cmd;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Removes a command that the writer thread has not started to write yet. The command then
+     * fails like on a closed socket.
+     *
+     * @return false if the writer thread already took the command, it may be in the middle of
+     * writing it. Use {@link Command#awaitWriteFinished()} before closing file descriptors
+     * attached to it
+     */
+    boolean cancel(Command command) {
+        synchronized (this) {
+            if (command.mTaken)
+                return false;
+            mOutbound.remove(command);
+        }
+        command.complete(false, null);
+        return true;
+    }
+
+    /**
+     * Called by the management thread for every SUCCESS: or ERROR: line
+     */
+    void onReply(boolean success, String reply) {
+        Command command;
+        synchronized (this) {
+            command = mAwaitingReply.pollFirst();
+        }
+        if (command != null && command.complete(success, reply))
+            mStats.record(ManagementCommandStats.commandName(command.getCommand()),
+                    System.nanoTime() - command.mWrittenAtNanos, success);
+    }
+
+    void close() {
+        LinkedList<Command> failed = new LinkedList<>();
+        synchronized (this) {
+            mClosed = true;
+            failed.addAll(mAwaitingReply);
+            failed.addAll(mOutbound);
+            mAwaitingReply.clear();
+            mOutbound.clear();
+            notifyAll();
+        }
+        long now = System.nanoTime();
+        for (Command command : failed) {
+            boolean written = command.isWritten();
+            if (command.complete(false, null) && written && command.expectsReply())
+                mStats.record(ManagementCommandStats.commandName(command.getCommand()),
+                        now - command.mWrittenAtNanos, false);
+        }
+    }
+
+    @Override
+    public void run() {
+        LinkedList<Command> batch = new LinkedList<>();
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (mOutbound.isEmpty() && !mClosed)
+                        wait();
+                    if (mClosed)
+                        return;
+
+                    // Take everything up to and including the next command with fds, the fds are
+                    // attached to the next write on the socket and must not be combined with others
+                    while (!mOutbound.isEmpty()) {
+                        Command command = mOutbound.pollFirst();
+                        command.mTaken = true;
+                        batch.add(command);
+                        if (command.expectsReply())
+                            mAwaitingReply.add(command);
+                        if (command.mFds != null)
+                            break;
+                    }
+                }
+                writeBatch(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            // Socket has been closed, the reader side reports this
+        } finally {
+            close();
+            for (Command command : batch) {
+                command.writeFailed();
+                command.complete(false, null);
+            }
+        }
+    }
+
+    private void writeBatch(LinkedList<Command> batch) throws IOException {
+        // Timestamp before writing, the reply may be read before written() is called
+        long now = System.nanoTime();
+        for (Command command : batch)
+            command.mWrittenAtNanos = now;
+
+        mBatch.reset();
+        Command withFds = null;
+        for (Command command : batch) {
+            if (command.mFds != null) {
+                withFds = command;
+                break;
+            }
+            byte[] bytes = command.mCommand.getBytes(UTF8);
+            mBatch.write(bytes, 0, bytes.length);
+        }
+
+        if (mBatch.size() > 0) {
+            mBatch.writeTo(mOutput);
+            mOutput.flush();
+        }
+
+        if (withFds != null) {
+            mSocket.setFileDescriptorsForSend(withFds.mFds);
+            // The API documentation fails to mention that it will not reset the file descriptor to
+            // be send and will happily send the file descriptor on every write ...
+            try {
+                mOutput.write(withFds.mCommand.getBytes(UTF8));
+                mOutput.flush();
+            } finally {
+                mSocket.setFileDescriptorsForSend(null);
+            }
+        }
+
+        for (Command command : batch)
+            command.written();
+    }
+
+    static class Command {
+        private volatile String mCommand;
+        private final String mCoalesceKey;
+        private final FileDescriptor[] mFds;
+        private final boolean mExpectReply;
+        private final LinkedList<ReplyCallback> mCallbacks = new LinkedList<>();
+
+        // Taken from the queue by the writer thread, guarded by the writer
+        private boolean mTaken;
+        private boolean mWritten;
+        private boolean mWriteFinished;
+        private volatile long mWrittenAtNanos;
+        private boolean mDone;
+        private boolean mSuccess;
+        private String mReply;
+
+        private Command(String command, String coalesceKey, FileDescriptor[] fds, boolean expectReply) {
+            mCommand = command;
+            mCoalesceKey = coalesceKey;
+            mFds = fds;
+            mExpectReply = expectReply;
+        }
+
+        String getCommand() {
+            return mCommand;
+        }
+
+        boolean expectsReply() {
+            return mExpectReply;
+        }
+
+        /**
+         * Registers a callback that is called once the reply for this command arrived. If the reply
+         * is already known the callback is called immediately on the calling thread
+         */
+        void addCallback(ReplyCallback callback) {
+            boolean done;
+            synchronized (this) {
+                done = mDone;
+                if (!done)
+                    mCallbacks.add(callback);
+            }
+            if (done)
+                callback.onReply(mSuccess, mReply);
+        }
+
+        /**
+         * @return true if the command has been written to the socket within the timeout
+         */
+        synchronized boolean awaitWritten(long timeoutMs) {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            try {
+                while (!mWritten && !mDone) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0)
+                        break;
+                    wait(remaining);
+                }
+            } catch (InterruptedException ignored) {
+            }
+            return mWritten;
+        }
+
+        /**
+         * Waits without a timeout until the writer thread has written this command or failed to
+         * write it. Only returns for commands that {@link #cancel} could not remove
+         *
+         * @return true if the command has been written
+         */
+        synchronized boolean awaitWriteFinished() {
+            boolean interrupted = false;
+            while (!mWriteFinished) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            return mWritten;
+        }
+
+        synchronized boolean isWritten() {
+            return mWritten;
+        }
+
+        synchronized boolean isDone() {
+            return mDone;
+        }
+
+        synchronized boolean isSuccess() {
+            return mSuccess;
+        }
+
+        synchronized String getReply() {
+            return mReply;
+        }
+
+        private void written() {
+            boolean done;
+            synchronized (this) {
+                mWritten = true;
+                mWriteFinished = true;
+                notifyAll();
+                done = !mExpectReply && !mDone;
+            }
+            if (done)
+                complete(true, null);
+        }
+
+        private synchronized void writeFailed() {
+            mWriteFinished = true;
+            notifyAll();
+        }
+
+        /**
+         * @return false if the command had already been completed before
+         */
+        private boolean complete(boolean success, String reply) {
+            LinkedList<ReplyCallback> callbacks;
+            synchronized (this) {
+                if (mDone)
+                    return false;
+                mDone = true;
+                mSuccess = success;
+                mReply = reply;
+                callbacks = new LinkedList<>(mCallbacks);
+                mCallbacks.clear();
+                notifyAll();
+            }
+            for (ReplyCallback callback : callbacks)
+                callback.onReply(success, reply);
+            return true;
+        }
+    }
+}
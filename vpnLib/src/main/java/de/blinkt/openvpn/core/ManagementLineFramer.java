@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Splits the byte stream of the management socket into lines.
+ * <p>
+ * Bytes are read directly into a reusable buffer and every complete line is decoded into
+ * a reusable char buffer that is handed to the {@link LineListener} as a {@link CharSequence}.
+ * The line is only valid during the callback, listeners that need to keep it have to call
+ * {@link Line#toString()}. After the buffers have grown to the longest line seen no further
+ * allocations happen.
+ */
+class ManagementLineFramer {
+
+    interface LineListener {
+        void onLine(Line line);
+    }
+
+    private static final int INITIAL_SIZE = 4096;
+
+    private byte[] mBytes = new byte[INITIAL_SIZE];
+    private ByteBuffer mByteView = ByteBuffer.wrap(mBytes);
+    // Number of valid bytes in mBytes
+    private int mLength;
+    // Position up to which mBytes has been searched for a newline
+    private int mScanned;
+
+    private final Line mLine = new Line();
+    private final CharsetDecoder mDecoder = Charset.forName("UTF-8").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * Reads once from the stream into the internal buffer
+     *
+     * @return number of bytes read or -1 on end of stream
+     */
+    int readFrom(InputStream in) throws IOException {
+        if (mLength == mBytes.length)
+            grow(mLength + 1);
+        return append(in.read(mBytes, mLength, mBytes.length - mLength));
+    }
+
+    private int append(int read) {
+        if (read > 0)
+            mLength += read;
+        return read;
+    }
+
+    /**
+     * Emits all complete lines in the buffer and keeps the incomplete remainder.
+     * Line endings (\n and \r\n) are stripped.
+     */
+    void drainLines(LineListener listener) {
+        int start = 0;
+        for (int i = mScanned; i < mLength; i++) {
+            if (mBytes[i] != '\n')
+                continue;
+
+            int end = i;
+            if (end > start && mBytes[end - 1] == '\r')
+                end--;
+
+            decode(start, end);
+            start = i + 1;
+            listener.onLine(mLine);
+        }
+
+        // Move incomplete line to the front of the buffer
+        if (start > 0) {
+            System.arraycopy(mBytes, start, mBytes, 0, mLength - start);
+            mLength -= start;
+        }
+        mScanned = mLength;
+    }
+
+    /**
+     * @return number of buffered bytes that do not form a complete line yet
+     */
+    int pendingBytes() {
+        return mLength;
+    }
+
+    private void grow(int minSize) {
+        int newSize = Math.max(minSize, mBytes.length * 2);
+        byte[] newBytes = new byte[newSize];
+        System.arraycopy(mBytes, 0, newBytes, 0, mLength);
+        mBytes = newBytes;
+        mByteView = ByteBuffer.wrap(mBytes);
+    }
+
+    private void decode(int start, int end) {
+        int len = end - start;
+        mLine.ensureCapacity(len);
+        char[] chars = mLine.mChars;
+
+        // Management output is almost always plain ASCII, avoid the decoder for it
+        int i = 0;
+        while (i < len) {
+            byte b = mBytes[start + i];
+            if (b < 0)
+                break;
+            chars[i++] = (char) b;
+        }
+
+        if (i == len) {
+            mLine.mLength = len;
+            return;
+        }
+
+        mByteView.limit(end).position(start + i);
+        CharBuffer out = mLine.mCharView;
+        out.clear().position(i);
+        mDecoder.reset();
+        mDecoder.decode(mByteView, out, true);
+        mDecoder.flush(out);
+        mLine.mLength = out.position();
+    }
+
+    /**
+     * Reusable view on the current line
+     */
+    static final class Line implements CharSequence {
+        private char[] mChars = new char[INITIAL_SIZE];
+        private CharBuffer mCharView = CharBuffer.wrap(mChars);
+        private int mLength;
+
+        private void ensureCapacity(int byteLen) {
+            // UTF-8 never decodes to more chars than it has bytes
+            if (mChars.length < byteLen) {
+                mChars = new char[Math.max(byteLen, mChars.length * 2)];
+                mCharView = CharBuffer.wrap(mChars);
+            }
+        }
+
+        @Override
+        public int length() {
+            return mLength;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index >= mLength)
+                throw new IndexOutOfBoundsException("index " + index + " length " + mLength);
+            return mChars[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return substring(start, end);
+        }
+
+        String substring(int start, int end) {
+            if (start < 0 || end > mLength || start > end)
+                throw new IndexOutOfBoundsException("start " + start + " end " + end + " length " + mLength);
+            return new String(mChars, start, end - start);
+        }
+
+        String substring(int start) {
+            return substring(start, mLength);
+        }
+
+        int indexOf(char c, int from) {
+            for (int i = Math.max(0, from); i < mLength; i++)
+                if (mChars[i] == c)
+                    return i;
+            return -1;
+        }
+
+        boolean startsWith(String prefix) {
+            return regionMatches(0, prefix);
+        }
+
+        boolean regionMatches(int offset, String other) {
+            int len = other.length();
+            if (offset < 0 || offset + len > mLength)
+                return false;
+            for (int i = 0; i < len; i++)
+                if (mChars[offset + i] != other.charAt(i))
+                    return false;
+            return true;
+        }
+
+        /**
+         * Parses a non-negative decimal number in [start, end) without creating a String
+         */
+        long parseLong(int start, int end) {
+            if (start >= end || end > mLength)
+                throw new NumberFormatException("Empty or out of range number at " + start + " in: " + this);
+            long value = 0;
+            for (int i = start; i < end; i++) {
+                char c = mChars[i];
+                if (c < '0' || c > '9')
+                    throw new NumberFormatException("Invalid number: " + substring(start, end));
+                value = value * 10 + (c - '0');
+            }
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return new String(mChars, 0, mLength);
+        }
+    }
+}
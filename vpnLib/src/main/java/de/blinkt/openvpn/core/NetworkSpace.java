@@ -8,11 +8,9 @@ package de.blinkt.openvpn.core;
 import android.os.Build;
 import androidx.annotation.NonNull;
 
-import java.math.BigInteger;
 import java.net.Inet6Address;
 import java.util.Collection;
 import java.util.Locale;
-import java.util.PriorityQueue;
 import java.util.TreeSet;
 import java.util.Vector;
 
@@ -29,12 +27,12 @@ public class NetworkSpace {
     }
 
     static class IpAddress implements Comparable<IpAddress> {
-        private BigInteger netAddress;
+        // Address as unsigned 128 bit number, IPv4 addresses only use the lower 32 bits of low
+        private final long high;
+        private final long low;
         public int networkMask;
         private boolean included;
         private boolean isV4;
-        private BigInteger firstAddress;
-        private BigInteger lastAddress;
 
 
         /**
@@ -44,7 +42,7 @@ public class NetworkSpace {
          */
         @Override
         public int compareTo(@NonNull IpAddress another) {
-            int comp = getFirstAddress().compareTo(another.getFirstAddress());
+            int comp = compareFirst(another);
             if (comp != 0)
                 return comp;
 
@@ -69,60 +67,97 @@ public class NetworkSpace {
 
 
             IpAddress on = (IpAddress) o;
-            return (networkMask == on.networkMask) && on.getFirstAddress().equals(getFirstAddress());
+            return (networkMask == on.networkMask) && on.compareFirst(this) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            long first = getFirstHigh() * 31 + getFirstLow();
+            return (int) (first ^ (first >>> 32)) * 31 + networkMask;
         }
 
         public IpAddress(CIDRIP ip, boolean include) {
-            included = include;
-            netAddress = BigInteger.valueOf(ip.getInt());
-            networkMask = ip.len;
-            isV4 = true;
+            this(0, ip.getInt(), ip.len, include, true);
         }
 
         public IpAddress(Inet6Address address, int mask, boolean include) {
             networkMask = mask;
             included = include;
 
-            int s = 128;
-
-            netAddress = BigInteger.ZERO;
-            for (byte b : address.getAddress()) {
-                s -= 8;
-                netAddress = netAddress.add(BigInteger.valueOf((b & 0xFF)).shiftLeft(s));
+            long h = 0, l = 0;
+            byte[] bytes = address.getAddress();
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (bytes[i] & 0xFF);
+                l = (l << 8) | (bytes[i + 8] & 0xFF);
             }
+            high = h;
+            low = l;
+        }
+
+        IpAddress(long high, long low, int mask, boolean included, boolean isV4) {
+            this.high = high;
+            this.low = low;
+            this.networkMask = mask;
+            this.included = included;
+            this.isV4 = isV4;
+        }
+
+        /**
+         * @return the bits of the host part of the lower 64 bits
+         */
+        private long hostMaskLow() {
+            int hostBits = (isV4 ? 32 : 128) - networkMask;
+            if (hostBits <= 0)
+                return 0;
+            if (hostBits >= 64)
+                return -1L;
+            return -1L >>> (64 - hostBits);
         }
 
-        public BigInteger getLastAddress() {
-            if (lastAddress == null)
-                lastAddress = getMaskedAddress(true);
-            return lastAddress;
+        private long hostMaskHigh() {
+            int hostBits = (isV4 ? 32 : 128) - networkMask;
+            if (hostBits <= 64)
+                return 0;
+            return -1L >>> (128 - hostBits);
         }
 
+        long getFirstHigh() {
+            return high & ~hostMaskHigh();
+        }
 
-        public BigInteger getFirstAddress() {
-            if (firstAddress == null)
-                firstAddress = getMaskedAddress(false);
-            return firstAddress;
+        long getFirstLow() {
+            return low & ~hostMaskLow();
         }
 
+        long getLastHigh() {
+            return high | hostMaskHigh();
+        }
 
-        private BigInteger getMaskedAddress(boolean one) {
-            BigInteger numAddress = netAddress;
+        long getLastLow() {
+            return low | hostMaskLow();
+        }
 
-            int numBits;
-            if (isV4) {
-                numBits = 32 - networkMask;
-            } else {
-                numBits = 128 - networkMask;
-            }
+        int compareFirst(IpAddress other) {
+            return compareUnsigned(getFirstHigh(), getFirstLow(), other.getFirstHigh(), other.getFirstLow());
+        }
 
-            for (int i = 0; i < numBits; i++) {
-                if (one)
-                    numAddress = numAddress.setBit(i);
-                else
-                    numAddress = numAddress.clearBit(i);
-            }
-            return numAddress;
+        int compareLast(IpAddress other) {
+            return compareUnsigned(getLastHigh(), getLastLow(), other.getLastHigh(), other.getLastLow());
+        }
+
+        /**
+         * @return true if this network ends before other starts
+         */
+        boolean endsBefore(IpAddress other) {
+            return compareUnsigned(getLastHigh(), getLastLow(), other.getFirstHigh(), other.getFirstLow()) < 0;
+        }
+
+        static int compareUnsigned(long aHigh, long aLow, long bHigh, long bLow) {
+            if (aHigh != bHigh)
+                return (aHigh ^ Long.MIN_VALUE) < (bHigh ^ Long.MIN_VALUE) ? -1 : 1;
+            if (aLow != bLow)
+                return (aLow ^ Long.MIN_VALUE) < (bLow ^ Long.MIN_VALUE) ? -1 : 1;
+            return 0;
         }
 
 
@@ -135,42 +170,39 @@ public class NetworkSpace {
                 return String.format(Locale.US, "%s/%d", getIPv6Address(), networkMask);
         }
 
-        IpAddress(BigInteger baseAddress, int mask, boolean included, boolean isV4) {
-            this.netAddress = baseAddress;
-            this.networkMask = mask;
-            this.included = included;
-            this.isV4 = isV4;
-        }
-
 
         public IpAddress[] split() {
-            IpAddress firstHalf = new IpAddress(getFirstAddress(), networkMask + 1, included, isV4);
-            IpAddress secondHalf = new IpAddress(firstHalf.getLastAddress().add(BigInteger.ONE), networkMask + 1, included, isV4);
+            IpAddress firstHalf = new IpAddress(getFirstHigh(), getFirstLow(), networkMask + 1, included, isV4);
+            // The second half has the highest bit of the host part of the first half set
+            int bit = (isV4 ? 32 : 128) - networkMask - 1;
+            long secondHigh = bit >= 64 ? getFirstHigh() | (1L << (bit - 64)) : getFirstHigh();
+            long secondLow = bit < 64 ? getFirstLow() | (1L << bit) : getFirstLow();
+            IpAddress secondHalf = new IpAddress(secondHigh, secondLow, networkMask + 1, included, isV4);
             if (BuildConfig.DEBUG)
-                assertTrue(secondHalf.getLastAddress().equals(getLastAddress()));
+                assertTrue(secondHalf.compareLast(this) == 0);
             return new IpAddress[]{firstHalf, secondHalf};
         }
 
         String getIPv4Address() {
             if (BuildConfig.DEBUG) {
                 assertTrue(isV4);
-                assertTrue(netAddress.longValue() <= 0xffffffffl);
-                assertTrue(netAddress.longValue() >= 0);
+                assertTrue(low <= 0xffffffffl);
+                assertTrue(low >= 0);
             }
-            long ip = netAddress.longValue();
+            long ip = low;
             return String.format(Locale.US, "%d.%d.%d.%d", (ip >> 24) % 256, (ip >> 16) % 256, (ip >> 8) % 256, ip % 256);
         }
 
         String getIPv6Address() {
             if (BuildConfig.DEBUG) assertTrue(!isV4);
-            BigInteger r = netAddress;
 
             String ipv6str = null;
             boolean lastPart = true;
 
-            while (r.compareTo(BigInteger.ZERO) == 1) {
+            // Groups of 16 bit from the lowest one on, stops at the highest group that is not 0
+            for (int group = 0; group < 8 && !higherGroupsZero(group); group++) {
 
-                long part = r.mod(BigInteger.valueOf(0x10000)).longValue();
+                long part = group < 4 ? (low >>> (16 * group)) & 0xffff : (high >>> (16 * (group - 4))) & 0xffff;
                 if (ipv6str != null || part != 0) {
                     if (ipv6str == null && !lastPart)
                             ipv6str = ":";
@@ -181,7 +213,6 @@ public class NetworkSpace {
                         ipv6str = String.format(Locale.US, "%x:%s", part, ipv6str);
                 }
 
-                r = r.shiftRight(16);
                 lastPart = false;
             }
             if (ipv6str == null)
@@ -191,15 +222,19 @@ public class NetworkSpace {
             return ipv6str;
         }
 
+        /**
+         * @return true if the group and all groups above it are 0
+         */
+        private boolean higherGroupsZero(int group) {
+            if (group < 4)
+                return high == 0 && (low >>> (16 * group)) == 0;
+            return (high >>> (16 * (group - 4))) == 0;
+        }
+
         public boolean containsNet(IpAddress network) {
             // this.first >= net.first &&  this.last <= net.last
-            BigInteger ourFirst = getFirstAddress();
-            BigInteger ourLast = getLastAddress();
-            BigInteger netFirst = network.getFirstAddress();
-            BigInteger netLast = network.getLastAddress();
-
-            boolean a = ourFirst.compareTo(netFirst) != 1;
-            boolean b = ourLast.compareTo(netLast) != -1;
+            boolean a = compareFirst(network) <= 0;
+            boolean b = compareLast(network) >= 0;
             return a && b;
 
         }
@@ -239,133 +274,231 @@ public class NetworkSpace {
         mIpAddresses.add(new IpAddress(address, mask, included));
     }
 
-    TreeSet<IpAddress> generateIPList() {
+    Collection<IpAddress> getPositiveIPList() {
+        return getPositiveIPList(Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT);
+    }
 
-        PriorityQueue<IpAddress> networks = new PriorityQueue<IpAddress>(mIpAddresses);
+    /**
+     * @param keepIncludedRoutes also return the original included routes that are not cut by a
+     *                           smaller excluded route, they are already covered by the other
+     *                           routes but needed before 4.4
+     */
+    Collection<IpAddress> getPositiveIPList(boolean keepIncludedRoutes) {
+        RouteTrie v4Routes = new RouteTrie(true);
+        RouteTrie v6Routes = new RouteTrie(false);
+        for (IpAddress ip : mIpAddresses)
+            (ip.isV4 ? v4Routes : v6Routes).add(ip);
+
+        Vector<IpAddress> ips = v4Routes.getIncludedNetworks();
+        ips.addAll(v6Routes.getIncludedNetworks());
+
+        if (keepIncludedRoutes) {
+            // Include postive routes from the original set under < 4.4 since these might overrule the local
+            // network but only if no smaller negative route exists
+            for (IpAddress origIp : mIpAddresses) {
+                if (!origIp.included)
+                    continue;
 
-        TreeSet<IpAddress> ipsDone = new TreeSet<IpAddress>();
+                // The netspace exists
+                if (ips.contains(origIp))
+                    continue;
 
-        IpAddress currentNet = networks.poll();
-        if (currentNet == null)
-            return ipsDone;
+                // If there is any smaller net that is excluded we may not add the positive route back
+                if (!(origIp.isV4 ? v4Routes : v6Routes).containsNet(origIp))
+                    continue;
 
-        while (currentNet != null) {
-            // Check if it and the next of it are compatible
-            IpAddress nextNet = networks.poll();
+                // It is safe to include the IP
+                ips.add(origIp);
+            }
+
+        }
 
-            if (BuildConfig.DEBUG) assertTrue(currentNet!=null);
-            if (nextNet == null || currentNet.getLastAddress().compareTo(nextNet.getFirstAddress()) == -1) {
-                // Everything good, no overlapping nothing to do
-                ipsDone.add(currentNet);
+        return ips;
+    }
+
+    /**
+     * Merges included routes into the smallest set of networks that routes the same addresses
+     *
+     * @return the merged routes, sorted
+     */
+    static Vector<IpAddress> compactRoutes(Collection<IpAddress> routes, boolean v4) {
+        RouteTrie trie = new RouteTrie(v4);
+        for (IpAddress route : routes)
+            trie.add(new IpAddress(route.getFirstHigh(), route.getFirstLow(), route.networkMask, true, v4));
+        return trie.getIncludedNetworks();
+    }
 
-                currentNet = nextNet;
+    /**
+     * Limits the number of routes by shortening the prefix of all routes that are longer than
+     * the longest prefix length that still results in at most maxRoutes routes. Addresses next
+     * to the original routes are routed as well, but only within networks of that length that
+     * contain one of the original routes.
+     *
+     * @param routes merged routes as returned by {@link #compactRoutes}
+     * @return routes with at most maxRoutes entries unless maxRoutes is smaller than 1
+     */
+    static Vector<IpAddress> widenRoutes(Vector<IpAddress> routes, boolean v4, int maxRoutes) {
+        if (maxRoutes < 1 || routes.size() <= maxRoutes)
+            return routes;
+
+        // The number of routes only gets smaller with shorter prefixes
+        int low = 0;
+        int high = v4 ? 32 : 128;
+        Vector<IpAddress> best = null;
+        while (low < high) {
+            int prefix = (low + high + 1) / 2;
+            Vector<IpAddress> widened = compactRoutes(truncate(routes, prefix), v4);
+            if (widened.size() <= maxRoutes) {
+                low = prefix;
+                best = widened;
             } else {
-                // This network is smaller or equal to the next but has the same base address
-                if (currentNet.getFirstAddress().equals(nextNet.getFirstAddress()) && currentNet.networkMask >= nextNet.networkMask) {
-                    if (currentNet.included == nextNet.included) {
-                        // Included in the next next and same type
-                        // Simply forget our current network
-                        currentNet = nextNet;
-                    } else {
-                        // our currentNet is included in next and types differ. Need to split the next network
-                        IpAddress[] newNets = nextNet.split();
-
-
-                        // TODO: The contains method of the Priority is stupid linear search
-
-                        // First add the second half to keep the order in networks
-                        if (!networks.contains(newNets[1]))
-                            networks.add(newNets[1]);
-
-                        if (newNets[0].getLastAddress().equals(currentNet.getLastAddress())) {
-                            if (BuildConfig.DEBUG)
-                                assertTrue(newNets[0].networkMask == currentNet.networkMask);
-                            // Don't add the lower half that would conflict with currentNet
-                        } else {
-                            if (!networks.contains(newNets[0]))
-                                networks.add(newNets[0]);
-                        }
-                        // Keep currentNet as is
-                    }
-                } else {
-                    if (BuildConfig.DEBUG) {
-                        assertTrue(currentNet.networkMask < nextNet.networkMask);
-                        assertTrue(nextNet.getFirstAddress().compareTo(currentNet.getFirstAddress()) == 1);
-                        assertTrue(currentNet.getLastAddress().compareTo(nextNet.getLastAddress()) != -1);
-                    }
-                    // This network is bigger than the next and last ip of current >= next
-
-                    //noinspection StatementWithEmptyBody
-                    if (currentNet.included == nextNet.included) {
-                        // Next network is in included in our network with the same type,
-                        // simply ignore the next and move on
-                    } else {
-                        // We need to split our network
-                        IpAddress[] newNets = currentNet.split();
-
-
-                        if (newNets[1].networkMask == nextNet.networkMask) {
-                            if (BuildConfig.DEBUG) {
-                                assertTrue(newNets[1].getFirstAddress().equals(nextNet.getFirstAddress()));
-                                assertTrue(newNets[1].getLastAddress().equals(currentNet.getLastAddress()));
-                                // split second equal the next network, do not add it
-                            }
-                            networks.add(nextNet);
-                        } else {
-                            // Add the smaller network first
-                            networks.add(newNets[1]);
-                            networks.add(nextNet);
-                        }
-                        currentNet = newNets[0];
-
-                    }
-                }
+                high = prefix - 1;
             }
-
         }
+        return best != null ? best : compactRoutes(truncate(routes, low), v4);
+    }
 
-        return ipsDone;
+    private static Vector<IpAddress> truncate(Collection<IpAddress> routes, int prefix) {
+        Vector<IpAddress> truncated = new Vector<>(routes.size());
+        for (IpAddress route : routes) {
+            if (route.networkMask <= prefix)
+                truncated.add(route);
+            else
+                truncated.add(new IpAddress(route.getFirstHigh(), route.getFirstLow(), prefix, true, route.isV4));
+        }
+        return truncated;
     }
 
-    Collection<IpAddress> getPositiveIPList() {
-        TreeSet<IpAddress> ipsSorted = generateIPList();
+    /**
+     * Binary radix trie of networks. Every address is routed like the most specific network that
+     * contains it, addresses outside of all networks are not routed.
+     */
+    static class RouteTrie {
+        private static final byte NONE = 0;
+        private static final byte INCLUDED = 1;
+        private static final byte EXCLUDED = 2;
+        private static final byte MIXED = 3;
+
+        private static class Node {
+            Node zero;
+            Node one;
+            byte mark = NONE;
+            // State of all addresses below this node, computed by summarize()
+            byte summary;
+        }
 
-        Vector<IpAddress> ips = new Vector<IpAddress>();
-        for (IpAddress ia : ipsSorted) {
-            if (ia.included)
-                ips.add(ia);
+        private final boolean mV4;
+        private final int mBits;
+        private final Node mRoot = new Node();
+        private boolean mSummarized;
+
+        RouteTrie(boolean v4) {
+            mV4 = v4;
+            mBits = v4 ? 32 : 128;
         }
 
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
-            // Include postive routes from the original set under < 4.4 since these might overrule the local
-            // network but only if no smaller negative route exists
-            for (IpAddress origIp : mIpAddresses) {
-                if (!origIp.included)
-                    continue;
+        /**
+         * Adds an included or excluded network, if the same network has already been added the
+         * first one is kept
+         */
+        void add(IpAddress net) {
+            Node node = mRoot;
+            long high = net.getFirstHigh();
+            long low = net.getFirstLow();
+            for (int depth = 0; depth < net.networkMask; depth++) {
+                if (bit(high, low, depth) == 0) {
+                    if (node.zero == null)
+                        node.zero = new Node();
+                    node = node.zero;
+                } else {
+                    if (node.one == null)
+                        node.one = new Node();
+                    node = node.one;
+                }
+            }
+            if (node.mark == NONE)
+                node.mark = net.included ? INCLUDED : EXCLUDED;
+            mSummarized = false;
+        }
 
-                // The netspace exists
-                if (ipsSorted.contains(origIp))
-                    continue;
+        /**
+         * @return true if all addresses of net are included, O(prefix length) after the first call
+         */
+        boolean containsNet(IpAddress net) {
+            summarizeIfNeeded();
+            Node node = mRoot;
+            byte state = NONE;
+            long high = net.getFirstHigh();
+            long low = net.getFirstLow();
+            for (int depth = 0; depth < net.networkMask; depth++) {
+                if (node.mark != NONE)
+                    state = node.mark;
+                node = bit(high, low, depth) == 0 ? node.zero : node.one;
+                // Nothing more specific, the whole net is routed like the last network on the way
+                if (node == null)
+                    return state == INCLUDED;
+            }
+            return node.summary == INCLUDED;
+        }
 
-                boolean skipIp = false;
-                // If there is any smaller net that is excluded we may not add the positive route back
+        /**
+         * @return the smallest set of networks that covers exactly the included addresses, sorted
+         */
+        Vector<IpAddress> getIncludedNetworks() {
+            summarizeIfNeeded();
+            Vector<IpAddress> networks = new Vector<>();
+            collect(mRoot, NONE, 0, 0, 0, networks);
+            return networks;
+        }
 
-                for (IpAddress calculatedIp : ipsSorted) {
-                    if (!calculatedIp.included && origIp.containsNet(calculatedIp)) {
-                        skipIp = true;
-                        break;
-                    }
-                }
-                if (skipIp)
-                    continue;
+        private void summarizeIfNeeded() {
+            if (!mSummarized) {
+                summarize(mRoot, NONE);
+                mSummarized = true;
+            }
+        }
 
-                // It is safe to include the IP
-                ips.add(origIp);
+        private byte summarize(Node node, byte inherited) {
+            byte state = node.mark != NONE ? node.mark : inherited;
+            if (node.zero == null && node.one == null) {
+                node.summary = state;
+            } else {
+                byte zero = node.zero != null ? summarize(node.zero, state) : state;
+                byte one = node.one != null ? summarize(node.one, state) : state;
+                node.summary = zero == one ? zero : MIXED;
             }
+            return node.summary;
+        }
 
+        private void collect(Node node, byte inherited, long high, long low, int depth, Vector<IpAddress> out) {
+            if (node.summary == INCLUDED) {
+                out.add(new IpAddress(high, low, depth, true, mV4));
+            } else if (node.summary == MIXED) {
+                byte state = node.mark != NONE ? node.mark : inherited;
+                long oneHigh = depth < mBits - 64 ? high | (1L << (mBits - 65 - depth)) : high;
+                long oneLow = depth >= mBits - 64 ? low | (1L << (mBits - 1 - depth)) : low;
+
+                if (node.zero != null)
+                    collect(node.zero, state, high, low, depth + 1, out);
+                else if (state == INCLUDED)
+                    out.add(new IpAddress(high, low, depth + 1, true, mV4));
+
+                if (node.one != null)
+                    collect(node.one, state, oneHigh, oneLow, depth + 1, out);
+                else if (state == INCLUDED)
+                    out.add(new IpAddress(oneHigh, oneLow, depth + 1, true, mV4));
+            }
         }
 
-        return ips;
+        /**
+         * @return bit of the address at depth, 0 is the most significant bit
+         */
+        private int bit(long high, long low, int depth) {
+            int fromLowest = mBits - 1 - depth;
+            if (fromLowest >= 64)
+                return (int) (high >>> (fromLowest - 64)) & 1;
+            return (int) (low >>> fromLowest) & 1;
+        }
     }
 
 }
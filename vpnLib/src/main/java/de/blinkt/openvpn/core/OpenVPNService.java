@@ -33,6 +33,7 @@ import android.os.IBinder;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.system.OsConstants;
 import android.text.TextUtils;
 import android.util.Base64;
@@ -52,6 +53,7 @@ import java.net.UnknownHostException;
 import java.nio.charset.Charset;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.EnumSet;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Vector;
@@ -64,6 +66,7 @@ import de.blinkt.openvpn.api.ExternalAppDatabase;
 import de.blinkt.openvpn.core.VpnStatus.ByteCountListener;
 import de.blinkt.openvpn.core.VpnStatus.StateListener;
 import de.blinkt.openvpn.utils.TotalTraffic;
+import de.blinkt.openvpn.utils.TrafficDatabase;
 
 import static de.blinkt.openvpn.core.ConnectionStatus.LEVEL_CONNECTED;
 import static de.blinkt.openvpn.core.ConnectionStatus.LEVEL_WAITING_FOR_USER_INPUT;
@@ -111,6 +114,15 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
     private boolean mStarting = false;
     private long mConnecttime;
     private OpenVPNManagement mManagement;
+    private static volatile int mMaxRoutes = 0;
+    // Minimum time between two byte count updates of the notification and the UI
+    private static volatile long mByteCountRefreshInterval = 1000;
+    private long mLastByteCountRefresh;
+    private long mLastByteCount;
+    // Speed shown in the notification, averaged over two byte count intervals of the screen on state
+    private final RateEstimator mSpeedIn = new RateEstimator(2000L * OpenVPNManagement.mBytecountInterval, 2 * OpenVPNManagement.mBytecountInterval);
+    private final RateEstimator mSpeedOut = new RateEstimator(2000L * OpenVPNManagement.mBytecountInterval, 2 * OpenVPNManagement.mBytecountInterval);
+    private String mLastNetstat;
     /*private final IBinder mBinder = new IOpenVPNServiceInternal.Stub() {
 
         @Override
@@ -150,46 +162,35 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
     private final IBinder mBinder = new LocalBinder();
     private static String state = "";
     boolean flag = false;
-    private String mLastTunCfg;
+    private TunConfig mLastTunCfg;
     private String mRemoteGW;
+    // Remote address reported with the CONNECTED state, used for the traffic database
+    private String mConnectedServer;
     private Handler guiHandler;
     private Toast mlastToast;
     private Runnable mOpenVPNThread;
 
-    // From: http://stackoverflow.com/questions/3758606/how-to-convert-byte-size-into-human-readable-format-in-java
     public static String humanReadableByteCount(long bytes, boolean speed, Resources res) {
-        if (speed)
-            bytes = bytes * 8;
-        int unit = speed ? 1000 : 1024;
-
-
-        int exp = Math.max(0, Math.min((int) (Math.log(bytes) / Math.log(unit)), 3));
-
-        float bytesUnit = (float) (bytes / Math.pow(unit, exp));
+        return ByteCountFormatter.format(bytes, speed, res);
+    }
 
-        if (speed)
-            switch (exp) {
-                case 0:
-                    return res.getString(R.string.bits_per_second, bytesUnit);
-                case 1:
-                    return res.getString(R.string.kbits_per_second, bytesUnit);
-                case 2:
-                    return res.getString(R.string.mbits_per_second, bytesUnit);
-                default:
-                    return res.getString(R.string.gbits_per_second, bytesUnit);
-            }
-        else
-            switch (exp) {
-                case 0:
-                    return res.getString(R.string.volume_byte, bytesUnit);
-                case 1:
-                    return res.getString(R.string.volume_kbyte, bytesUnit);
-                case 2:
-                    return res.getString(R.string.volume_mbyte, bytesUnit);
-                default:
-                    return res.getString(R.string.volume_gbyte, bytesUnit);
+    /**
+     * Limits the number of routes per address family that are added to the VPN. If there are
+     * more routes, they are widened to shorter prefixes until they fit, which also routes some
+     * addresses next to the original routes through the VPN.
+     *
+     * @param maxRoutes maximum number of routes, 0 for no limit
+     */
+    public static void setMaxRoutes(int maxRoutes) {
+        mMaxRoutes = Math.max(0, maxRoutes);
+    }
 
-            }
+    /**
+     * Sets how often byte counts are shown in the notification and broadcast to the UI. Byte
+     * counts that arrive in between are only added to the totals and the speed.
+     */
+    public static void setByteCountRefreshInterval(long millis) {
+        mByteCountRefreshInterval = Math.max(0, millis);
     }
 
     /**
@@ -268,6 +269,7 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
             mProcessThread = null;
         }
         VpnStatus.removeByteCountListener(this);
+        TrafficDatabase.getInstance(this).flush();
         unregisterDeviceStateReceiver();
         ProfileManager.setConntectedVpnProfileDisconnected(this);
         mOpenVPNThread = null;
@@ -545,7 +547,7 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
         filter.addAction(Intent.ACTION_SCREEN_OFF);
         filter.addAction(Intent.ACTION_SCREEN_ON);
-        mDeviceStateReceiver = new DeviceStateReceiver(magnagement);
+        mDeviceStateReceiver = new DeviceStateReceiver(this, magnagement);
 
         // Fetch initial network state
         mDeviceStateReceiver.networkStateChange(this);
@@ -560,6 +562,7 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
     synchronized void unregisterDeviceStateReceiver() {
         if (mDeviceStateReceiver != null)
             try {
+                VpnStatus.setFineByteCountNeeded(mDeviceStateReceiver, false);
                 VpnStatus.removeByteCountListener(mDeviceStateReceiver);
                 this.unregisterReceiver(mDeviceStateReceiver);
             } catch (IllegalArgumentException iae) {
@@ -710,6 +713,10 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         // Write OpenVPN binary
         String[] argv = VPNLaunchHelper.buildOpenvpnArgv(this);
 
+        // Profiles are saved in the background, make sure the profile is on disk before
+        // connecting so it can be restored if the process dies
+        if (!ProfileManager.flushProfiles(2000))
+            VpnStatus.logWarning("Saving the VPN profile did not finish within 2s");
 
         // Set a flag that we are starting a new VPN
         mStarting = true;
@@ -833,25 +840,15 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         // Just in case unregister for state
         VpnStatus.removeStateListener(this);
         VpnStatus.flushLog();
+        TrafficDatabase.getInstance(this).flush();
     }
 
-    private String getTunConfigString() {
-        // The format of the string is not important, only that
-        // two identical configurations produce the same result
-        String cfg = "TUNCFG UNQIUE STRING ips:";
-
-        if (mLocalIP != null)
-            cfg += mLocalIP.toString();
-        if (mLocalIPv6 != null)
-            cfg += mLocalIPv6;
-
-
-        cfg += "routes: " + TextUtils.join("|", mRoutes.getNetworks(true)) + TextUtils.join("|", mRoutesv6.getNetworks(true));
-        cfg += "excl. routes:" + TextUtils.join("|", mRoutes.getNetworks(false)) + TextUtils.join("|", mRoutesv6.getNetworks(false));
-        cfg += "dns: " + TextUtils.join("|", mDnslist);
-        cfg += "domain: " + mDomain;
-        cfg += "mtu: " + mMtu;
-        return cfg;
+    private TunConfig getTunConfig() {
+        VpnProfile profile = mProfile;
+        boolean appsConfigured = profile != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+        return new TunConfig(mLocalIP, mLocalIPv6, mRoutes, mRoutesv6, mDnslist, mDomain, mMtu,
+                appsConfigured ? profile.mAllowedAppsVpn : null,
+                appsConfigured && profile.mAllowedAppsVpnAreDisallowed);
     }
 
     public ParcelFileDescriptor openTun() {
@@ -916,6 +913,7 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
 
         Collection<IpAddress> positiveIPv4Routes = mRoutes.getPositiveIPList();
         Collection<IpAddress> positiveIPv6Routes = mRoutesv6.getPositiveIPList();
+        int includedIPv4Networks = mRoutes.getNetworks(true).size();
 
         if ("samsung".equals(Build.BRAND) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && mDnslist.size() >= 1) {
             // Check if the first DNS Server is in the VPN range
@@ -931,6 +929,7 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
                     String samsungwarning = String.format("Warning Samsung Android 5.0+ devices ignore DNS servers outside the VPN range. To enable DNS resolution a route to your DNS Server (%s) has been added.", mDnslist.get(0));
                     VpnStatus.logWarning(samsungwarning);
                     positiveIPv4Routes.add(dnsServer);
+                    includedIPv4Networks++;
                 }
             } catch (Exception e) {
                 // If it looks like IPv6 ignore error
@@ -941,13 +940,21 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
 
         IpAddress multicastRange = new IpAddress(new CIDRIP("224.0.0.0", 3), true);
 
+        // Drop multicast routes before merging so they do not become part of a bigger route
+        Vector<IpAddress> unicastIPv4Routes = new Vector<>(positiveIPv4Routes.size());
         for (IpAddress route : positiveIPv4Routes) {
-            try {
+            if (multicastRange.containsNet(route))
+                VpnStatus.logDebug(R.string.ignore_multicast_route, route.toString());
+            else
+                unicastIPv4Routes.add(route);
+        }
+
+        positiveIPv4Routes = compactRoutes(unicastIPv4Routes, includedIPv4Networks, true);
+        positiveIPv6Routes = compactRoutes(positiveIPv6Routes, mRoutesv6.getNetworks(true).size(), false);
 
-                if (multicastRange.containsNet(route))
-                    VpnStatus.logDebug(R.string.ignore_multicast_route, route.toString());
-                else
-                    builder.addRoute(route.getIPv4Address(), route.networkMask);
+        for (IpAddress route : positiveIPv4Routes) {
+            try {
+                builder.addRoute(route.getIPv4Address(), route.networkMask);
             } catch (IllegalArgumentException ia) {
                 VpnStatus.logError(getString(R.string.route_rejected) + route + " " + ia.getLocalizedMessage());
             }
@@ -1019,7 +1026,7 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         if (mDnslist.size() == 0)
             VpnStatus.logInfo(R.string.warn_no_dns);
 
-        mLastTunCfg = getTunConfigString();
+        mLastTunCfg = getTunConfig();
 
         // Reset information
         mDnslist.clear();
@@ -1036,6 +1043,7 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
             ParcelFileDescriptor tun = builder.establish();
             if (tun == null)
                 throw new NullPointerException("Android establish() method returned null (Really broken network configuration?)");
+            ConnectTimeline.mark(ConnectTimeline.Phase.TUN_OPENED);
             return tun;
         } catch (Exception e) {
             VpnStatus.logError(R.string.tun_open_error);
@@ -1160,6 +1168,34 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         }
     }
 
+    /**
+     * @param includedNetworks number of included networks the routes were computed from, the
+     *                         merging mostly happens in {@link NetworkSpace#getPositiveIPList()}
+     *                         already, this pass only merges the added DNS server route
+     */
+    private Collection<IpAddress> compactRoutes(Collection<IpAddress> routes, int includedNetworks, boolean v4) {
+        // Before 4.4 the more specific routes are added on purpose to overrule the local network
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || routes.isEmpty())
+            return routes;
+
+        Vector<IpAddress> compacted = NetworkSpace.compactRoutes(routes, v4);
+        if (compacted.size() < includedNetworks)
+            VpnStatus.logInfo(String.format(Locale.US, "Merged %d included %s networks into %d",
+                    includedNetworks, v4 ? "IPv4" : "IPv6", compacted.size()));
+
+        int maxRoutes = mMaxRoutes;
+        if (maxRoutes > 0 && compacted.size() > maxRoutes) {
+            Vector<IpAddress> widened = NetworkSpace.widenRoutes(compacted, v4, maxRoutes);
+            int prefix = 0;
+            for (IpAddress route : widened)
+                prefix = Math.max(prefix, route.networkMask);
+            VpnStatus.logWarning(String.format(Locale.US, "Limited %d %s routes to %d by widening them to at most /%d",
+                    compacted.size(), v4 ? "IPv4" : "IPv6", widened.size(), prefix));
+            return widened;
+        }
+        return compacted;
+    }
+
     /**
      * Route that is always included, used by the v3 core
      */
@@ -1294,6 +1330,7 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
 
         {
             if (level == LEVEL_CONNECTED) {
+                mConnectedServer = getConnectedServer(logmessage);
                 mDisplayBytecount = true;
                 mConnecttime = System.currentTimeMillis();
                 // Reset connection time base and counters on connect so duration shows minutes correctly
@@ -1301,6 +1338,11 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
                 seconds = "0";
                 lastPacketReceive = 0;
                 duration = "00:00:00";
+                mLastByteCountRefresh = 0;
+                mLastByteCount = SystemClock.elapsedRealtime();
+                mSpeedIn.reset(mLastByteCount);
+                mSpeedOut.reset(mLastByteCount);
+                mLastNetstat = null;
                 if (!runningOnAndroidTV())
                     channel = NOTIFICATION_CHANNEL_BG_ID;
             } else {
@@ -1322,6 +1364,16 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
     public void setConnectedVPN(String uuid) {
     }
 
+    private String getConnectedServer(String logmessage) {
+        // {description},{tun ip},{remote address},{remote port},...
+        String[] parts = logmessage.split(",");
+        if (parts.length > 2 && !parts[2].isEmpty())
+            return parts[2];
+        if (mProfile != null && mProfile.mConnections.length > 0)
+            return mProfile.mConnections[0].mServerName;
+        return null;
+    }
+
     private void doSendBroadcast(String state, ConnectionStatus level) {
         Intent vpnstatus = new Intent();
         vpnstatus.setAction("de.blinkt.openvpn.VPN_STATUS");
@@ -1338,19 +1390,38 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
 
     @Override
     public void updateByteCount(long in, long out, long diffIn, long diffOut) {
-        TotalTraffic.calcTraffic(this, in, out, diffIn, diffOut);
+        TotalTraffic.addTraffic(this, diffIn, diffOut);
+        VpnProfile profile = mProfile;
+        if (profile != null)
+            TrafficDatabase.getInstance(this).record(profile.getUUIDString(), mConnectedServer, diffIn, diffOut);
+
+        // The interval of the byte counts changes with the screen state, spread the diffs over the
+        // time they really cover
+        long now = SystemClock.elapsedRealtime();
+        mSpeedIn.add(now, diffIn, now - mLastByteCount);
+        mSpeedOut.add(now, diffOut, now - mLastByteCount);
+        mLastByteCount = now;
+        if (mLastByteCountRefresh != 0 && now - mLastByteCountRefresh < mByteCountRefreshInterval)
+            return;
+        mLastByteCountRefresh = now;
+
+        long speedIn = mSpeedIn.getRate(now);
+        long speedOut = mSpeedOut.getRate(now);
+
+        TotalTraffic.sendTraffic(this, in, out);
         if (mDisplayBytecount) {
+            Resources res = getResources();
+            byteIn = humanReadableByteCount(in, false, res);
+            byteOut = humanReadableByteCount(out, false, res);
             String netstat = String.format(getString(R.string.statusline_bytecount),
-                    humanReadableByteCount(in, false, getResources()),
-                    humanReadableByteCount(diffIn / OpenVPNManagement.mBytecountInterval, true, getResources()),
-                    humanReadableByteCount(out, false, getResources()),
-                    humanReadableByteCount(diffOut / OpenVPNManagement.mBytecountInterval, true, getResources()));
+                    byteIn, humanReadableByteCount(speedIn, true, res),
+                    byteOut, humanReadableByteCount(speedOut, true, res));
 
+            if (!netstat.equals(mLastNetstat)) {
+                mLastNetstat = netstat;
+                showNotification(netstat, null, NOTIFICATION_CHANNEL_BG_ID, mConnecttime, LEVEL_CONNECTED, null);
+            }
 
-            showNotification(netstat, null, NOTIFICATION_CHANNEL_BG_ID, mConnecttime, LEVEL_CONNECTED, null);
-            // Send only total bytes to UI (no current speed)
-            byteIn = humanReadableByteCount(in, false, getResources());
-            byteOut = humanReadableByteCount(out, false, getResources());
             time = Calendar.getInstance().getTimeInMillis() - c;
             // Compute hours:minutes:seconds with leading zeros, ensure minutes are included
             lastPacketReceive = Integer.parseInt(convertTwoDigit((int) (time / 1000) % 60)) - Integer.parseInt(seconds);
@@ -1359,7 +1430,7 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
             hours = convertTwoDigit((int) ((time / (1000 * 60 * 60)) % 24));
             duration = hours + ":" + minutes + ":" + seconds;
             lastPacketReceive = checkPacketReceive(lastPacketReceive);
-            sendMessage(duration, String.valueOf(lastPacketReceive), byteIn, byteOut);
+            sendMessage(duration, String.valueOf(lastPacketReceive), byteIn, byteOut, in, out, speedIn, speedOut, time);
         }
 
     }
@@ -1390,10 +1461,13 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
     }
 
     public String getTunReopenStatus() {
-        String currentConfiguration = getTunConfigString();
-        if (currentConfiguration.equals(mLastTunCfg)) {
+        TunConfig currentConfiguration = getTunConfig();
+        EnumSet<TunConfig.Change> changes = currentConfiguration.diff(mLastTunCfg);
+        if (changes.isEmpty()) {
             return "NOACTION";
         } else {
+            VpnStatus.logInfo("Tun configuration changed, reopening tun: "
+                    + currentConfiguration.describeChanges(mLastTunCfg, changes));
             String release = Build.VERSION.RELEASE;
             if (Build.VERSION.SDK_INT == Build.VERSION_CODES.KITKAT && !release.startsWith("4.4.3")
                     && !release.startsWith("4.4.4") && !release.startsWith("4.4.5") && !release.startsWith("4.4.6"))
@@ -1483,12 +1557,19 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
     }
     //sending message to main activity
-    private void sendMessage(String duration, String lastPacketReceive, String byteIn, String byteOut) {
+    private void sendMessage(String duration, String lastPacketReceive, String byteIn, String byteOut,
+                             long bytesIn, long bytesOut, long speedIn, long speedOut, long durationMillis) {
         Intent intent = new Intent("connectionState");
         intent.putExtra("duration", duration);
         intent.putExtra("lastPacketReceive", lastPacketReceive);
         intent.putExtra("byteIn", byteIn);
         intent.putExtra("byteOut", byteOut);
+        // Raw values for receivers that do their own formatting, speeds are in bytes per second
+        intent.putExtra("bytesIn", bytesIn);
+        intent.putExtra("bytesOut", bytesOut);
+        intent.putExtra("speedIn", speedIn);
+        intent.putExtra("speedOut", speedOut);
+        intent.putExtra("durationMillis", durationMillis);
         LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
     }
     public class LocalBinder extends Binder {
@@ -20,6 +20,8 @@ import android.util.Pair;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.lang.ref.WeakReference;
 
 /**
@@ -35,7 +37,20 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
 
 
     static final RemoteCallbackList<IStatusCallbacks> mCallbacks =
-            new RemoteCallbackList<>();
+            new RemoteCallbackList<IStatusCallbacks>() {
+                @Override
+                public void onCallbackDied(IStatusCallbacks callback) {
+                    clientsChanged(-1);
+                }
+            };
+
+    // Registered status clients, they show the byte counts
+    private static int mClients;
+
+    private static synchronized void clientsChanged(int diff) {
+        mClients = Math.max(0, mClients + diff);
+        VpnStatus.setFineByteCountNeeded(mCallbacks, mClients > 0);
+    }
 
     @Override
     public void onCreate() {
@@ -66,7 +81,8 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
             if (mLastUpdateMessage != null)
                 sendUpdate(cb, mLastUpdateMessage);
 
-            mCallbacks.register(cb);
+            if (mCallbacks.register(cb))
+                clientsChanged(1);
             try {
                 final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
                 new Thread("pushLogs") {
@@ -83,11 +99,17 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
                             VpnStatus.logException(e);
                         }
                         try {
-
+                            // Reuse one buffer for all items, items bigger than 16k are not sent like before
+                            ByteBuffer bb = ByteBuffer.allocate(16384);
                             for (LogItem logItem : logbuffer) {
-                                byte[] bytes = logItem.getMarschaledBytes();
-                                fd.writeShort(bytes.length);
-                                fd.write(bytes);
+                                bb.clear();
+                                try {
+                                    logItem.marschalTo(bb);
+                                } catch (BufferOverflowException e) {
+                                    continue;
+                                }
+                                fd.writeShort(bb.position());
+                                fd.write(bb.array(), 0, bb.position());
                             }
                             // Mark end
                             fd.writeShort(0x7fff);
@@ -110,7 +132,8 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
 
         @Override
         public void unregisterStatusCallback(IStatusCallbacks cb) throws RemoteException {
-            mCallbacks.unregister(cb);
+            if (mCallbacks.unregister(cb))
+                clientsChanged(-1);
         }
 
         @Override
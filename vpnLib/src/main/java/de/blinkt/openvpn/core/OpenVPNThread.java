@@ -146,6 +146,7 @@ public class OpenVPNThread implements Runnable {
         pb.redirectErrorStream(true);
         try {
             mProcess = pb.start();
+            ConnectTimeline.mark(ConnectTimeline.Phase.PROCESS_SPAWNED);
             // Close the output, since we don't need it
             mProcess.getOutputStream().close();
             InputStream in = mProcess.getInputStream();
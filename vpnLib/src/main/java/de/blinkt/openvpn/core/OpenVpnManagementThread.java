@@ -32,16 +32,21 @@ import java.util.*;
 public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
 
     public static final int ORBOT_TIMEOUT_MS = 20 * 1000;
+    // Maximum time stopVPN and the tun fd handover wait for the writer thread
+    private static final int COMMAND_WRITE_TIMEOUT_MS = 2000;
     private static final String TAG = "openvpn";
     private static final Vector<OpenVpnManagementThread> active = new Vector<>();
     private final Handler mResumeHandler;
     private LocalSocket mSocket;
+    private volatile ManagementCommandWriter mCommandWriter;
     private VpnProfile mProfile;
     private OpenVPNService mOpenVPNService;
     private LinkedList<FileDescriptor> mFDList = new LinkedList<>();
     private LocalServerSocket mServerSocket;
     private boolean mWaitingForRelease = false;
     private long mLastHoldRelease = 0;
+    // Byte count interval last requested from OpenVPN, 0 before the first hold release
+    private int mRequestedBytecountInterval;
     private LocalSocket mServerSocketLocal;
 
     private pauseReason lastPauseReason = pauseReason.noNetwork;
@@ -100,18 +105,45 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
     }
 
     private static boolean stopOpenVPN() {
+        // Only queue under the lock, waiting for the writes would block everything else using it
+        List<OpenVpnManagementThread> threads;
+        List<ManagementCommandWriter.Command> sigints = new ArrayList<>();
         synchronized (active) {
-            boolean sendCMD = false;
+            threads = new ArrayList<>(active);
+            for (OpenVpnManagementThread mt : threads)
+                sigints.add(mt.sendCommand("signal SIGINT\n"));
+        }
+
+        boolean sendCMD = false;
+        for (int i = 0; i < threads.size(); i++) {
+            ManagementCommandWriter.Command sigint = sigints.get(i);
+            sendCMD = sigint != null && sigint.awaitWritten(COMMAND_WRITE_TIMEOUT_MS);
+            try {
+                LocalSocket socket = threads.get(i).mSocket;
+                if (socket != null)
+                    socket.close();
+            } catch (IOException e) {
+                // Ignore close error on already closed socket
+            }
+        }
+        return sendCMD;
+    }
+
+    /**
+     * Sends the interval of {@link VpnStatus#getByteCountInterval()} to all running OpenVPN
+     * processes that use a different one
+     */
+    static void updateBytecountInterval() {
+        synchronized (active) {
+            int interval = VpnStatus.getByteCountInterval();
             for (OpenVpnManagementThread mt : active) {
-                sendCMD = mt.managmentCommand("signal SIGINT\n");
-                try {
-                    if (mt.mSocket != null)
-                        mt.mSocket.close();
-                } catch (IOException e) {
-                    // Ignore close error on already closed socket
+                if (mt.mRequestedBytecountInterval == 0 || mt.mRequestedBytecountInterval == interval)
+                    continue;
+                if (mt.managmentCommand("bytecount " + interval + "\n")) {
+                    VpnStatus.logDebug("Requesting byte counts every " + interval + "s");
+                    mt.mRequestedBytecountInterval = interval;
                 }
             }
-            return sendCMD;
         }
     }
 
@@ -153,27 +185,49 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
 
     /**
      * @param cmd command to write to management socket
-     * @return true if command have been sent
+     * @return true if command has been queued for the management socket
      */
     public boolean managmentCommand(String cmd) {
-        try {
-            if (mSocket != null && mSocket.getOutputStream() != null) {
-                mSocket.getOutputStream().write(cmd.getBytes());
-                mSocket.getOutputStream().flush();
-                return true;
-            }
-        } catch (IOException e) {
-            // Ignore socket stack traces
-        }
-        return false;
+        return sendCommand(cmd) != null;
+    }
+
+    /**
+     * Queues a command for the management socket without blocking the caller
+     *
+     * @param cmd command to write to management socket
+     * @return the queued command that completes when OpenVPN replied or null if not connected
+     */
+    ManagementCommandWriter.Command sendCommand(String cmd) {
+        ManagementCommandWriter writer = mCommandWriter;
+        if (writer == null)
+            return null;
+        return writer.send(cmd);
+    }
+
+    /**
+     * @return round trip latencies of the commands sent to OpenVPN by all management threads
+     */
+    public static ManagementCommandStats getCommandStats() {
+        return ManagementCommandStats.getInstance();
+    }
+
+    /**
+     * @param callback called with the SUCCESS:/ERROR: reply of OpenVPN to this command
+     * @return true if command has been queued for the management socket
+     */
+    boolean sendCommand(String cmd, ManagementCommandWriter.ReplyCallback callback) {
+        ManagementCommandWriter.Command command = sendCommand(cmd);
+        if (command == null)
+            return false;
+        command.addCallback(callback);
+        return true;
     }
 
     @Override
     public void run() {
-        byte[] buffer = new byte[2048];
+        ManagementLineFramer framer = new ManagementLineFramer();
         //	mSocket.setSoTimeout(5); // Setting a timeout cannot be that bad
 
-        String pendingInput = "";
         synchronized (active) {
             active.add(this);
         }
@@ -181,6 +235,7 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         try {
             // Wait for a client to connect
             mSocket = mServerSocket.accept();
+            ConnectTimeline.mark(ConnectTimeline.Phase.MANAGEMENT_ACCEPTED);
             InputStream instream = mSocket.getInputStream();
 
 
@@ -193,11 +248,15 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
 
             // Closing one of the two sockets also closes the other
             //mServerSocketLocal.close();
-            managmentCommand("version 3\n");
+            mCommandWriter = new ManagementCommandWriter(mSocket, ManagementCommandStats.getInstance());
+            new Thread(mCommandWriter, "OpenVPNManagementWriter").start();
+
+            // Older OpenVPN versions do not acknowledge the version command
+            mCommandWriter.send("version 3\n", null, false);
 
             while (true) {
 
-                int numbytesread = instream.read(buffer);
+                int numbytesread = framer.readFrom(instream);
                 if (numbytesread == -1)
                     return;
 
@@ -211,17 +270,15 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
                     Collections.addAll(mFDList, fds);
                 }
 
-                String input = new String(buffer, 0, numbytesread, "UTF-8");
-
-                pendingInput += input;
-
-                pendingInput = processInput(pendingInput);
-
+                framer.drainLines(mLineListener);
 
             }
         } catch (IOException e) {
             if (!e.getMessage().equals("socket closed") && !e.getMessage().equals("Connection reset by peer"))
                 VpnStatus.logException(e);
+        } finally {
+            if (mCommandWriter != null)
+                mCommandWriter.close();
         }
         synchronized (active) {
             active.remove(this);
@@ -266,69 +323,72 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         }
     }
 
-    private String processInput(String pendingInput) {
+    private final ManagementLineFramer.LineListener mLineListener = this::processCommand;
 
+    private interface NotificationHandler {
+        /**
+         * @param line     the complete management line, only valid during the call
+         * @param argStart offset of the first character after "&gt;NAME:"
+         */
+        void handle(ManagementLineFramer.Line line, int argStart);
+    }
 
-        while (pendingInput.contains("\n")) {
-            String[] tokens = pendingInput.split("\\r?\\n", 2);
-            processCommand(tokens[0]);
-            if (tokens.length == 1)
-                // No second part, newline was at the end
-                pendingInput = "";
-            else
-                pendingInput = tokens[1];
+    private static final String[] NOTIFICATION_NAMES = {
+            "BYTECOUNT", "LOG", "STATE", "INFO", "PASSWORD", "HOLD",
+            "NEED-OK", "PROXY", "PK_SIGN", "INFOMSG"
+    };
+
+    // Same order as NOTIFICATION_NAMES, most frequent notifications first
+    private final NotificationHandler[] mNotificationHandlers = {
+            this::processByteCount,
+            this::processLogMessage,
+            (line, argStart) -> {
+                if (!mShuttingDown)
+                    processState(line, argStart);
+            },
+            (line, argStart) -> {
+                /* Ignore greeting from management */
+            },
+            (line, argStart) -> processPWCommand(line.substring(argStart)),
+            (line, argStart) -> handleHold(line.substring(argStart)),
+            (line, argStart) -> processNeedCommand(line.substring(argStart)),
+            (line, argStart) -> processProxyCMD(line.substring(argStart)),
+            (line, argStart) -> processSignCommand(line.substring(argStart)),
+            (line, argStart) -> processInfoMessage(line.substring(argStart)),
+    };
+
+    private NotificationHandler findNotificationHandler(ManagementLineFramer.Line line, int colon) {
+        int nameLength = colon - 1;
+        for (int i = 0; i < NOTIFICATION_NAMES.length; i++) {
+            String name = NOTIFICATION_NAMES[i];
+            if (name.length() == nameLength && line.regionMatches(1, name))
+                return mNotificationHandlers[i];
         }
-        return pendingInput;
+        return null;
     }
 
-    private void processCommand(String command) {
+    private void processCommand(ManagementLineFramer.Line command) {
         //Log.i(TAG, "Line from managment" + command);
 
-        if (command.startsWith(">") && command.contains(":")) {
-            String[] parts = command.split(":", 2);
-            String cmd = parts[0].substring(1);
-            String argument = parts[1];
-
-            switch (cmd) {
-                case "INFO":
-                /* Ignore greeting from management */
-                    return;
-                case "PASSWORD":
-                    processPWCommand(argument);
-                    break;
-                case "HOLD":
-                    handleHold(argument);
-                    break;
-                case "NEED-OK":
-                    processNeedCommand(argument);
-                    break;
-                case "BYTECOUNT":
-                    processByteCount(argument);
-                    break;
-                case "STATE":
-                    if (!mShuttingDown)
-                        processState(argument);
-                    break;
-                case "PROXY":
-                    processProxyCMD(argument);
-                    break;
-                case "LOG":
-                    processLogMessage(argument);
-                    break;
-                case "PK_SIGN":
-                    processSignCommand(argument);
-                    break;
-                case "INFOMSG":
-                    processInfoMessage(argument);
-                    break;
-                default:
-                    VpnStatus.logWarning("MGMT: Got unrecognized command" + command);
-                    Log.i(TAG, "Got unrecognized command" + command);
-                    break;
+        int colon = command.indexOf(':', 1);
+        if (command.length() > 0 && command.charAt(0) == '>' && colon != -1) {
+            NotificationHandler handler = findNotificationHandler(command, colon);
+            if (handler != null) {
+                handler.handle(command, colon + 1);
+            } else {
+                VpnStatus.logWarning("MGMT: Got unrecognized command" + command);
+                Log.i(TAG, "Got unrecognized command" + command);
             }
         } else if (command.startsWith("SUCCESS:")) {
-            /* Ignore this kind of message too */
-            return;
+            // Reply to "version 3" on newer OpenVPN versions, it is not tracked
+            if (command.startsWith("SUCCESS: Management client version"))
+                return;
+            if (mCommandWriter != null)
+                mCommandWriter.onReply(true, command.substring("SUCCESS:".length()).trim());
+        } else if (command.startsWith("ERROR:")) {
+            VpnStatus.logWarning("MGMT: " + command);
+            if (mCommandWriter != null)
+                mCommandWriter.onReply(false, command.substring("ERROR:".length()).trim());
         } else if (command.startsWith("PROTECTFD: ")) {
             FileDescriptor fdtoprotect = mFDList.pollFirst();
             if (fdtoprotect != null)
@@ -351,8 +411,15 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         }
     }
 
-    private void processLogMessage(String argument) {
-        String[] args = argument.split(",", 4);
+    private void processLogMessage(ManagementLineFramer.Line line, int argStart) {
+        // >LOG:{unix time stamp},{flags},{openvpn level},{message}
+        int c1 = line.indexOf(',', argStart);
+        int c2 = line.indexOf(',', c1 + 1);
+        int c3 = line.indexOf(',', c2 + 1);
+        if (c1 == -1 || c2 == -1 || c3 == -1) {
+            VpnStatus.logWarning("MGMT: Got malformed log line: " + line);
+            return;
+        }
         // 0 unix time stamp
         // 1 log level N,I,E etc.
                 /*
@@ -365,29 +432,25 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
                  */
         // 2 log message
 
-        Log.d("OpenVPN", argument);
+        String msg = line.substring(c3 + 1);
+        Log.d("OpenVPN", msg);
 
-        VpnStatus.LogLevel level;
-        switch (args[1]) {
-            case "I":
-                level = VpnStatus.LogLevel.INFO;
-                break;
-            case "W":
-                level = VpnStatus.LogLevel.WARNING;
-                break;
-            case "D":
-                level = VpnStatus.LogLevel.VERBOSE;
-                break;
-            case "F":
-                level = VpnStatus.LogLevel.ERROR;
-                break;
-            default:
-                level = VpnStatus.LogLevel.INFO;
-                break;
+        VpnStatus.LogLevel level = VpnStatus.LogLevel.INFO;
+        if (c2 - c1 == 2) {
+            switch (line.charAt(c1 + 1)) {
+                case 'W':
+                    level = VpnStatus.LogLevel.WARNING;
+                    break;
+                case 'D':
+                    level = VpnStatus.LogLevel.VERBOSE;
+                    break;
+                case 'F':
+                    level = VpnStatus.LogLevel.ERROR;
+                    break;
+            }
         }
 
-        int ovpnlevel = Integer.parseInt(args[2]) & 0x0F;
-        String msg = args[3];
+        int ovpnlevel = (int) line.parseLong(c2 + 1, c3) & 0x0F;
 
         if (msg.startsWith("MANAGEMENT: CMD"))
             ovpnlevel = Math.max(4, ovpnlevel);
@@ -431,8 +494,14 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         }
         mWaitingForRelease = false;
         mLastHoldRelease = System.currentTimeMillis();
-        managmentCommand("hold release\n");
-        managmentCommand("bytecount " + mBytecountInterval + "\n");
+        sendCommand("hold release\n", (success, reply) -> {
+            if (success)
+                ConnectTimeline.mark(ConnectTimeline.Phase.HOLD_RELEASED);
+        });
+        synchronized (active) {
+            mRequestedBytecountInterval = VpnStatus.getByteCountInterval();
+            managmentCommand("bytecount " + mRequestedBytecountInterval + "\n");
+        }
         managmentCommand("state on\n");
         //managmentCommand("log on all\n");
     }
@@ -521,21 +590,27 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         }
     }
 
-    private void processState(String argument) {
-        String[] args = argument.split(",", 3);
-        String currentstate = args[1];
+    private void processState(ManagementLineFramer.Line line, int argStart) {
+        // >STATE:{time},{state},{rest}
+        int c1 = line.indexOf(',', argStart);
+        int c2 = line.indexOf(',', c1 + 1);
+        if (c1 == -1 || c2 == -1) {
+            VpnStatus.logWarning("MGMT: Got malformed state line: " + line);
+            return;
+        }
+        String currentstate = line.substring(c1 + 1, c2);
 
-        if (args[2].equals(",,"))
+        if (line.length() - c2 - 1 == 2 && line.regionMatches(c2 + 1, ",,"))
             VpnStatus.updateStateString(currentstate, "");
         else
-            VpnStatus.updateStateString(currentstate, args[2]);
+            VpnStatus.updateStateString(currentstate, line.substring(c2 + 1));
     }
 
-    private void processByteCount(String argument) {
+    private void processByteCount(ManagementLineFramer.Line line, int argStart) {
         //   >BYTECOUNT:{BYTES_IN},{BYTES_OUT}
-        int comma = argument.indexOf(',');
-        long in = Long.parseLong(argument.substring(0, comma));
-        long out = Long.parseLong(argument.substring(comma + 1));
+        int comma = line.indexOf(',', argStart);
+        long in = line.parseLong(argStart, comma);
+        long out = line.parseLong(comma + 1, line.length());
 
         VpnStatus.updateByteCount(in, out);
 
@@ -641,20 +716,21 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
             setInt.invoke(fdtosend, fdint);
 
             FileDescriptor[] fds = {fdtosend};
-            mSocket.setFileDescriptorsForSend(fds);
 
             // Trigger a send so we can close the fd on our side of the channel
-            // The API documentation fails to mention that it will not reset the file descriptor to
-            // be send and will happily send the file descriptor on every write ...
             String cmd = String.format("needok '%s' %s\n", needed, "ok");
-            managmentCommand(cmd);
-
-            // Set the FileDescriptor to null to stop this mad behavior
-            mSocket.setFileDescriptorsForSend(null);
+            ManagementCommandWriter writer = mCommandWriter;
+            ManagementCommandWriter.Command needok = writer.send(cmd, fds, true);
+            boolean written = needok != null && needok.awaitWritten(COMMAND_WRITE_TIMEOUT_MS);
+            // The fd number must stay valid while the writer thread may still attach it to a write
+            if (needok != null && !written && !writer.cancel(needok))
+                written = needok.awaitWriteFinished();
 
             pfd.close();
 
-            return true;
+            if (!written)
+                VpnStatus.logError("Could not send tun fd over management socket");
+            return written;
         } catch (NoSuchMethodException | IllegalArgumentException | InvocationTargetException |
                 IOException | IllegalAccessException exp) {
             VpnStatus.logException("Could not send fd over socket", exp);
@@ -763,15 +839,13 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         boolean pkcs1padding = arguments[1].equals("RSA_PKCS1_PADDING");
         String signed_string = mProfile.getSignedData(mOpenVPNService, arguments[0], pkcs1padding);
 
+        // pk-sig is a multi line command with a single reply, queue it as one command
         if (signed_string == null) {
-            managmentCommand("pk-sig\n");
-            managmentCommand("\nEND\n");
+            managmentCommand("pk-sig\n\nEND\n");
             stopOpenVPN();
             return;
         }
-        managmentCommand("pk-sig\n");
-        managmentCommand(signed_string);
-        managmentCommand("\nEND\n");
+        managmentCommand("pk-sig\n" + signed_string + "\nEND\n");
     }
 
     @Override
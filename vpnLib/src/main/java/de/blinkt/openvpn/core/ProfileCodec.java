@@ -0,0 +1,790 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.UUID;
+
+import de.blinkt.openvpn.VpnProfile;
+
+/**
+ * Binary encoding of {@link VpnProfile} and {@link Connection}, replaces Java serialization.
+ * <p>
+ * After a magic and the format version every field is stored as a varint tag, made of the field
+ * number and a wire type, followed by a zigzag varint, nothing for null or a length prefixed
+ * payload for strings, string sets and connections. Fields with unknown numbers are skipped, so
+ * older versions can read profiles with new fields, and fields missing from older profiles keep
+ * the default of a new profile. Field numbers must never be reused. The profile ends with the
+ * tag of field 0, so a file that is cut off between two fields is not mistaken for a profile
+ * with fewer fields.
+ * <p>
+ * {@link #decodeSummary} only reads what is needed to list a profile and skips over the large
+ * fields like inline certificates without decoding them.
+ */
+public class ProfileCodec {
+
+    private static final byte[] MAGIC = {'V', 'P', 'B', 0};
+    private static final int FORMAT_VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_NULL = 1;
+    private static final int WIRE_BYTES = 2;
+
+    private static final int TAG_END = 0 << 3 | WIRE_NULL;
+
+    // VpnProfile fields, new fields of VpnProfile and Connection need a number here,
+    // ProfileCodecTest fails for fields that are not encoded
+    private static final int P_AUTHENTICATION_TYPE = 1;
+    private static final int P_NAME = 2;
+    private static final int P_ALIAS = 3;
+    private static final int P_CLIENT_CERT_FILENAME = 4;
+    private static final int P_TLS_AUTH_DIRECTION = 5;
+    private static final int P_TLS_AUTH_FILENAME = 6;
+    private static final int P_CLIENT_KEY_FILENAME = 7;
+    private static final int P_CA_FILENAME = 8;
+    private static final int P_USE_LZO = 9;
+    private static final int P_PKCS12_FILENAME = 10;
+    private static final int P_PKCS12_PASSWORD = 11;
+    private static final int P_USE_TLS_AUTH = 12;
+    private static final int P_DNS1 = 13;
+    private static final int P_DNS2 = 14;
+    private static final int P_IPV4_ADDRESS = 15;
+    private static final int P_IPV6_ADDRESS = 16;
+    private static final int P_OVERRIDE_DNS = 17;
+    private static final int P_SEARCH_DOMAIN = 18;
+    private static final int P_USE_DEFAULT_ROUTE = 19;
+    private static final int P_USE_PULL = 20;
+    private static final int P_CUSTOM_ROUTES = 21;
+    private static final int P_CHECK_REMOTE_CN = 22;
+    private static final int P_EXPECT_TLS_CERT = 23;
+    private static final int P_REMOTE_CN = 24;
+    private static final int P_PASSWORD = 25;
+    private static final int P_USERNAME = 26;
+    private static final int P_ROUTENOPULL = 27;
+    private static final int P_USE_RANDOM_HOSTNAME = 28;
+    private static final int P_USE_FLOAT = 29;
+    private static final int P_USE_CUSTOM_CONFIG = 30;
+    private static final int P_CUSTOM_CONFIG_OPTIONS = 31;
+    private static final int P_VERB = 32;
+    private static final int P_CIPHER = 33;
+    private static final int P_NOBIND = 34;
+    private static final int P_USE_DEFAULT_ROUTEV6 = 35;
+    private static final int P_CUSTOM_ROUTESV6 = 36;
+    private static final int P_KEY_PASSWORD = 37;
+    private static final int P_PERSIST_TUN = 38;
+    private static final int P_CONNECT_RETRY_MAX = 39;
+    private static final int P_CONNECT_RETRY = 40;
+    private static final int P_CONNECT_RETRY_MAX_TIME = 41;
+    private static final int P_USER_EDITABLE = 42;
+    private static final int P_AUTH = 43;
+    private static final int P_X509_AUTH_TYPE = 44;
+    private static final int P_X509_USERNAME_FIELD = 45;
+    private static final int P_ALLOW_LOCAL_LAN = 46;
+    private static final int P_EXCLUDED_ROUTES = 47;
+    private static final int P_EXCLUDED_ROUTESV6 = 48;
+    private static final int P_MSSFIX = 49;
+    private static final int P_CONNECTIONS = 50;
+    private static final int P_REMOTE_RANDOM = 51;
+    private static final int P_ALLOWED_APPS_VPN = 52;
+    private static final int P_ALLOWED_APPS_VPN_ARE_DISALLOWED = 53;
+    private static final int P_ALLOW_APP_VPN_BYPASS = 54;
+    private static final int P_CRL_FILENAME = 55;
+    private static final int P_PROFILE_CREATOR = 56;
+    private static final int P_EXTERNAL_AUTHENTICATOR = 57;
+    private static final int P_AUTH_RETRY = 58;
+    private static final int P_TUN_MTU = 59;
+    private static final int P_PUSH_PEER_INFO = 60;
+    private static final int P_VERSION = 61;
+    private static final int P_LAST_USED = 62;
+    private static final int P_IMPORTED_PROFILE_HASH = 63;
+    private static final int P_SERVER_NAME = 64;
+    private static final int P_SERVER_PORT = 65;
+    private static final int P_USE_UDP = 66;
+    private static final int P_TEMPORARY_PROFILE = 67;
+    private static final int P_UUID = 68;
+    private static final int P_PROFILE_VERSION = 69;
+    private static final int P_BLOCK_UNUSED_ADDRESS_FAMILIES = 70;
+
+    // Connection fields
+    private static final int C_SERVER_NAME = 1;
+    private static final int C_SERVER_PORT = 2;
+    private static final int C_USE_UDP = 3;
+    private static final int C_CUSTOM_CONFIGURATION = 4;
+    private static final int C_USE_CUSTOM_CONFIG = 5;
+    private static final int C_ENABLED = 6;
+    private static final int C_CONNECT_TIMEOUT = 7;
+    private static final int C_PROXY_TYPE = 8;
+    private static final int C_PROXY_NAME = 9;
+    private static final int C_PROXY_PORT = 10;
+    private static final int C_USE_PROXY_AUTH = 11;
+    private static final int C_PROXY_AUTH_USER = 12;
+    private static final int C_PROXY_AUTH_PASSWORD = 13;
+
+    private ProfileCodec() {
+    }
+
+    /**
+     * The fields of a profile that are needed to list it
+     */
+    public static class Summary {
+        public final UUID uuid;
+        public final String name;
+        public final int version;
+        public final long lastUsed;
+
+        Summary(UUID uuid, String name, int version, long lastUsed) {
+            this.uuid = uuid;
+            this.name = name;
+            this.version = version;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    /**
+     * @return true if data starts like a profile written by {@link #encode}, false for
+     * example for profiles written by ObjectOutputStream
+     */
+    public static boolean isEncoded(byte[] data) {
+        if (data.length < MAGIC.length)
+            return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i])
+                return false;
+        }
+        return true;
+    }
+
+    public static byte[] encode(VpnProfile vp) {
+        Writer w = new Writer(4096);
+        w.mOut.write(MAGIC, 0, MAGIC.length);
+        w.writeVarLong(FORMAT_VERSION);
+
+        w.putInt(P_AUTHENTICATION_TYPE, vp.mAuthenticationType);
+        w.putString(P_NAME, vp.mName);
+        w.putString(P_ALIAS, vp.mAlias);
+        w.putString(P_CLIENT_CERT_FILENAME, vp.mClientCertFilename);
+        w.putString(P_TLS_AUTH_DIRECTION, vp.mTLSAuthDirection);
+        w.putString(P_TLS_AUTH_FILENAME, vp.mTLSAuthFilename);
+        w.putString(P_CLIENT_KEY_FILENAME, vp.mClientKeyFilename);
+        w.putString(P_CA_FILENAME, vp.mCaFilename);
+        w.putBoolean(P_USE_LZO, vp.mUseLzo);
+        w.putString(P_PKCS12_FILENAME, vp.mPKCS12Filename);
+        w.putString(P_PKCS12_PASSWORD, vp.mPKCS12Password);
+        w.putBoolean(P_USE_TLS_AUTH, vp.mUseTLSAuth);
+        w.putString(P_DNS1, vp.mDNS1);
+        w.putString(P_DNS2, vp.mDNS2);
+        w.putString(P_IPV4_ADDRESS, vp.mIPv4Address);
+        w.putString(P_IPV6_ADDRESS, vp.mIPv6Address);
+        w.putBoolean(P_OVERRIDE_DNS, vp.mOverrideDNS);
+        w.putString(P_SEARCH_DOMAIN, vp.mSearchDomain);
+        w.putBoolean(P_USE_DEFAULT_ROUTE, vp.mUseDefaultRoute);
+        w.putBoolean(P_USE_PULL, vp.mUsePull);
+        w.putString(P_CUSTOM_ROUTES, vp.mCustomRoutes);
+        w.putBoolean(P_CHECK_REMOTE_CN, vp.mCheckRemoteCN);
+        w.putBoolean(P_EXPECT_TLS_CERT, vp.mExpectTLSCert);
+        w.putString(P_REMOTE_CN, vp.mRemoteCN);
+        w.putString(P_PASSWORD, vp.mPassword);
+        w.putString(P_USERNAME, vp.mUsername);
+        w.putBoolean(P_ROUTENOPULL, vp.mRoutenopull);
+        w.putBoolean(P_USE_RANDOM_HOSTNAME, vp.mUseRandomHostname);
+        w.putBoolean(P_USE_FLOAT, vp.mUseFloat);
+        w.putBoolean(P_USE_CUSTOM_CONFIG, vp.mUseCustomConfig);
+        w.putString(P_CUSTOM_CONFIG_OPTIONS, vp.mCustomConfigOptions);
+        w.putString(P_VERB, vp.mVerb);
+        w.putString(P_CIPHER, vp.mCipher);
+        w.putBoolean(P_NOBIND, vp.mNobind);
+        w.putBoolean(P_USE_DEFAULT_ROUTEV6, vp.mUseDefaultRoutev6);
+        w.putString(P_CUSTOM_ROUTESV6, vp.mCustomRoutesv6);
+        w.putString(P_KEY_PASSWORD, vp.mKeyPassword);
+        w.putBoolean(P_PERSIST_TUN, vp.mPersistTun);
+        w.putString(P_CONNECT_RETRY_MAX, vp.mConnectRetryMax);
+        w.putString(P_CONNECT_RETRY, vp.mConnectRetry);
+        w.putString(P_CONNECT_RETRY_MAX_TIME, vp.mConnectRetryMaxTime);
+        w.putBoolean(P_USER_EDITABLE, vp.mUserEditable);
+        w.putString(P_AUTH, vp.mAuth);
+        w.putInt(P_X509_AUTH_TYPE, vp.mX509AuthType);
+        w.putString(P_X509_USERNAME_FIELD, vp.mx509UsernameField);
+        w.putBoolean(P_ALLOW_LOCAL_LAN, vp.mAllowLocalLAN);
+        w.putString(P_EXCLUDED_ROUTES, vp.mExcludedRoutes);
+        w.putString(P_EXCLUDED_ROUTESV6, vp.mExcludedRoutesv6);
+        w.putInt(P_MSSFIX, vp.mMssFix);
+        if (vp.mConnections == null) {
+            w.putNull(P_CONNECTIONS);
+        } else {
+            Writer list = new Writer(256 * vp.mConnections.length);
+            list.writeVarLong(vp.mConnections.length);
+            for (Connection conn : vp.mConnections)
+                list.writeBytes(encodeConnection(conn));
+            w.putBytes(P_CONNECTIONS, list.mOut.toByteArray());
+        }
+        w.putBoolean(P_REMOTE_RANDOM, vp.mRemoteRandom);
+        if (vp.mAllowedAppsVpn == null) {
+            w.putNull(P_ALLOWED_APPS_VPN);
+        } else {
+            Writer list = new Writer(32 * vp.mAllowedAppsVpn.size());
+            list.writeVarLong(vp.mAllowedAppsVpn.size());
+            for (String app : vp.mAllowedAppsVpn)
+                list.writeBytes(app.getBytes(UTF_8));
+            w.putBytes(P_ALLOWED_APPS_VPN, list.mOut.toByteArray());
+        }
+        w.putBoolean(P_ALLOWED_APPS_VPN_ARE_DISALLOWED, vp.mAllowedAppsVpnAreDisallowed);
+        w.putBoolean(P_ALLOW_APP_VPN_BYPASS, vp.mAllowAppVpnBypass);
+        w.putString(P_CRL_FILENAME, vp.mCrlFilename);
+        w.putString(P_PROFILE_CREATOR, vp.mProfileCreator);
+        w.putString(P_EXTERNAL_AUTHENTICATOR, vp.mExternalAuthenticator);
+        w.putInt(P_AUTH_RETRY, vp.mAuthRetry);
+        w.putInt(P_TUN_MTU, vp.mTunMtu);
+        w.putBoolean(P_PUSH_PEER_INFO, vp.mPushPeerInfo);
+        w.putInt(P_VERSION, vp.mVersion);
+        w.putLong(P_LAST_USED, vp.mLastUsed);
+        w.putString(P_IMPORTED_PROFILE_HASH, vp.importedProfileHash);
+        w.putString(P_SERVER_NAME, vp.mServerName);
+        w.putString(P_SERVER_PORT, vp.mServerPort);
+        w.putBoolean(P_USE_UDP, vp.mUseUdp);
+        w.putBoolean(P_TEMPORARY_PROFILE, vp.mTemporaryProfile);
+        w.putString(P_UUID, vp.getUUID() == null ? null : vp.getUUID().toString());
+        w.putInt(P_PROFILE_VERSION, vp.getProfileVersion());
+        w.putBoolean(P_BLOCK_UNUSED_ADDRESS_FAMILIES, vp.mBlockUnusedAddressFamilies);
+        w.writeVarLong(TAG_END);
+        return w.mOut.toByteArray();
+    }
+
+    private static byte[] encodeConnection(Connection conn) {
+        Writer w = new Writer(256);
+        w.putString(C_SERVER_NAME, conn.mServerName);
+        w.putString(C_SERVER_PORT, conn.mServerPort);
+        w.putBoolean(C_USE_UDP, conn.mUseUdp);
+        w.putString(C_CUSTOM_CONFIGURATION, conn.mCustomConfiguration);
+        w.putBoolean(C_USE_CUSTOM_CONFIG, conn.mUseCustomConfig);
+        w.putBoolean(C_ENABLED, conn.mEnabled);
+        w.putInt(C_CONNECT_TIMEOUT, conn.mConnectTimeout);
+        w.putString(C_PROXY_TYPE, conn.mProxyType == null ? null : conn.mProxyType.name());
+        w.putString(C_PROXY_NAME, conn.mProxyName);
+        w.putString(C_PROXY_PORT, conn.mProxyPort);
+        w.putBoolean(C_USE_PROXY_AUTH, conn.mUseProxyAuth);
+        w.putString(C_PROXY_AUTH_USER, conn.mProxyAuthUser);
+        w.putString(C_PROXY_AUTH_PASSWORD, conn.mProxyAuthPassword);
+        return w.mOut.toByteArray();
+    }
+
+    /**
+     * @throws IOException if data is not an encoded profile or is truncated
+     */
+    public static VpnProfile decode(byte[] data) throws IOException {
+        Reader r = openReader(data);
+        VpnProfile vp = new VpnProfile(null);
+        for (int tag = r.readTag(); tag != TAG_END; tag = r.readTag()) {
+            int field = tag >>> 3;
+            int wireType = tag & 7;
+            switch (field) {
+                case P_AUTHENTICATION_TYPE:
+                    vp.mAuthenticationType = r.readInt(wireType, vp.mAuthenticationType);
+                    break;
+                case P_NAME:
+                    vp.mName = r.readString(wireType, vp.mName);
+                    break;
+                case P_ALIAS:
+                    vp.mAlias = r.readString(wireType, vp.mAlias);
+                    break;
+                case P_CLIENT_CERT_FILENAME:
+                    vp.mClientCertFilename = r.readString(wireType, vp.mClientCertFilename);
+                    break;
+                case P_TLS_AUTH_DIRECTION:
+                    vp.mTLSAuthDirection = r.readString(wireType, vp.mTLSAuthDirection);
+                    break;
+                case P_TLS_AUTH_FILENAME:
+                    vp.mTLSAuthFilename = r.readString(wireType, vp.mTLSAuthFilename);
+                    break;
+                case P_CLIENT_KEY_FILENAME:
+                    vp.mClientKeyFilename = r.readString(wireType, vp.mClientKeyFilename);
+                    break;
+                case P_CA_FILENAME:
+                    vp.mCaFilename = r.readString(wireType, vp.mCaFilename);
+                    break;
+                case P_USE_LZO:
+                    vp.mUseLzo = r.readBoolean(wireType, vp.mUseLzo);
+                    break;
+                case P_PKCS12_FILENAME:
+                    vp.mPKCS12Filename = r.readString(wireType, vp.mPKCS12Filename);
+                    break;
+                case P_PKCS12_PASSWORD:
+                    vp.mPKCS12Password = r.readString(wireType, vp.mPKCS12Password);
+                    break;
+                case P_USE_TLS_AUTH:
+                    vp.mUseTLSAuth = r.readBoolean(wireType, vp.mUseTLSAuth);
+                    break;
+                case P_DNS1:
+                    vp.mDNS1 = r.readString(wireType, vp.mDNS1);
+                    break;
+                case P_DNS2:
+                    vp.mDNS2 = r.readString(wireType, vp.mDNS2);
+                    break;
+                case P_IPV4_ADDRESS:
+                    vp.mIPv4Address = r.readString(wireType, vp.mIPv4Address);
+                    break;
+                case P_IPV6_ADDRESS:
+                    vp.mIPv6Address = r.readString(wireType, vp.mIPv6Address);
+                    break;
+                case P_OVERRIDE_DNS:
+                    vp.mOverrideDNS = r.readBoolean(wireType, vp.mOverrideDNS);
+                    break;
+                case P_SEARCH_DOMAIN:
+                    vp.mSearchDomain = r.readString(wireType, vp.mSearchDomain);
+                    break;
+                case P_USE_DEFAULT_ROUTE:
+                    vp.mUseDefaultRoute = r.readBoolean(wireType, vp.mUseDefaultRoute);
+                    break;
+                case P_USE_PULL:
+                    vp.mUsePull = r.readBoolean(wireType, vp.mUsePull);
+                    break;
+                case P_CUSTOM_ROUTES:
+                    vp.mCustomRoutes = r.readString(wireType, vp.mCustomRoutes);
+                    break;
+                case P_CHECK_REMOTE_CN:
+                    vp.mCheckRemoteCN = r.readBoolean(wireType, vp.mCheckRemoteCN);
+                    break;
+                case P_EXPECT_TLS_CERT:
+                    vp.mExpectTLSCert = r.readBoolean(wireType, vp.mExpectTLSCert);
+                    break;
+                case P_REMOTE_CN:
+                    vp.mRemoteCN = r.readString(wireType, vp.mRemoteCN);
+                    break;
+                case P_PASSWORD:
+                    vp.mPassword = r.readString(wireType, vp.mPassword);
+                    break;
+                case P_USERNAME:
+                    vp.mUsername = r.readString(wireType, vp.mUsername);
+                    break;
+                case P_ROUTENOPULL:
+                    vp.mRoutenopull = r.readBoolean(wireType, vp.mRoutenopull);
+                    break;
+                case P_USE_RANDOM_HOSTNAME:
+                    vp.mUseRandomHostname = r.readBoolean(wireType, vp.mUseRandomHostname);
+                    break;
+                case P_USE_FLOAT:
+                    vp.mUseFloat = r.readBoolean(wireType, vp.mUseFloat);
+                    break;
+                case P_USE_CUSTOM_CONFIG:
+                    vp.mUseCustomConfig = r.readBoolean(wireType, vp.mUseCustomConfig);
+                    break;
+                case P_CUSTOM_CONFIG_OPTIONS:
+                    vp.mCustomConfigOptions = r.readString(wireType, vp.mCustomConfigOptions);
+                    break;
+                case P_VERB:
+                    vp.mVerb = r.readString(wireType, vp.mVerb);
+                    break;
+                case P_CIPHER:
+                    vp.mCipher = r.readString(wireType, vp.mCipher);
+                    break;
+                case P_NOBIND:
+                    vp.mNobind = r.readBoolean(wireType, vp.mNobind);
+                    break;
+                case P_USE_DEFAULT_ROUTEV6:
+                    vp.mUseDefaultRoutev6 = r.readBoolean(wireType, vp.mUseDefaultRoutev6);
+                    break;
+                case P_CUSTOM_ROUTESV6:
+                    vp.mCustomRoutesv6 = r.readString(wireType, vp.mCustomRoutesv6);
+                    break;
+                case P_KEY_PASSWORD:
+                    vp.mKeyPassword = r.readString(wireType, vp.mKeyPassword);
+                    break;
+                case P_PERSIST_TUN:
+                    vp.mPersistTun = r.readBoolean(wireType, vp.mPersistTun);
+                    break;
+                case P_CONNECT_RETRY_MAX:
+                    vp.mConnectRetryMax = r.readString(wireType, vp.mConnectRetryMax);
+                    break;
+                case P_CONNECT_RETRY:
+                    vp.mConnectRetry = r.readString(wireType, vp.mConnectRetry);
+                    break;
+                case P_CONNECT_RETRY_MAX_TIME:
+                    vp.mConnectRetryMaxTime = r.readString(wireType, vp.mConnectRetryMaxTime);
+                    break;
+                case P_USER_EDITABLE:
+                    vp.mUserEditable = r.readBoolean(wireType, vp.mUserEditable);
+                    break;
+                case P_AUTH:
+                    vp.mAuth = r.readString(wireType, vp.mAuth);
+                    break;
+                case P_X509_AUTH_TYPE:
+                    vp.mX509AuthType = r.readInt(wireType, vp.mX509AuthType);
+                    break;
+                case P_X509_USERNAME_FIELD:
+                    vp.mx509UsernameField = r.readString(wireType, vp.mx509UsernameField);
+                    break;
+                case P_ALLOW_LOCAL_LAN:
+                    vp.mAllowLocalLAN = r.readBoolean(wireType, vp.mAllowLocalLAN);
+                    break;
+                case P_EXCLUDED_ROUTES:
+                    vp.mExcludedRoutes = r.readString(wireType, vp.mExcludedRoutes);
+                    break;
+                case P_EXCLUDED_ROUTESV6:
+                    vp.mExcludedRoutesv6 = r.readString(wireType, vp.mExcludedRoutesv6);
+                    break;
+                case P_MSSFIX:
+                    vp.mMssFix = r.readInt(wireType, vp.mMssFix);
+                    break;
+                case P_CONNECTIONS:
+                    if (wireType == WIRE_NULL) {
+                        vp.mConnections = null;
+                    } else {
+                        Reader list = r.readNested(wireType);
+                        Connection[] connections = new Connection[list.readCount()];
+                        for (int i = 0; i < connections.length; i++)
+                            connections[i] = decodeConnection(list.readNested(WIRE_BYTES));
+                        vp.mConnections = connections;
+                    }
+                    break;
+                case P_REMOTE_RANDOM:
+                    vp.mRemoteRandom = r.readBoolean(wireType, vp.mRemoteRandom);
+                    break;
+                case P_ALLOWED_APPS_VPN:
+                    if (wireType == WIRE_NULL) {
+                        vp.mAllowedAppsVpn = null;
+                    } else {
+                        Reader list = r.readNested(wireType);
+                        int count = list.readCount();
+                        HashSet<String> apps = new HashSet<>();
+                        for (int i = 0; i < count; i++)
+                            apps.add(list.readString(WIRE_BYTES, null));
+                        vp.mAllowedAppsVpn = apps;
+                    }
+                    break;
+                case P_ALLOWED_APPS_VPN_ARE_DISALLOWED:
+                    vp.mAllowedAppsVpnAreDisallowed = r.readBoolean(wireType, vp.mAllowedAppsVpnAreDisallowed);
+                    break;
+                case P_ALLOW_APP_VPN_BYPASS:
+                    vp.mAllowAppVpnBypass = r.readBoolean(wireType, vp.mAllowAppVpnBypass);
+                    break;
+                case P_CRL_FILENAME:
+                    vp.mCrlFilename = r.readString(wireType, vp.mCrlFilename);
+                    break;
+                case P_PROFILE_CREATOR:
+                    vp.mProfileCreator = r.readString(wireType, vp.mProfileCreator);
+                    break;
+                case P_EXTERNAL_AUTHENTICATOR:
+                    vp.mExternalAuthenticator = r.readString(wireType, vp.mExternalAuthenticator);
+                    break;
+                case P_AUTH_RETRY:
+                    vp.mAuthRetry = r.readInt(wireType, vp.mAuthRetry);
+                    break;
+                case P_TUN_MTU:
+                    vp.mTunMtu = r.readInt(wireType, vp.mTunMtu);
+                    break;
+                case P_PUSH_PEER_INFO:
+                    vp.mPushPeerInfo = r.readBoolean(wireType, vp.mPushPeerInfo);
+                    break;
+                case P_VERSION:
+                    vp.mVersion = r.readInt(wireType, vp.mVersion);
+                    break;
+                case P_LAST_USED:
+                    vp.mLastUsed = r.readLong(wireType, vp.mLastUsed);
+                    break;
+                case P_IMPORTED_PROFILE_HASH:
+                    vp.importedProfileHash = r.readString(wireType, vp.importedProfileHash);
+                    break;
+                case P_SERVER_NAME:
+                    vp.mServerName = r.readString(wireType, vp.mServerName);
+                    break;
+                case P_SERVER_PORT:
+                    vp.mServerPort = r.readString(wireType, vp.mServerPort);
+                    break;
+                case P_USE_UDP:
+                    vp.mUseUdp = r.readBoolean(wireType, vp.mUseUdp);
+                    break;
+                case P_TEMPORARY_PROFILE:
+                    vp.mTemporaryProfile = r.readBoolean(wireType, vp.mTemporaryProfile);
+                    break;
+                case P_UUID:
+                    vp.setUUID(parseUUID(r.readString(wireType, null)));
+                    break;
+                case P_PROFILE_VERSION:
+                    vp.setProfileVersion(r.readInt(wireType, vp.getProfileVersion()));
+                    break;
+                case P_BLOCK_UNUSED_ADDRESS_FAMILIES:
+                    vp.mBlockUnusedAddressFamilies = r.readBoolean(wireType, vp.mBlockUnusedAddressFamilies);
+                    break;
+                default:
+                    r.skip(wireType);
+            }
+        }
+        return vp;
+    }
+
+    private static Connection decodeConnection(Reader r) throws IOException {
+        Connection conn = new Connection();
+        while (r.hasMore()) {
+            int tag = (int) r.readVarLong();
+            int field = tag >>> 3;
+            int wireType = tag & 7;
+            switch (field) {
+                case C_SERVER_NAME:
+                    conn.mServerName = r.readString(wireType, conn.mServerName);
+                    break;
+                case C_SERVER_PORT:
+                    conn.mServerPort = r.readString(wireType, conn.mServerPort);
+                    break;
+                case C_USE_UDP:
+                    conn.mUseUdp = r.readBoolean(wireType, conn.mUseUdp);
+                    break;
+                case C_CUSTOM_CONFIGURATION:
+                    conn.mCustomConfiguration = r.readString(wireType, conn.mCustomConfiguration);
+                    break;
+                case C_USE_CUSTOM_CONFIG:
+                    conn.mUseCustomConfig = r.readBoolean(wireType, conn.mUseCustomConfig);
+                    break;
+                case C_ENABLED:
+                    conn.mEnabled = r.readBoolean(wireType, conn.mEnabled);
+                    break;
+                case C_CONNECT_TIMEOUT:
+                    conn.mConnectTimeout = r.readInt(wireType, conn.mConnectTimeout);
+                    break;
+                case C_PROXY_TYPE:
+                    String proxyType = r.readString(wireType, null);
+                    conn.mProxyType = null;
+                    // A proxy type added by a newer version is read as no proxy
+                    for (Connection.ProxyType type : Connection.ProxyType.values()) {
+                        if (type.name().equals(proxyType))
+                            conn.mProxyType = type;
+                    }
+                    if (proxyType != null && conn.mProxyType == null)
+                        conn.mProxyType = Connection.ProxyType.NONE;
+                    break;
+                case C_PROXY_NAME:
+                    conn.mProxyName = r.readString(wireType, conn.mProxyName);
+                    break;
+                case C_PROXY_PORT:
+                    conn.mProxyPort = r.readString(wireType, conn.mProxyPort);
+                    break;
+                case C_USE_PROXY_AUTH:
+                    conn.mUseProxyAuth = r.readBoolean(wireType, conn.mUseProxyAuth);
+                    break;
+                case C_PROXY_AUTH_USER:
+                    conn.mProxyAuthUser = r.readString(wireType, conn.mProxyAuthUser);
+                    break;
+                case C_PROXY_AUTH_PASSWORD:
+                    conn.mProxyAuthPassword = r.readString(wireType, conn.mProxyAuthPassword);
+                    break;
+                default:
+                    r.skip(wireType);
+            }
+        }
+        return conn;
+    }
+
+    /**
+     * Reads only uuid, name, version and last use, all other fields are skipped without
+     * decoding them
+     */
+    public static Summary decodeSummary(byte[] data) throws IOException {
+        Reader r = openReader(data);
+        UUID uuid = null;
+        String name = null;
+        int version = 0;
+        long lastUsed = 0;
+        for (int tag = r.readTag(); tag != TAG_END; tag = r.readTag()) {
+            int field = tag >>> 3;
+            int wireType = tag & 7;
+            switch (field) {
+                case P_UUID:
+                    uuid = parseUUID(r.readString(wireType, null));
+                    break;
+                case P_NAME:
+                    name = r.readString(wireType, null);
+                    break;
+                case P_VERSION:
+                    version = r.readInt(wireType, version);
+                    break;
+                case P_LAST_USED:
+                    lastUsed = r.readLong(wireType, lastUsed);
+                    break;
+                default:
+                    r.skip(wireType);
+            }
+        }
+        return new Summary(uuid, name, version, lastUsed);
+    }
+
+    private static Reader openReader(byte[] data) throws IOException {
+        if (!isEncoded(data))
+            throw new IOException("Not an encoded VPN profile");
+        Reader r = new Reader(data, MAGIC.length, data.length);
+        long format = r.readVarLong();
+        if (format > FORMAT_VERSION)
+            throw new IOException(String.format(Locale.US, "VPN profile format %d is not supported", format));
+        return r;
+    }
+
+    private static UUID parseUUID(String uuid) throws IOException {
+        if (uuid == null)
+            return null;
+        try {
+            return UUID.fromString(uuid);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid profile UUID " + uuid);
+        }
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static class Writer {
+        final ByteArrayOutputStream mOut;
+
+        Writer(int size) {
+            mOut = new ByteArrayOutputStream(size);
+        }
+
+        void writeVarLong(long v) {
+            while ((v & ~0x7fL) != 0) {
+                mOut.write((int) ((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            mOut.write((int) v);
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarLong(bytes.length);
+            mOut.write(bytes, 0, bytes.length);
+        }
+
+        void putLong(int field, long v) {
+            writeVarLong(field << 3 | WIRE_VARINT);
+            writeVarLong(zigzag(v));
+        }
+
+        void putInt(int field, int v) {
+            putLong(field, v);
+        }
+
+        void putBoolean(int field, boolean v) {
+            putLong(field, v ? 1 : 0);
+        }
+
+        void putNull(int field) {
+            writeVarLong(field << 3 | WIRE_NULL);
+        }
+
+        void putBytes(int field, byte[] bytes) {
+            writeVarLong(field << 3 | WIRE_BYTES);
+            writeBytes(bytes);
+        }
+
+        void putString(int field, String s) {
+            if (s == null)
+                putNull(field);
+            else
+                putBytes(field, s.getBytes(UTF_8));
+        }
+    }
+
+    private static class Reader {
+        private final byte[] mData;
+        private final int mEnd;
+        private int mPos;
+
+        Reader(byte[] data, int start, int end) {
+            mData = data;
+            mPos = start;
+            mEnd = end;
+        }
+
+        boolean hasMore() {
+            return mPos < mEnd;
+        }
+
+        int readTag() throws IOException {
+            if (!hasMore())
+                throw new IOException("Truncated VPN profile");
+            return (int) readVarLong();
+        }
+
+        long readVarLong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (mPos >= mEnd)
+                    throw new IOException("Truncated VPN profile");
+                byte b = mData[mPos++];
+                v |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return v;
+            }
+            throw new IOException("Malformed VPN profile");
+        }
+
+        int readCount() throws IOException {
+            long count = readVarLong();
+            // Every element takes at least one byte
+            if (count < 0 || count > mEnd - mPos)
+                throw new IOException("Malformed VPN profile");
+            return (int) count;
+        }
+
+        long readLong(int wireType, long defaultValue) throws IOException {
+            if (wireType != WIRE_VARINT) {
+                skip(wireType);
+                return defaultValue;
+            }
+            return unzigzag(readVarLong());
+        }
+
+        int readInt(int wireType, int defaultValue) throws IOException {
+            return (int) readLong(wireType, defaultValue);
+        }
+
+        boolean readBoolean(int wireType, boolean defaultValue) throws IOException {
+            return readLong(wireType, defaultValue ? 1 : 0) != 0;
+        }
+
+        String readString(int wireType, String defaultValue) throws IOException {
+            if (wireType == WIRE_NULL)
+                return null;
+            if (wireType != WIRE_BYTES) {
+                skip(wireType);
+                return defaultValue;
+            }
+            int length = readCount();
+            String s = new String(mData, mPos, length, UTF_8);
+            mPos += length;
+            return s;
+        }
+
+        Reader readNested(int wireType) throws IOException {
+            if (wireType != WIRE_BYTES)
+                throw new IOException("Malformed VPN profile");
+            int length = readCount();
+            Reader nested = new Reader(mData, mPos, mPos + length);
+            mPos += length;
+            return nested;
+        }
+
+        void skip(int wireType) throws IOException {
+            switch (wireType) {
+                case WIRE_VARINT:
+                    readVarLong();
+                    break;
+                case WIRE_NULL:
+                    break;
+                case WIRE_BYTES:
+                    int length = readCount();
+                    mPos += length;
+                    break;
+                default:
+                    throw new IOException("Unknown wire type " + wireType + " in VPN profile");
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+import de.blinkt.openvpn.VpnProfile;
+
+/**
+ * Uuid, name and version of every profile file together with the modification time and size
+ * the file had when they were read. Lets {@link ProfileManager} list profiles and check versions
+ * without decoding the profiles, only files that changed since have to be read again.
+ */
+class ProfileIndex {
+    private static final int INDEX_VERSION = 1;
+
+    static class Entry {
+        final String uuid;
+        final String name;
+        final int version;
+        // Last modification and size of the profile file, NOT_ON_DISK if it has not been written
+        final long mtime;
+        final long length;
+
+        static final long NOT_ON_DISK = -1;
+
+        Entry(String uuid, String name, int version, long mtime, long length) {
+            this.uuid = uuid;
+            this.name = name;
+            this.version = version;
+            this.mtime = mtime;
+            this.length = length;
+        }
+
+        Entry(VpnProfile vp, File file) {
+            this(vp.getUUIDString(), vp.mName, vp.mVersion,
+                    file.exists() ? file.lastModified() : NOT_ON_DISK,
+                    file.exists() ? file.length() : NOT_ON_DISK);
+        }
+
+        boolean isCurrent(File file) {
+            if (length == NOT_ON_DISK)
+                return !file.exists();
+            return file.lastModified() == mtime && file.length() == length;
+        }
+    }
+
+    // Keyed by the profile file name without .vp
+    final HashMap<String, Entry> entries = new HashMap<>();
+
+    /**
+     * @return the index stored in file, an empty one if it does not exist or cannot be read
+     */
+    static ProfileIndex load(File file) {
+        ProfileIndex index = new ProfileIndex();
+        if (!file.exists())
+            return index;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != INDEX_VERSION)
+                return index;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String vpnentry = in.readUTF();
+                String uuid = in.readUTF();
+                String name = in.readBoolean() ? in.readUTF() : null;
+                int version = in.readInt();
+                long mtime = in.readLong();
+                long length = in.readLong();
+                index.entries.put(vpnentry, new Entry(uuid, name, version, mtime, length));
+            }
+        } catch (IOException e) {
+            // The profiles are simply read again
+            index.entries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return index;
+    }
+
+    void save(File file) {
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream(64 + entries.size() * 128);
+            DataOutputStream out = new DataOutputStream(data);
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(entries.size());
+            for (HashMap.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeUTF(entry.uuid);
+                out.writeBoolean(entry.name != null);
+                if (entry.name != null)
+                    out.writeUTF(entry.name);
+                out.writeInt(entry.version);
+                out.writeLong(entry.mtime);
+                out.writeLong(entry.length);
+            }
+            out.flush();
+            // A torn index would be read as empty and every profile would be decoded again
+            ProfileWriter.writeAtomically(file, data.toByteArray());
+        } catch (IOException e) {
+            VpnStatus.logException("Saving VPN profile index", e);
+        }
+    }
+}
@@ -5,18 +5,25 @@
 
 package de.blinkt.openvpn.core;
 
-import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
-
+import android.os.FileObserver;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
@@ -27,11 +34,16 @@ public class ProfileManager {
 
     private static final String LAST_CONNECTED_PROFILE = "lastConnectedProfile";
     private static final String TEMPORARY_PROFILE_FILENAME = "temporary-vpn-profile";
+    private static final String INDEX_FILENAME = "vpn-profile-index.dat";
     private static ProfileManager instance;
 
     private static VpnProfile mLastConnectedVpn = null;
+    // Profiles that have been decoded, every profile is listed in mIndex
     private HashMap<String, VpnProfile> profiles = new HashMap<>();
+    private ProfileIndex mIndex;
+    private final Context mContext;
     private static VpnProfile tmpprofile = null;
+    private static final ProfileWriter mWriter = new ProfileWriter();
 
 
     private static VpnProfile get(String key) {
@@ -40,18 +52,20 @@ public class ProfileManager {
 
         if (instance == null)
             return null;
-        return instance.profiles.get(key);
+        return instance.getProfile(key);
 
     }
 
 
-    private ProfileManager() {
+    private ProfileManager(Context context) {
+        mContext = context.getApplicationContext();
+        mIndex = ProfileIndex.load(mContext.getFileStreamPath(INDEX_FILENAME));
     }
 
     private static void checkInstance(Context context) {
         if (instance == null) {
-            instance = new ProfileManager();
-            instance.loadVPNList(context);
+            instance = new ProfileManager(context);
+            instance.refreshIndex();
         }
     }
 
@@ -95,23 +109,42 @@ public class ProfileManager {
     }
 
 
-    public Collection<VpnProfile> getProfiles() {
-        return profiles.values();
+    /**
+     * Decodes all profiles that have not been used yet, prefer {@link #get(Context, String)}
+     */
+    public synchronized Collection<VpnProfile> getProfiles() {
+        for (String vpnentry : mIndex.entries.keySet()) {
+            if (!vpnentry.equals(TEMPORARY_PROFILE_FILENAME))
+                getProfile(vpnentry);
+        }
+        return new ArrayList<>(profiles.values());
     }
 
-    public VpnProfile getProfileByName(String name) {
-        for (VpnProfile vpnp : profiles.values()) {
-            if (vpnp.getName().equals(name)) {
-                return vpnp;
+    public synchronized VpnProfile getProfileByName(String name) {
+        for (Map.Entry<String, ProfileIndex.Entry> e : mIndex.entries.entrySet()) {
+            String vpnentry = e.getKey();
+            if (vpnentry.equals(TEMPORARY_PROFILE_FILENAME))
+                continue;
+
+            // Only decode the profile with the name
+            VpnProfile vpnp = profiles.get(vpnentry);
+            String profileName = vpnp != null ? vpnp.getName() : e.getValue().name;
+            if (TextUtils.isEmpty(profileName))
+                profileName = "No profile name";
+            if (profileName.equals(name)) {
+                return getProfile(vpnentry);
             }
         }
         return null;
     }
 
-    public void saveProfileList(Context context) {
+    public synchronized void saveProfileList(Context context) {
+        HashSet<String> vlist = new HashSet<>(mIndex.entries.keySet());
+        vlist.remove(TEMPORARY_PROFILE_FILENAME);
+
         SharedPreferences sharedprefs = Preferences.getSharedPreferencesMulti(PREFS_NAME, context);
         Editor editor = sharedprefs.edit();
-        editor.putStringSet("vpnlist", profiles.keySet());
+        editor.putStringSet("vpnlist", vlist);
 
         // For reasing I do not understand at all
         // Android saves my prefs file only one time
@@ -122,8 +155,10 @@ public class ProfileManager {
 
     }
 
-    public void addProfile(VpnProfile profile) {
-        profiles.put(profile.getUUID().toString(), profile);
+    public synchronized void addProfile(VpnProfile profile) {
+        String vpnentry = profile.getUUID().toString();
+        profiles.put(vpnentry, profile);
+        mIndex.entries.put(vpnentry, new ProfileIndex.Entry(profile, mContext.getFileStreamPath(vpnentry + ".vp")));
 
     }
 
@@ -145,74 +180,297 @@ public class ProfileManager {
 
         if (updateVersion)
             profile.mVersion += 1;
-        ObjectOutputStream vpnFile;
 
-        String filename = profile.getUUID().toString() + ".vp";
+        String vpnentry = profile.getUUID().toString();
         if (isTemporary)
-            filename = TEMPORARY_PROFILE_FILENAME + ".vp";
+            vpnentry = TEMPORARY_PROFILE_FILENAME;
+
+        // Encode now, the profile may change before it is written
+        final String entry = vpnentry;
+        final String uuid = profile.getUUIDString();
+        final String name = profile.mName;
+        final int version = profile.mVersion;
+        mWriter.write(context.getFileStreamPath(vpnentry + ".vp"), ProfileCodec.encode(profile), new Runnable() {
+            @Override
+            public void run() {
+                if (instance != null)
+                    instance.updateIndex(entry, uuid, name, version);
+            }
+        });
+    }
 
-        try {
-            vpnFile = new ObjectOutputStream(context.openFileOutput(filename, Activity.MODE_PRIVATE));
+    /**
+     * Waits until all profiles saved so far have been written, e.g. before connecting
+     *
+     * @return false if that did not happen within timeoutMillis
+     */
+    public static boolean flushProfiles(long timeoutMillis) {
+        return mWriter.flush(timeoutMillis);
+    }
+
+    /**
+     * @return the writer that saves profiles, for its write latency statistics
+     */
+    public static ProfileWriter getProfileWriter() {
+        return mWriter;
+    }
 
-            vpnFile.writeObject(profile);
-            vpnFile.flush();
+    private synchronized void updateIndex(String vpnentry, String uuid, String name, int version) {
+        // Saving a profile does not add it to the list
+        if (!vpnentry.equals(TEMPORARY_PROFILE_FILENAME) && !mIndex.entries.containsKey(vpnentry))
+            return;
+        File file = mContext.getFileStreamPath(vpnentry + ".vp");
+        mIndex.entries.put(vpnentry, new ProfileIndex.Entry(uuid, name, version, file.lastModified(), file.length()));
+        mIndex.save(mContext.getFileStreamPath(INDEX_FILENAME));
+    }
+
+    private static void writeProfileFile(Context context, VpnProfile profile, String filename) throws IOException {
+        ProfileWriter.writeAtomically(context.getFileStreamPath(filename), ProfileCodec.encode(profile));
+    }
+
+    private static byte[] readProfileFile(Context context, String filename) throws IOException {
+        FileInputStream vpnFile = context.openFileInput(filename);
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream(8192);
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = vpnFile.read(buf)) > 0)
+                data.write(buf, 0, len);
+            return data.toByteArray();
+        } finally {
             vpnFile.close();
-        } catch (IOException e) {
-            VpnStatus.logException("saving VPN profile", e);
-            throw new RuntimeException(e);
         }
     }
 
-
-    private void loadVPNList(Context context) {
-        profiles = new HashMap<>();
-        SharedPreferences listpref = Preferences.getSharedPreferencesMulti(PREFS_NAME, context);
-        Set<String> vlist = listpref.getStringSet("vpnlist", null);
-        if (vlist == null) {
-            vlist = new HashSet<>();
+    /**
+     * Reads a profile from a file written by ObjectOutputStream before profiles were written
+     * with {@link ProfileCodec}
+     */
+    private static VpnProfile readSerializedProfile(byte[] data) throws IOException, ClassNotFoundException {
+        ObjectInputStream vpnfile = new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            return (VpnProfile) vpnfile.readObject();
+        } finally {
+            vpnfile.close();
         }
+    }
+
+
+    /**
+     * Brings the index up to date with the profile files. Only files that changed since they
+     * were indexed are read, and of those only uuid, name and version are decoded.
+     */
+    private synchronized void refreshIndex() {
+        SharedPreferences listpref = Preferences.getSharedPreferencesMulti(PREFS_NAME, mContext);
+        Set<String> vlist = new HashSet<>();
+        Set<String> savedList = listpref.getStringSet("vpnlist", null);
+        if (savedList != null)
+            vlist.addAll(savedList);
         // Always try to load the temporary profile
         vlist.add(TEMPORARY_PROFILE_FILENAME);
+        // Profiles that have been added but not saved yet
+        for (Map.Entry<String, ProfileIndex.Entry> e : mIndex.entries.entrySet()) {
+            if (e.getValue().length == ProfileIndex.Entry.NOT_ON_DISK)
+                vlist.add(e.getKey());
+        }
 
+        ProfileIndex index = new ProfileIndex();
+        boolean changed = false;
         for (String vpnentry : vlist) {
-            ObjectInputStream vpnfile=null;
-            try {
-                 vpnfile = new ObjectInputStream(context.openFileInput(vpnentry + ".vp"));
-                VpnProfile vp = ((VpnProfile) vpnfile.readObject());
-
-                // Sanity check
-                if (vp == null || vp.mName == null || vp.getUUID() == null)
-                    continue;
-
-                vp.upgradeProfile();
-                if (vpnentry.equals(TEMPORARY_PROFILE_FILENAME)) {
-                    tmpprofile = vp;
-                } else {
-                    profiles.put(vp.getUUID().toString(), vp);
+            File file = mContext.getFileStreamPath(vpnentry + ".vp");
+            ProfileIndex.Entry entry = mIndex.entries.get(vpnentry);
+            if (entry == null || !entry.isCurrent(file)) {
+                entry = readIndexEntry(vpnentry, file);
+                changed = true;
+                forgetIfOutdated(vpnentry, entry, file);
+            }
+            if (entry != null)
+                index.entries.put(vpnentry, entry);
+        }
+
+        changed |= index.entries.size() != mIndex.entries.size();
+        profiles.keySet().retainAll(index.entries.keySet());
+        mIndex = index;
+        if (changed)
+            mIndex.save(mContext.getFileStreamPath(INDEX_FILENAME));
+    }
+
+    /**
+     * Drops the decoded profile if the file now holds a different or newer profile. A decoded
+     * profile with a newer version has been saved but not been written yet.
+     */
+    private void forgetIfOutdated(String vpnentry, ProfileIndex.Entry entry, File file) {
+        boolean temporary = vpnentry.equals(TEMPORARY_PROFILE_FILENAME);
+        VpnProfile loaded = temporary ? tmpprofile : profiles.get(vpnentry);
+        if (loaded == null)
+            return;
+        boolean sameProfile = entry != null && entry.uuid.equals(loaded.getUUIDString());
+        if (sameProfile && entry.version <= loaded.mVersion)
+            return;
+        // Our pending write replaces the file, e.g. a new temporary profile while the file still
+        // holds the previous one. Only a newer version of the same profile is taken from the file.
+        if (!sameProfile && mWriter.hasPendingWrite(file))
+            return;
+
+        if (temporary)
+            tmpprofile = null;
+        else
+            profiles.remove(vpnentry);
+    }
+
+    private ProfileIndex.Entry readIndexEntry(String vpnentry, File file) {
+        if (!file.exists())
+            return null;
+
+        // Take the file state before reading, a change while reading is noticed next time
+        long mtime = file.lastModified();
+        long length = file.length();
+        try {
+            byte[] data = readProfileFile(mContext, vpnentry + ".vp");
+            if (!ProfileCodec.isEncoded(data)) {
+                // Profiles written by ObjectOutputStream have to be converted first
+                VpnProfile vp = loadProfile(vpnentry);
+                return vp == null ? null : new ProfileIndex.Entry(vp, file);
+            }
+
+            ProfileCodec.Summary summary = ProfileCodec.decodeSummary(data);
+            // Sanity check
+            if (summary.name == null || summary.uuid == null)
+                return null;
+            return new ProfileIndex.Entry(summary.uuid.toString(), summary.name, summary.version, mtime, length);
+        } catch (IOException e) {
+            if (!vpnentry.equals(TEMPORARY_PROFILE_FILENAME))
+                VpnStatus.logException("Loading VPN List", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the profile with the uuid, it is decoded when it is used for the first time
+     */
+    private synchronized VpnProfile getProfile(String uuid) {
+        if (uuid == null)
+            return null;
+
+        VpnProfile vp = profiles.get(uuid);
+        if (vp != null)
+            return vp;
+
+        ProfileIndex.Entry tmpEntry = mIndex.entries.get(TEMPORARY_PROFILE_FILENAME);
+        if (tmpEntry != null && tmpEntry.uuid.equals(uuid))
+            return loadProfile(TEMPORARY_PROFILE_FILENAME);
+        if (mIndex.entries.containsKey(uuid))
+            return loadProfile(uuid);
+        return null;
+    }
+
+    private VpnProfile loadProfile(String vpnentry) {
+        try {
+            byte[] data = readProfileFile(mContext, vpnentry + ".vp");
+            boolean serialized = !ProfileCodec.isEncoded(data);
+            VpnProfile vp = serialized ? readSerializedProfile(data) : ProfileCodec.decode(data);
+
+            // Sanity check
+            if (vp == null || vp.mName == null || vp.getUUID() == null)
+                return null;
+
+            vp.upgradeProfile();
+            if (vpnentry.equals(TEMPORARY_PROFILE_FILENAME)) {
+                tmpprofile = vp;
+            } else {
+                profiles.put(vp.getUUID().toString(), vp);
+            }
+
+            // Migrate once, the profile is still usable if that fails
+            if (serialized) {
+                try {
+                    writeProfileFile(mContext, vp, vpnentry + ".vp");
+                } catch (IOException e) {
+                    VpnStatus.logException("Converting VPN profile", e);
                 }
+            }
+            return vp;
 
+        } catch (IOException | ClassNotFoundException e) {
+            if (!vpnentry.equals(TEMPORARY_PROFILE_FILENAME))
+                VpnStatus.logException("Loading VPN List", e);
+            return null;
+        }
+    }
 
-            } catch (IOException | ClassNotFoundException e) {
-                if (!vpnentry.equals(TEMPORARY_PROFILE_FILENAME))
-                    VpnStatus.logException("Loading VPN List", e);
-            } finally {
-                if (vpnfile!=null) {
-                    try {
-                        vpnfile.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+    /**
+     * @return version of the profile in the index, -1 if it is not known
+     */
+    private synchronized int getIndexedVersion(String uuid) {
+        for (ProfileIndex.Entry entry : mIndex.entries.values()) {
+            if (entry.uuid.equals(uuid))
+                return entry.version;
+        }
+        return -1;
+    }
+
+    /**
+     * Waits until the profile with at least version has been written, possibly by another
+     * process. The index is refreshed whenever a profile file changes.
+     *
+     * @return the profile, an older version or null if that did not happen within timeoutMillis
+     */
+    private VpnProfile waitForProfile(String uuid, int version, long timeoutMillis) {
+        final Object lock = new Object();
+        final boolean[] changed = {false};
+        FileObserver observer = new FileObserver(mContext.getFilesDir().getPath(),
+                FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.DELETE) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (path == null || !path.endsWith(".vp"))
+                    return;
+                synchronized (lock) {
+                    changed[0] = true;
+                    lock.notifyAll();
                 }
             }
+        };
+        observer.startWatching();
+        try {
+            long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+            while (true) {
+                refreshIndex();
+                if (getIndexedVersion(uuid) >= version) {
+                    VpnProfile profile = get(uuid);
+                    if (profile != null && profile.mVersion >= version)
+                        return profile;
+                }
+
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0)
+                    return get(uuid);
+
+                synchronized (lock) {
+                    // Also look again after a while in case a notification got lost
+                    if (!changed[0])
+                        lock.wait(Math.min(remaining, 1000));
+                    changed[0] = false;
+                }
+            }
+        } catch (InterruptedException e) {
+            return get(uuid);
+        } finally {
+            observer.stopWatching();
         }
     }
 
 
     public void removeProfile(Context context, VpnProfile profile) {
         String vpnentry = profile.getUUID().toString();
-        profiles.remove(vpnentry);
-        saveProfileList(context);
-        context.deleteFile(vpnentry + ".vp");
+        // Not while holding the lock, a finished write updates the index
+        mWriter.cancel(context.getFileStreamPath(vpnentry + ".vp"));
+        synchronized (this) {
+            profiles.remove(vpnentry);
+            mIndex.entries.remove(vpnentry);
+            saveProfileList(context);
+            context.deleteFile(vpnentry + ".vp");
+            mIndex.save(mContext.getFileStreamPath(INDEX_FILENAME));
+        }
         if (mLastConnectedVpn == profile)
             mLastConnectedVpn = null;
 
@@ -222,25 +480,22 @@ public class ProfileManager {
         return get(context, profileUUID, 0, 10);
     }
 
+    /**
+     * @param tries how long to wait for the version in steps of 100 ms
+     */
     public static VpnProfile get(Context context, String profileUUID, int version, int tries) {
         checkInstance(context);
         VpnProfile profile = get(profileUUID);
-        int tried = 0;
-        while ((profile == null || profile.mVersion < version) && (tried++ < tries)) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException ignored) {
-            }
-            instance.loadVPNList(context);
-            profile = get(profileUUID);
-            int ver = profile == null ? -1 : profile.mVersion;
-        }
+        if (profile != null && profile.mVersion >= version)
+            return profile;
 
-        if (tried > 5)
+        long start = SystemClock.elapsedRealtime();
+        profile = instance.waitForProfile(profileUUID, version, tries * 100L);
+        long waited = SystemClock.elapsedRealtime() - start;
 
-        {
+        if (waited > 500) {
             int ver = profile == null ? -1 : profile.mVersion;
-            VpnStatus.logError(String.format(Locale.US, "Used x %d tries to get current version (%d/%d) of the profile", tried, ver, version));
+            VpnStatus.logError(String.format(Locale.US, "Waited %d ms to get current version (%d/%d) of the profile", waited, ver, version));
         }
         return profile;
     }
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+
+/**
+ * Writes profile files on a background thread so saving a profile does not block the caller.
+ * <p>
+ * Each file is written to a temporary file that is synced and then renamed over the profile, so
+ * a crash leaves the old or the new profile but never a truncated one. If a profile is saved again
+ * before the previous save has been written, only the newest data is written. {@link #flush}
+ * waits until everything saved before has been written. The time from saving a profile until it
+ * is on disk is kept as write latency.
+ */
+public class ProfileWriter implements Runnable {
+
+    private static class PendingWrite {
+        final File mFile;
+        byte[] mData;
+        Runnable mOnWritten;
+        // Oldest save that is only on disk once this write is done
+        final long mFirstSequence;
+        final long mQueuedNanos;
+
+        PendingWrite(File file, byte[] data, Runnable onWritten, long sequence) {
+            mFile = file;
+            mData = data;
+            mOnWritten = onWritten;
+            mFirstSequence = sequence;
+            mQueuedNanos = System.nanoTime();
+        }
+    }
+
+    // Guarded by this, in the order the files were first saved
+    private final LinkedHashMap<String, PendingWrite> mPending = new LinkedHashMap<>();
+    private PendingWrite mInProgress;
+    private long mSequence;
+    private Thread mThread;
+
+    private long mWrites;
+    private long mCoalesced;
+    private long mFailures;
+    private long mLatencySumNanos;
+    private long mMaxLatencyNanos;
+    private long mLastLatencyNanos;
+
+    ProfileWriter() {
+    }
+
+    /**
+     * Queues data to be written to file
+     *
+     * @param onWritten called on the writer thread once the data is on disk, may be null
+     */
+    synchronized void write(File file, byte[] data, Runnable onWritten) {
+        mSequence++;
+        PendingWrite pending = mPending.get(file.getPath());
+        if (pending != null) {
+            pending.mData = data;
+            pending.mOnWritten = onWritten;
+            mCoalesced++;
+            return;
+        }
+
+        mPending.put(file.getPath(), new PendingWrite(file, data, onWritten, mSequence));
+        if (mThread == null) {
+            mThread = new Thread(this, "ProfileWriter");
+            mThread.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Drops a queued write of file and waits if file is being written right now
+     */
+    synchronized void cancel(File file) {
+        // A flush may be waiting for nothing but this write
+        if (mPending.remove(file.getPath()) != null)
+            notifyAll();
+        try {
+            while (mInProgress != null && mInProgress.mFile.equals(file))
+                wait();
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * @return true if a write of file is queued or in progress
+     */
+    synchronized boolean hasPendingWrite(File file) {
+        return mPending.containsKey(file.getPath()) || (mInProgress != null && mInProgress.mFile.equals(file));
+    }
+
+    /**
+     * Waits until everything queued before this call has been written
+     *
+     * @return false if that did not happen within timeoutMillis
+     */
+    public synchronized boolean flush(long timeoutMillis) {
+        long barrier = mSequence;
+        long deadline = System.nanoTime() / 1000000 + timeoutMillis;
+        try {
+            while (isPending(barrier)) {
+                long remaining = deadline - System.nanoTime() / 1000000;
+                if (remaining <= 0)
+                    return false;
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            return !isPending(barrier);
+        }
+        return true;
+    }
+
+    private boolean isPending(long sequence) {
+        if (mInProgress != null && mInProgress.mFirstSequence <= sequence)
+            return true;
+        for (PendingWrite pending : mPending.values()) {
+            if (pending.mFirstSequence <= sequence)
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            PendingWrite write;
+            synchronized (this) {
+                try {
+                    while (mPending.isEmpty())
+                        wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Iterator<PendingWrite> it = mPending.values().iterator();
+                write = it.next();
+                it.remove();
+                mInProgress = write;
+            }
+
+            boolean success = false;
+            try {
+                writeAtomically(write.mFile, write.mData);
+                success = true;
+            } catch (IOException e) {
+                VpnStatus.logException("saving VPN profile", e);
+            }
+            if (success && write.mOnWritten != null)
+                write.mOnWritten.run();
+
+            synchronized (this) {
+                long latency = System.nanoTime() - write.mQueuedNanos;
+                if (success) {
+                    mWrites++;
+                    mLatencySumNanos += latency;
+                    mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latency);
+                    mLastLatencyNanos = latency;
+                } else {
+                    mFailures++;
+                }
+                mInProgress = null;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Replaces file with data, file has either the old or the new content if this fails or
+     * the process dies
+     */
+    static void writeAtomically(File file, byte[] data) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file))
+                throw new IOException("Could not rename " + tmp + " to " + file);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+    }
+
+    public synchronized long getWriteCount() {
+        return mWrites;
+    }
+
+    /**
+     * @return number of saves that were merged into a save of the same profile that had not
+     * been written yet
+     */
+    public synchronized long getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    public synchronized long getFailureCount() {
+        return mFailures;
+    }
+
+    public synchronized double getMeanLatencyMs() {
+        return mWrites == 0 ? 0 : mLatencySumNanos / 1e6 / mWrites;
+    }
+
+    public synchronized double getMaxLatencyMs() {
+        return mMaxLatencyNanos / 1e6;
+    }
+
+    public synchronized double getLastLatencyMs() {
+        return mLastLatencyNanos / 1e6;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "Profile writes: %d written (%d coalesced, %d failed), latency last %.1f ms, mean %.1f ms, max %.1f ms",
+                mWrites, mCoalesced, mFailures, getLastLatencyMs(), getMeanLatencyMs(), getMaxLatencyMs());
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+/**
+ * Sum and rate of the bytes seen in a sliding time window.
+ * <p>
+ * The window is split into a fixed ring of buckets. Adding bytes touches at most the buckets of
+ * one window and a running sum, buckets that fell out of the window are cleared when time moves
+ * on, so both adding and querying take constant time and nothing is allocated. Bytes that were
+ * transferred over a longer period can be spread over the buckets of that period, so the rate
+ * stays correct if samples arrive in varying intervals. Optionally an exponentially weighted
+ * moving average of the rate is kept as well.
+ */
+public class RateEstimator {
+    private final long mWindow;
+    private final long mBucketWidth;
+    private final long[] mBuckets;
+
+    // Guarded by this
+    private long mWindowTotal;
+    // Absolute number (time / bucket width) of the newest bucket
+    private long mCurrentBucket;
+    private long mStart;
+
+    private long mHalfLife;
+    private double mSmoothedRate;
+    private long mLastAdd;
+    private long mPendingBytes;
+
+    /**
+     * @param windowMillis length of the window
+     * @param buckets      number of buckets, the window moves in steps of windowMillis / buckets
+     */
+    public RateEstimator(long windowMillis, int buckets) {
+        if (buckets <= 0 || windowMillis < buckets)
+            throw new IllegalArgumentException("Invalid window " + windowMillis + "ms with " + buckets + " buckets");
+        mBucketWidth = windowMillis / buckets;
+        mWindow = mBucketWidth * buckets;
+        mBuckets = new long[buckets];
+    }
+
+    /**
+     * Also keep an exponentially weighted moving average of the rate, see {@link #getSmoothedRate()}
+     *
+     * @param halfLifeMillis time after which a sample has lost half of its weight, 0 to disable
+     */
+    public synchronized void setSmoothing(long halfLifeMillis) {
+        mHalfLife = halfLifeMillis;
+    }
+
+    public long getWindowMillis() {
+        return mWindow;
+    }
+
+    /**
+     * Forgets everything, the rate is computed over the time since now until the window is full
+     */
+    public synchronized void reset(long now) {
+        for (int i = 0; i < mBuckets.length; i++)
+            mBuckets[i] = 0;
+        mWindowTotal = 0;
+        mCurrentBucket = now / mBucketWidth;
+        mStart = now;
+        mLastAdd = now;
+        mSmoothedRate = 0;
+        mPendingBytes = 0;
+    }
+
+    public void add(long now, long bytes) {
+        add(now, bytes, 0);
+    }
+
+    /**
+     * Adds bytes that have been transferred evenly over the durationMillis before now. The part
+     * that lies before the window is not counted.
+     */
+    public synchronized void add(long now, long bytes, long durationMillis) {
+        advance(now);
+        if (durationMillis <= mBucketWidth) {
+            mBuckets[(int) (mCurrentBucket % mBuckets.length)] += bytes;
+            mWindowTotal += bytes;
+        } else {
+            long start = now - durationMillis;
+            long firstBucket = Math.max(start / mBucketWidth, mCurrentBucket - mBuckets.length + 1);
+            // Bytes up to the beginning of the bucket, rounded the same way for every boundary
+            long before = bytes * (Math.max(start, firstBucket * mBucketWidth) - start) / durationMillis;
+            for (long bucket = firstBucket; bucket <= mCurrentBucket; bucket++) {
+                long end = Math.min(now, (bucket + 1) * mBucketWidth);
+                long upToEnd = bytes * (end - start) / durationMillis;
+                mBuckets[(int) (bucket % mBuckets.length)] += upToEnd - before;
+                mWindowTotal += upToEnd - before;
+                before = upToEnd;
+            }
+        }
+
+        if (mHalfLife > 0) {
+            mPendingBytes += bytes;
+            long dt = now - mLastAdd;
+            if (dt > 0) {
+                double sample = mPendingBytes * 1000.0 / dt;
+                double weight = 1 - Math.pow(0.5, (double) dt / mHalfLife);
+                mSmoothedRate += weight * (sample - mSmoothedRate);
+                mPendingBytes = 0;
+                mLastAdd = now;
+            }
+        }
+    }
+
+    /**
+     * @return bytes added within the window
+     */
+    public synchronized long getWindowTotal(long now) {
+        advance(now);
+        return mWindowTotal;
+    }
+
+    /**
+     * @return bytes per second within the window, or within the time since {@link #reset} if
+     * that is shorter. Only exact if the bytes were added with the duration they cover.
+     */
+    public synchronized long getRate(long now) {
+        advance(now);
+        // The window starts with its oldest bucket, the newest one is only filled up to now
+        long windowStart = (mCurrentBucket - mBuckets.length + 1) * mBucketWidth;
+        long span = Math.max(1, now - Math.max(mStart, windowStart));
+        return mWindowTotal * 1000 / span;
+    }
+
+    /**
+     * @return moving average of the rate in bytes per second, 0 if smoothing is disabled
+     */
+    public synchronized long getSmoothedRate() {
+        return (long) mSmoothedRate;
+    }
+
+    private void advance(long now) {
+        long bucket = now / mBucketWidth;
+        if (bucket <= mCurrentBucket)
+            return;
+
+        // Clear the buckets that dropped out of the window, at most the whole ring
+        long steps = Math.min(bucket - mCurrentBucket, mBuckets.length);
+        for (long i = 1; i <= steps; i++) {
+            int slot = (int) ((mCurrentBucket + i) % mBuckets.length);
+            mWindowTotal -= mBuckets[slot];
+            mBuckets[slot] = 0;
+        }
+        mCurrentBucket = bucket;
+    }
+}
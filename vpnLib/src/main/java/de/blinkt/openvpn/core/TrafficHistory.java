@@ -8,14 +8,18 @@ package de.blinkt.openvpn.core;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import java.util.HashSet;
+import java.io.ByteArrayOutputStream;
 import java.util.LinkedList;
-import java.util.Vector;
 
 import static java.lang.Math.max;
 
 /**
  * Created by arne on 23.05.17.
+ * <p>
+ * Each resolution is stored in primitive columns of a circular buffer. A new second datapoint
+ * is also added to the minutes when a new minute starts and likewise for hours, datapoints
+ * older than {@link #PERIODS_TO_KEEP} periods of the next resolution are dropped from the
+ * front. For parcels the history is delta and varint encoded, see {@link #getEncoded()}.
  */
 
 public class TrafficHistory implements Parcelable {
@@ -23,23 +27,37 @@ public class TrafficHistory implements Parcelable {
     public static final long PERIODS_TO_KEEP = 5;
     public static final int TIME_PERIOD_MINTUES = 60 * 1000;
     public static final int TIME_PERIOD_HOURS = 3600 * 1000;
-    private LinkedList<TrafficDatapoint> trafficHistorySeconds = new LinkedList<>();
-    private LinkedList<TrafficDatapoint> trafficHistoryMinutes = new LinkedList<>();
-    private LinkedList<TrafficDatapoint> trafficHistoryHours = new LinkedList<>();
 
-    private TrafficDatapoint lastSecondUsedForMinute;
-    private TrafficDatapoint lastMinuteUsedForHours;
+    private static final int ENCODING_VERSION = 1;
+
+    private final Series trafficHistorySeconds = new Series();
+    private final Series trafficHistoryMinutes = new Series();
+    private final Series trafficHistoryHours = new Series();
+
+    // Timestamps of the datapoints last added to the minutes and hours
+    private long lastSecondUsedForMinute;
+    private long lastMinuteUsedForHours;
 
     public TrafficHistory() {
 
     }
 
     protected TrafficHistory(Parcel in) {
-        in.readList(trafficHistorySeconds, getClass().getClassLoader());
-        in.readList(trafficHistoryMinutes, getClass().getClassLoader());
-        in.readList(trafficHistoryHours, getClass().getClassLoader());
-        lastSecondUsedForMinute = in.readParcelable(getClass().getClassLoader());
-        lastMinuteUsedForHours = in.readParcelable(getClass().getClassLoader());
+        this(in.createByteArray());
+    }
+
+    /**
+     * @param encoded bytes returned by {@link #getEncoded()}
+     */
+    public TrafficHistory(byte[] encoded) {
+        int[] pos = {0};
+        if (encoded == null || encoded.length == 0 || readVarLong(encoded, pos) != ENCODING_VERSION)
+            return;
+        lastSecondUsedForMinute = readVarLong(encoded, pos);
+        lastMinuteUsedForHours = readVarLong(encoded, pos);
+        trafficHistorySeconds.decode(encoded, pos);
+        trafficHistoryMinutes.decode(encoded, pos);
+        trafficHistoryHours.decode(encoded, pos);
     }
 
     public static final Creator<TrafficHistory> CREATOR = new Creator<TrafficHistory>() {
@@ -54,28 +72,18 @@ public class TrafficHistory implements Parcelable {
         }
     };
 
-    public LastDiff getLastDiff(TrafficDatapoint tdp) {
-
-        TrafficDatapoint lasttdp;
-
-
-        if (trafficHistorySeconds.size() == 0)
-            lasttdp = new TrafficDatapoint(0, 0, System.currentTimeMillis());
-
-        else
-            lasttdp = trafficHistorySeconds.getLast();
-
-        if (tdp == null) {
-            tdp = lasttdp;
-            if (trafficHistorySeconds.size() < 2)
-                lasttdp = tdp;
-            else {
-                trafficHistorySeconds.descendingIterator().next();
-                tdp = trafficHistorySeconds.descendingIterator().next();
-            }
+    public synchronized LastDiff getLastDiff(TrafficDatapoint tdp) {
+        long lastIn = 0, lastOut = 0;
+        Series seconds = trafficHistorySeconds;
+        if (seconds.size > 0) {
+            int last = seconds.index(seconds.size - 1);
+            lastIn = seconds.in[last];
+            lastOut = seconds.out[last];
         }
 
-        return new LastDiff(lasttdp, tdp);
+        if (tdp == null)
+            return new LastDiff(lastIn, lastOut, lastIn, lastOut);
+        return new LastDiff(lastIn, lastOut, tdp.in, tdp.out);
     }
 
     @Override
@@ -85,24 +93,34 @@ public class TrafficHistory implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeList(trafficHistorySeconds);
-        dest.writeList(trafficHistoryMinutes);
-        dest.writeList(trafficHistoryHours);
-        dest.writeParcelable(lastSecondUsedForMinute, 0);
-        dest.writeParcelable(lastMinuteUsedForHours, 0);
+        dest.writeByteArray(getEncoded());
+    }
 
+    /**
+     * @return all datapoints, each column is stored as zigzag varint of the difference to the
+     * previous datapoint. A history of several days is only a few kilobytes.
+     */
+    public synchronized byte[] getEncoded() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + 8 * trafficHistorySeconds.size);
+        writeVarLong(out, ENCODING_VERSION);
+        writeVarLong(out, lastSecondUsedForMinute);
+        writeVarLong(out, lastMinuteUsedForHours);
+        trafficHistorySeconds.encode(out);
+        trafficHistoryMinutes.encode(out);
+        trafficHistoryHours.encode(out);
+        return out.toByteArray();
     }
 
-    public LinkedList<TrafficDatapoint> getHours() {
-        return trafficHistoryHours;
+    public synchronized LinkedList<TrafficDatapoint> getHours() {
+        return trafficHistoryHours.toList();
     }
 
-    public LinkedList<TrafficDatapoint> getMinutes() {
-        return trafficHistoryMinutes;
+    public synchronized LinkedList<TrafficDatapoint> getMinutes() {
+        return trafficHistoryMinutes.toList();
     }
 
-    public LinkedList<TrafficDatapoint> getSeconds() {
-        return trafficHistorySeconds;
+    public synchronized LinkedList<TrafficDatapoint> getSeconds() {
+        return trafficHistorySeconds.toList();
     }
 
     public static LinkedList<TrafficDatapoint> getDummyList() {
@@ -154,90 +172,174 @@ public class TrafficHistory implements Parcelable {
         }
     }
 
-    LastDiff add(long in, long out) {
-        TrafficDatapoint tdp = new TrafficDatapoint(in, out, System.currentTimeMillis());
-
-        LastDiff diff = getLastDiff(tdp);
-        addDataPoint(tdp);
+    synchronized LastDiff add(long in, long out) {
+        LastDiff diff = getLastDiff(new TrafficDatapoint(in, out, 0));
+        addDataPoint(System.currentTimeMillis(), in, out);
         return diff;
     }
 
-    private void addDataPoint(TrafficDatapoint tdp) {
-        trafficHistorySeconds.add(tdp);
+    private void addDataPoint(long timestamp, long in, long out) {
+        trafficHistorySeconds.add(timestamp, in, out);
 
-        if (lastSecondUsedForMinute == null) {
-            lastSecondUsedForMinute = new TrafficDatapoint(0, 0, 0);
-            lastMinuteUsedForHours = new TrafficDatapoint(0, 0, 0);
-        }
+        // A new minute started, O(1) apart from dropping old datapoints from the front
+        if (timestamp / TIME_PERIOD_MINTUES > lastSecondUsedForMinute / TIME_PERIOD_MINTUES) {
+            trafficHistoryMinutes.add(timestamp, in, out);
+            lastSecondUsedForMinute = timestamp;
 
-        removeAndAverage(tdp, true);
+            if (timestamp / TIME_PERIOD_HOURS > lastMinuteUsedForHours / TIME_PERIOD_HOURS) {
+                trafficHistoryHours.add(timestamp, in, out);
+                lastMinuteUsedForHours = timestamp;
+                trafficHistoryMinutes.dropOlderThan(timestamp - PERIODS_TO_KEEP * TIME_PERIOD_HOURS);
+            }
+            trafficHistorySeconds.dropOlderThan(timestamp - PERIODS_TO_KEEP * TIME_PERIOD_MINTUES);
+        }
     }
 
-    private void removeAndAverage(TrafficDatapoint newTdp, boolean seconds) {
-        HashSet<TrafficDatapoint> toRemove = new HashSet<>();
-        Vector<TrafficDatapoint> toAverage = new Vector<>();
+    /**
+     * Circular buffer of datapoints with one array per column
+     */
+    private static class Series {
+        long[] timestamp = new long[64];
+        long[] in = new long[64];
+        long[] out = new long[64];
+        int head;
+        int size;
+
+        int index(int i) {
+            return (head + i) % timestamp.length;
+        }
+
+        void add(long ts, long inBytes, long outBytes) {
+            if (size == timestamp.length)
+                grow();
+            int i = index(size);
+            timestamp[i] = ts;
+            in[i] = inBytes;
+            out[i] = outBytes;
+            size++;
+        }
+
+        /**
+         * Drops datapoints from the front that are at least as old as cutoff
+         */
+        void dropOlderThan(long cutoff) {
+            while (size > 0 && timestamp[head] <= cutoff) {
+                head = (head + 1) % timestamp.length;
+                size--;
+            }
+        }
 
-        long timePeriod;
-        LinkedList<TrafficDatapoint> tpList, nextList;
-        TrafficDatapoint lastTsPeriod;
+        private void grow() {
+            int capacity = timestamp.length * 2;
+            timestamp = unwrap(timestamp, capacity);
+            in = unwrap(in, capacity);
+            out = unwrap(out, capacity);
+            head = 0;
+        }
 
-        if (seconds) {
-            timePeriod = TIME_PERIOD_MINTUES;
-            tpList = trafficHistorySeconds;
-            nextList = trafficHistoryMinutes;
-            lastTsPeriod = lastSecondUsedForMinute;
-        } else {
-            timePeriod = TIME_PERIOD_HOURS;
-            tpList = trafficHistoryMinutes;
-            nextList = trafficHistoryHours;
-            lastTsPeriod = lastMinuteUsedForHours;
+        private long[] unwrap(long[] column, int capacity) {
+            long[] copy = new long[capacity];
+            int firstPart = Math.min(size, column.length - head);
+            System.arraycopy(column, head, copy, 0, firstPart);
+            System.arraycopy(column, 0, copy, firstPart, size - firstPart);
+            return copy;
         }
 
-        if (newTdp.timestamp / timePeriod > (lastTsPeriod.timestamp / timePeriod)) {
-            nextList.add(newTdp);
+        LinkedList<TrafficDatapoint> toList() {
+            LinkedList<TrafficDatapoint> list = new LinkedList<>();
+            for (int n = 0; n < size; n++) {
+                int i = index(n);
+                list.add(new TrafficDatapoint(in[i], out[i], timestamp[i]));
+            }
+            return list;
+        }
 
-            if (seconds) {
-                lastSecondUsedForMinute = newTdp;
-                removeAndAverage(newTdp, false);
-            } else
-                lastMinuteUsedForHours = newTdp;
+        void encode(ByteArrayOutputStream os) {
+            writeVarLong(os, size);
+            long lastTs = 0, lastIn = 0, lastOut = 0;
+            for (int n = 0; n < size; n++) {
+                int i = index(n);
+                writeVarLong(os, zigzag(timestamp[i] - lastTs));
+                writeVarLong(os, zigzag(in[i] - lastIn));
+                writeVarLong(os, zigzag(out[i] - lastOut));
+                lastTs = timestamp[i];
+                lastIn = in[i];
+                lastOut = out[i];
+            }
+        }
 
-            for (TrafficDatapoint tph : tpList) {
-                // List is iteratered from oldest to newest, remembert first one that we did not
-                if ((newTdp.timestamp - tph.timestamp) / timePeriod >= PERIODS_TO_KEEP)
-                    toRemove.add(tph);
+        void decode(byte[] bytes, int[] pos) {
+            long count = readVarLong(bytes, pos);
+            long ts = 0, inBytes = 0, outBytes = 0;
+            for (long n = 0; n < count; n++) {
+                ts += unzigzag(readVarLong(bytes, pos));
+                inBytes += unzigzag(readVarLong(bytes, pos));
+                outBytes += unzigzag(readVarLong(bytes, pos));
+                add(ts, inBytes, outBytes);
             }
-            tpList.removeAll(toRemove);
         }
     }
 
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream os, long v) {
+        while ((v & ~0x7fL) != 0) {
+            os.write((int) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        os.write((int) v);
+    }
+
+    private static long readVarLong(byte[] bytes, int[] pos) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos[0] >= bytes.length)
+                throw new IllegalArgumentException("Truncated traffic history");
+            byte b = bytes[pos[0]++];
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new IllegalArgumentException("Malformed traffic history");
+    }
+
     static class LastDiff {
 
-        final private TrafficDatapoint tdp;
-        final private TrafficDatapoint lasttdp;
+        final private long in;
+        final private long out;
+        final private long lastIn;
+        final private long lastOut;
 
-        private LastDiff(TrafficDatapoint lasttdp, TrafficDatapoint tdp) {
-            this.lasttdp = lasttdp;
-            this.tdp = tdp;
+        private LastDiff(long lastIn, long lastOut, long in, long out) {
+            this.lastIn = lastIn;
+            this.lastOut = lastOut;
+            this.in = in;
+            this.out = out;
         }
 
         public long getDiffOut() {
-            return max(0, tdp.out - lasttdp.out);
+            return max(0, out - lastOut);
         }
 
         public long getDiffIn() {
-            return max(0, tdp.in - lasttdp.in);
+            return max(0, in - lastIn);
         }
 
         public long getIn() {
-            return tdp.in;
+            return in;
         }
 
         public long getOut() {
-            return tdp.out;
+            return out;
         }
 
     }
 
 
-}
\ No newline at end of file
+}
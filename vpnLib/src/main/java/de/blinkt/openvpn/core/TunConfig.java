@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Snapshot of the configuration a tun device has been opened with.
+ * <p>
+ * Routes are compared by the addresses they send through the VPN, so include and exclude
+ * options that add up to the same routes do not count as a change.
+ */
+class TunConfig {
+
+    enum Change {
+        ADDRESSES,
+        ROUTES,
+        DNS,
+        DOMAIN,
+        MTU,
+        ALLOWED_APPS
+    }
+
+    private final String mLocalIP;
+    private final String mLocalIPv6;
+    private final List<String> mRoutes;
+    private final List<String> mRoutesv6;
+    private final List<String> mDns;
+    private final String mDomain;
+    private final int mMtu;
+    private final TreeSet<String> mAllowedApps;
+    private final boolean mAllowedAppsAreDisallowed;
+
+    TunConfig(CIDRIP localIP, String localIPv6, NetworkSpace routes, NetworkSpace routesv6,
+              Collection<String> dns, String domain, int mtu,
+              Collection<String> allowedApps, boolean allowedAppsAreDisallowed) {
+        mLocalIP = localIP == null ? null : localIP.toString();
+        mLocalIPv6 = localIPv6;
+        // The routes kept for old Android versions are covered by the others and merged anyway
+        mRoutes = toStrings(NetworkSpace.compactRoutes(routes.getPositiveIPList(false), true));
+        mRoutesv6 = toStrings(NetworkSpace.compactRoutes(routesv6.getPositiveIPList(false), false));
+        mDns = new ArrayList<>(dns);
+        mDomain = domain;
+        mMtu = mtu;
+        mAllowedApps = allowedApps == null ? new TreeSet<String>() : new TreeSet<>(allowedApps);
+        mAllowedAppsAreDisallowed = allowedAppsAreDisallowed;
+    }
+
+    private static List<String> toStrings(Collection<NetworkSpace.IpAddress> networks) {
+        List<String> strings = new ArrayList<>(networks.size());
+        for (NetworkSpace.IpAddress network : networks)
+            strings.add(network.toString());
+        return strings;
+    }
+
+    /**
+     * Only whether anything changed decides what happens, VpnService cannot change parts of an
+     * established interface so every change reopens the tun as a whole. The parts are only used
+     * to log what changed.
+     *
+     * @param old configuration to compare with, null if there is none
+     * @return the parts that differ
+     */
+    EnumSet<Change> diff(TunConfig old) {
+        if (old == null)
+            return EnumSet.allOf(Change.class);
+
+        EnumSet<Change> changes = EnumSet.noneOf(Change.class);
+        if (!equals(mLocalIP, old.mLocalIP) || !equals(mLocalIPv6, old.mLocalIPv6))
+            changes.add(Change.ADDRESSES);
+        if (!mRoutes.equals(old.mRoutes) || !mRoutesv6.equals(old.mRoutesv6))
+            changes.add(Change.ROUTES);
+        // The order of DNS servers matters
+        if (!mDns.equals(old.mDns))
+            changes.add(Change.DNS);
+        if (!equals(mDomain, old.mDomain))
+            changes.add(Change.DOMAIN);
+        if (mMtu != old.mMtu)
+            changes.add(Change.MTU);
+        if (!mAllowedApps.equals(old.mAllowedApps) || mAllowedAppsAreDisallowed != old.mAllowedAppsAreDisallowed)
+            changes.add(Change.ALLOWED_APPS);
+        return changes;
+    }
+
+    /**
+     * @return human readable list of the changes, like "mtu: 1500 -> 1400"
+     */
+    String describeChanges(TunConfig old, EnumSet<Change> changes) {
+        if (old == null)
+            return "no previous configuration";
+
+        List<String> parts = new ArrayList<>();
+        for (Change change : changes) {
+            switch (change) {
+                case ADDRESSES:
+                    parts.add("addresses: " + old.mLocalIP + " " + old.mLocalIPv6 + " -> " + mLocalIP + " " + mLocalIPv6);
+                    break;
+                case ROUTES:
+                    List<String> routeChanges = new ArrayList<>();
+                    addListChanges(old.mRoutes, mRoutes, routeChanges);
+                    addListChanges(old.mRoutesv6, mRoutesv6, routeChanges);
+                    parts.add("routes: " + join(" ", routeChanges));
+                    break;
+                case DNS:
+                    parts.add("dns: " + join("|", old.mDns) + " -> " + join("|", mDns));
+                    break;
+                case DOMAIN:
+                    parts.add("domain: " + old.mDomain + " -> " + mDomain);
+                    break;
+                case MTU:
+                    parts.add("mtu: " + old.mMtu + " -> " + mMtu);
+                    break;
+                case ALLOWED_APPS:
+                    parts.add("apps: " + old.describeApps() + " -> " + describeApps());
+                    break;
+            }
+        }
+        return join(", ", parts);
+    }
+
+    /**
+     * Adds "+entry" for every added and "-entry" for every removed entry to changes
+     */
+    private static void addListChanges(List<String> old, List<String> current, List<String> changes) {
+        TreeSet<String> added = new TreeSet<>(current);
+        added.removeAll(old);
+        TreeSet<String> removed = new TreeSet<>(old);
+        removed.removeAll(current);
+
+        for (String route : added)
+            changes.add("+" + route);
+        for (String route : removed)
+            changes.add("-" + route);
+    }
+
+    private String describeApps() {
+        return (mAllowedAppsAreDisallowed ? "disallowed [" : "allowed [") + join("|", mAllowedApps) + "]";
+    }
+
+    private static String join(String delimiter, Collection<String> parts) {
+        StringBuilder sb = new StringBuilder();
+        boolean first = true;
+        for (String part : parts) {
+            if (!first)
+                sb.append(delimiter);
+            sb.append(part);
+            first = false;
+        }
+        return sb.toString();
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
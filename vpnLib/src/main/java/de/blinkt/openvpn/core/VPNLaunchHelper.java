@@ -84,6 +84,7 @@ public class VPNLaunchHelper {
             return null;
         }
 
+        ConnectTimeline.mark(ConnectTimeline.Phase.BINARY_RESOLVED);
         args.add(binaryName);
 
         args.add("--config");
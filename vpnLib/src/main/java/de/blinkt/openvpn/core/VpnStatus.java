@@ -15,20 +15,28 @@ import android.os.Message;
 import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
-import java.util.Vector;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import de.blinkt.openvpn.R;
 
 public class VpnStatus {
 
 
-    private static final LinkedList<LogItem> logbuffer;
+    private static final LogRingBuffer logbuffer;
 
-    private static Vector<LogListener> logListener;
-    private static Vector<StateListener> stateListener;
-    private static Vector<ByteCountListener> byteCountListener;
+    // Events are handed to the listeners through their ListenerQueue, the lists are only
+    // modified while holding the VpnStatus lock
+    private static CopyOnWriteArrayList<ListenerQueue> logListener;
+    private static CopyOnWriteArrayList<ListenerQueue> stateListener;
+    private static CopyOnWriteArrayList<ListenerQueue> byteCountListener;
+
+    // Owners that need byte counts every OpenVPNManagement.mBytecountInterval seconds
+    private static final HashSet<Object> fineByteCountOwners = new HashSet<>();
+    private static volatile int idleByteCountInterval = 30;
 
     private static String mLaststatemsg = "";
 
@@ -137,8 +145,7 @@ public class VpnStatus {
 
     public static void setConnectedVPNProfile(String uuid) {
         mLastConnectedVPNUUID = uuid;
-        for (StateListener sl: stateListener)
-            sl.setConnectedVPN(uuid);
+        post(stateListener, new ListenerQueue.ConnectedVpnEvent(uuid));
     }
 
 
@@ -200,10 +207,10 @@ public class VpnStatus {
     private static LogFileHandler mLogFileHandler;
 
     static {
-        logbuffer = new LinkedList<>();
-        logListener = new Vector<>();
-        stateListener = new Vector<>();
-        byteCountListener = new Vector<>();
+        logbuffer = new LogRingBuffer(MAXLOGENTRIES);
+        logListener = new CopyOnWriteArrayList<>();
+        stateListener = new CopyOnWriteArrayList<>();
+        byteCountListener = new CopyOnWriteArrayList<>();
         trafficHistory = new TrafficHistory();
 
         logInformation();
@@ -211,6 +218,21 @@ public class VpnStatus {
     }
 
 
+    /**
+     * What happens if a listener does not keep up with the events
+     */
+    public enum OverflowPolicy {
+        /**
+         * Queue every event, drop the oldest queued log item if the queue is full
+         */
+        DROP_OLDEST,
+        /**
+         * Replace a pending event of the same kind with the newest one. Byte count differences
+         * of coalesced events are added up
+         */
+        COALESCE_LATEST
+    }
+
     public interface LogListener {
         void newLog(LogItem logItem);
     }
@@ -225,7 +247,7 @@ public class VpnStatus {
         void updateByteCount(long in, long out, long diffIn, long diffOut);
     }
 
-    public synchronized static void logMessage(LogLevel level, String prefix, String message) {
+    public static void logMessage(LogLevel level, String prefix, String message) {
         newLogItem(new LogItem(level, prefix + message));
 
     }
@@ -250,30 +272,139 @@ public class VpnStatus {
     }
 
     public synchronized static void addLogListener(LogListener ll) {
-        logListener.add(ll);
+        addListener(logListener, ll, ListenerQueue.KIND_LOG);
     }
 
     public synchronized static void removeLogListener(LogListener ll) {
-        logListener.remove(ll);
+        removeListener(logListener, ll, ListenerQueue.KIND_LOG);
     }
 
     public synchronized static void addByteCountListener(ByteCountListener bcl) {
+        ListenerQueue queue = addListener(byteCountListener, bcl, ListenerQueue.KIND_BYTECOUNT);
+        if (queue == null)
+            return;
         TrafficHistory.LastDiff diff = trafficHistory.getLastDiff(null);
-        bcl.updateByteCount(diff.getIn(), diff.getOut(), diff.getDiffIn(),diff.getDiffOut());
-        byteCountListener.add(bcl);
+        queue.post(new ListenerQueue.ByteCountEvent(diff.getIn(), diff.getOut(), diff.getDiffIn(), diff.getDiffOut()));
     }
 
     public synchronized static void removeByteCountListener(ByteCountListener bcl) {
-        byteCountListener.remove(bcl);
+        removeListener(byteCountListener, bcl, ListenerQueue.KIND_BYTECOUNT);
     }
 
 
     public synchronized static void addStateListener(StateListener sl) {
-        if (!stateListener.contains(sl)) {
-            stateListener.add(sl);
-            if (mLaststate != null)
-                sl.updateState(mLaststate, mLaststatemsg, mLastStateresid, mLastLevel, mLastIntent);
+        ListenerQueue queue = addListener(stateListener, sl, ListenerQueue.KIND_STATE);
+        if (queue == null)
+            return;
+        queue.register(ListenerQueue.KIND_CONNECTED_VPN);
+        if (mLaststate != null)
+            queue.post(new ListenerQueue.StateEvent(mLaststate, mLaststatemsg, mLastStateresid, mLastLevel, mLastIntent));
+    }
+
+    /**
+     * @return the queue of the listener or null if it was already registered
+     */
+    private static ListenerQueue addListener(CopyOnWriteArrayList<ListenerQueue> listeners, Object listener, int kind) {
+        if (findQueue(listeners, listener) != null)
+            return null;
+
+        // A listener that implements several interfaces gets a single queue
+        ListenerQueue queue = findQueue(logListener, listener);
+        if (queue == null)
+            queue = findQueue(stateListener, listener);
+        if (queue == null)
+            queue = findQueue(byteCountListener, listener);
+        if (queue == null)
+            queue = new ListenerQueue(listener);
+
+        queue.register(kind);
+        listeners.add(queue);
+        return queue;
+    }
+
+    private static void removeListener(CopyOnWriteArrayList<ListenerQueue> listeners, Object listener, int kind) {
+        ListenerQueue queue = findQueue(listeners, listener);
+        if (queue == null)
+            return;
+        listeners.remove(queue);
+        queue.unregister(kind);
+        if (kind == ListenerQueue.KIND_STATE)
+            queue.unregister(ListenerQueue.KIND_CONNECTED_VPN);
+    }
+
+    private static ListenerQueue findQueue(CopyOnWriteArrayList<ListenerQueue> listeners, Object listener) {
+        for (ListenerQueue queue : listeners)
+            if (queue.getListener() == listener)
+                return queue;
+        return null;
+    }
+
+    private static void post(CopyOnWriteArrayList<ListenerQueue> listeners, ListenerQueue.Event event) {
+        for (ListenerQueue queue : listeners)
+            queue.post(event);
+    }
+
+    /**
+     * Sets how events are queued for listeners that are slower than the events arrive
+     *
+     * @param capacity        maximum number of pending events per listener
+     * @param statePolicy     policy for state and connected VPN updates
+     * @param byteCountPolicy policy for byte count updates
+     */
+    public static void setListenerQueuePolicy(int capacity, OverflowPolicy statePolicy, OverflowPolicy byteCountPolicy) {
+        ListenerQueue.mCapacity = Math.max(1, capacity);
+        ListenerQueue.mStatePolicy = statePolicy;
+        ListenerQueue.mByteCountPolicy = byteCountPolicy;
+    }
+
+    /**
+     * Byte counts are requested from OpenVPN every {@link OpenVPNManagement#mBytecountInterval}
+     * seconds while at least one owner needs them, for example while the screen is on or a status
+     * client is bound. Otherwise they are only requested every idle interval.
+     */
+    public static void setFineByteCountNeeded(Object owner, boolean needed) {
+        boolean changed;
+        synchronized (fineByteCountOwners) {
+            changed = needed ? fineByteCountOwners.add(owner) : fineByteCountOwners.remove(owner);
         }
+        if (changed)
+            OpenVpnManagementThread.updateBytecountInterval();
+    }
+
+    /**
+     * @param seconds interval of the byte counts while nobody needs them more often, 0 to always
+     *                use {@link OpenVPNManagement#mBytecountInterval}. Should be at most half
+     *                of the screen off traffic window of {@link DeviceStateReceiver}.
+     */
+    public static void setIdleByteCountInterval(int seconds) {
+        idleByteCountInterval = Math.max(0, seconds);
+        OpenVpnManagementThread.updateBytecountInterval();
+    }
+
+    /**
+     * @return interval in seconds byte counts should currently be requested with
+     */
+    public static int getByteCountInterval() {
+        int idle = idleByteCountInterval;
+        synchronized (fineByteCountOwners) {
+            if (idle <= OpenVPNManagement.mBytecountInterval || !fineByteCountOwners.isEmpty())
+                return OpenVPNManagement.mBytecountInterval;
+            return idle;
+        }
+    }
+
+    /**
+     * @return number of events that were not delivered because a listener queue was full
+     */
+    public static long getDroppedListenerEvents() {
+        return ListenerQueue.mTotalDropped.get();
+    }
+
+    /**
+     * @return number of events that were merged into a pending event of the same kind
+     */
+    public static long getCoalescedListenerEvents() {
+        return ListenerQueue.mTotalCoalesced.get();
     }
 
     private static int getLocalizedState(String state) {
@@ -357,12 +488,23 @@ public class VpnStatus {
     }
 
 
-    synchronized public static LogItem[] getlogbuffer() {
-
-        // The stoned way of java to return an array from a vector
-        // brought to you by eclipse auto complete
-        return logbuffer.toArray(new LogItem[logbuffer.size()]);
+    /**
+     * Does not block, writers may add items while the copy is made
+     */
+    public static LogItem[] getlogbuffer() {
+        return logbuffer.snapshot();
+    }
 
+    /**
+     * Tails the log without locking. Start with a cursor of 0 to get everything that is still
+     * in memory. Items restored from the log cache are only part of {@link #getlogbuffer()}.
+     *
+     * @param cursor value returned by the previous call
+     * @param out    receives all newer log items, oldest first
+     * @return cursor for the next call
+     */
+    public static long getLogItemsSince(long cursor, List<LogItem> out) {
+        return logbuffer.readFrom(cursor, out);
     }
 
     static void updateStateString(String state, String msg) {
@@ -389,6 +531,8 @@ public class VpnStatus {
             return;
         }
 
+        ConnectTimeline.markState(state, level);
+
         mLaststate = state;
         mLaststatemsg = msg;
         mLastStateresid = resid;
@@ -396,9 +540,7 @@ public class VpnStatus {
         mLastIntent = intent;
 
 
-        for (StateListener sl : stateListener) {
-            sl.updateState(state, msg, resid, level, intent);
-        }
+        post(stateListener, new ListenerQueue.StateEvent(state, msg, resid, level, intent));
         //newLogItem(new LogItem((LogLevel.DEBUG), String.format("New OpenVPN Status (%s->%s): %s",state,level.toString(),msg)));
     }
 
@@ -423,27 +565,30 @@ public class VpnStatus {
     }
 
 
-    synchronized static void newLogItem(LogItem logItem, boolean cachedLine) {
+    static void newLogItem(LogItem logItem, boolean cachedLine) {
         if (cachedLine) {
-            logbuffer.addFirst(logItem);
-        } else {
-            logbuffer.addLast(logItem);
-            if (mLogFileHandler != null) {
-                Message m = mLogFileHandler.obtainMessage(LogFileHandler.LOG_MESSAGE, logItem);
-                mLogFileHandler.sendMessage(m);
-            }
+            restoreLogItems(Collections.singletonList(logItem));
+            return;
         }
 
-        if (logbuffer.size() > MAXLOGENTRIES + MAXLOGENTRIES / 2) {
-            while (logbuffer.size() > MAXLOGENTRIES)
-                logbuffer.removeFirst();
-            if (mLogFileHandler != null)
-                mLogFileHandler.sendMessage(mLogFileHandler.obtainMessage(LogFileHandler.TRIM_LOG_FILE));
+        logbuffer.add(logItem);
+        if (mLogFileHandler != null) {
+            Message m = mLogFileHandler.obtainMessage(LogFileHandler.LOG_MESSAGE, logItem);
+            mLogFileHandler.sendMessage(m);
         }
 
-        for (LogListener ll : logListener) {
-            ll.newLog(logItem);
-        }
+        post(logListener, new ListenerQueue.LogEvent(logItem));
+    }
+
+    /**
+     * Adds the items read from the log cache in front of the current log
+     *
+     * @param items oldest first
+     */
+    static void restoreLogItems(List<LogItem> items) {
+        logbuffer.restore(items);
+        for (LogItem logItem : items)
+            post(logListener, new ListenerQueue.LogEvent(logItem));
     }
 
 
@@ -478,8 +623,6 @@ public class VpnStatus {
     public static synchronized void updateByteCount(long in, long out) {
         TrafficHistory.LastDiff diff = trafficHistory.add(in, out);
 
-        for (ByteCountListener bcl : byteCountListener) {
-            bcl.updateByteCount(in, out, diff.getDiffIn(), diff.getDiffOut());
-        }
+        post(byteCountListener, new ListenerQueue.ByteCountEvent(in, out, diff.getDiffIn(), diff.getDiffOut()));
     }
 }
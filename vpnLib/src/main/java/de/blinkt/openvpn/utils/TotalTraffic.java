@@ -17,12 +17,35 @@ public class TotalTraffic {
     public static final String UPLOAD_ALL = "upload_all";
     public static final String UPLOAD_SESSION = "upload_session";
 
+    // Same values in bytes
+    public static final String DOWNLOAD_ALL_BYTES = "download_all_bytes";
+    public static final String DOWNLOAD_SESSION_BYTES = "download_session_bytes";
+    public static final String UPLOAD_ALL_BYTES = "upload_all_bytes";
+    public static final String UPLOAD_SESSION_BYTES = "upload_session_bytes";
+
     public static long inTotal;
     public static long outTotal;
 
 
     public static void calcTraffic(Context context, long in, long out, long diffIn, long diffOut) {
-        List<String> totalTraffic = getTotalTraffic(context, diffIn, diffOut);
+        addTraffic(context, diffIn, diffOut);
+        sendTraffic(context, in, out);
+    }
+
+    /**
+     * Adds to the totals without formatting or broadcasting anything
+     */
+    public static void addTraffic(Context context, long diffIn, long diffOut) {
+        loadTotal(context);
+        inTotal = inTotal + diffIn;
+        outTotal = outTotal + diffOut;
+    }
+
+    /**
+     * Broadcasts the totals and the session byte counts
+     */
+    public static void sendTraffic(Context context, long in, long out) {
+        List<String> totalTraffic = getTotalTraffic(context);
 
         Intent traffic = new Intent();
         traffic.setAction(TRAFFIC_ACTION);
@@ -30,10 +53,22 @@ public class TotalTraffic {
         traffic.putExtra(DOWNLOAD_SESSION, OpenVPNService.humanReadableByteCount(in, false, context.getResources()));
         traffic.putExtra(UPLOAD_ALL, totalTraffic.get(1));
         traffic.putExtra(UPLOAD_SESSION, OpenVPNService.humanReadableByteCount(out, false, context.getResources()));
+        traffic.putExtra(DOWNLOAD_ALL_BYTES, inTotal);
+        traffic.putExtra(DOWNLOAD_SESSION_BYTES, in);
+        traffic.putExtra(UPLOAD_ALL_BYTES, outTotal);
+        traffic.putExtra(UPLOAD_SESSION_BYTES, out);
 
         context.sendBroadcast(traffic);
     }
 
+    private static void loadTotal(Context context) {
+        if (inTotal == 0)
+            inTotal = PropertiesService.getDownloaded(context);
+
+        if (outTotal == 0)
+            outTotal = PropertiesService.getUploaded(context);
+    }
+
     public static List<String> getTotalTraffic(Context context) {
         return getTotalTraffic(context, 0, 0);
     }
@@ -41,14 +76,7 @@ public class TotalTraffic {
     public static List<String> getTotalTraffic(Context context, long in, long out) {
         List<String> totalTraffic = new ArrayList<String>();
 
-        if (inTotal == 0)
-            inTotal = PropertiesService.getDownloaded(context);
-
-        if (outTotal == 0)
-            outTotal = PropertiesService.getUploaded(context);
-
-        inTotal = inTotal + in;
-        outTotal = outTotal + out;
+        addTraffic(context, in, out);
 
         totalTraffic.add(OpenVPNService.humanReadableByteCount(inTotal, false, context.getResources()));
         totalTraffic.add(OpenVPNService.humanReadableByteCount(outTotal, false, context.getResources()));
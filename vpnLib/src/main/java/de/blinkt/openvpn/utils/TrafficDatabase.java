@@ -0,0 +1,433 @@
+package de.blinkt.openvpn.utils;
+
+import android.content.Context;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import de.blinkt.openvpn.core.VpnStatus;
+
+/**
+ * Traffic per profile and server that survives process restarts.
+ * <p>
+ * Byte count differences are summed up into minute, hour and day buckets (aligned to UTC).
+ * The file is append only: a record with the traffic of a minute is written once the minute is
+ * over or on {@link #flush()}, not on every byte count. Records only carry differences, so a
+ * minute may be written in several parts. On load the records are summed up again and if the
+ * file has grown too big it is rewritten once with old minutes folded into hours and old hours
+ * into days.
+ */
+public class TrafficDatabase {
+
+    public enum Resolution {
+        MINUTE(60 * 1000L, 2 * 24 * 3600 * 1000L),
+        HOUR(3600 * 1000L, 90 * 24 * 3600 * 1000L),
+        DAY(24 * 3600 * 1000L, Long.MAX_VALUE);
+
+        final long mLength;
+        // How long buckets are kept
+        final long mRetention;
+
+        Resolution(long length, long retention) {
+            mLength = length;
+            mRetention = retention;
+        }
+
+        public long bucketStart(long time) {
+            long offset = time % mLength;
+            return time - (offset < 0 ? offset + mLength : offset);
+        }
+    }
+
+    public static final String FILE_NAME = "traffic.db";
+
+    private static final int FILE_VERSION = 1;
+    private static final byte RECORD_KEY = 'K';
+    private static final byte[] RECORD_TYPES = {'M', 'H', 'D'};
+    private static final long COMPACT_THRESHOLD = 512 * 1024;
+    private static final Resolution[] RESOLUTIONS = Resolution.values();
+
+    private static TrafficDatabase mInstance;
+
+    private final File mFile;
+    private final HashMap<String, Key> mKeys = new HashMap<>();
+    private final ArrayList<Key> mKeysById = new ArrayList<>();
+    private DataOutputStream mOut;
+
+    public static synchronized TrafficDatabase getInstance(Context c) {
+        if (mInstance == null)
+            mInstance = new TrafficDatabase(new File(c.getApplicationContext().getFilesDir(), FILE_NAME));
+        return mInstance;
+    }
+
+    TrafficDatabase(File file) {
+        mFile = file;
+        load();
+    }
+
+    /**
+     * Adds the traffic of one byte count interval
+     *
+     * @param profileUUID UUID of the connected profile
+     * @param server      server the profile is connected to
+     */
+    public synchronized void record(String profileUUID, String server, long diffIn, long diffOut) {
+        record(profileUUID, server, diffIn, diffOut, System.currentTimeMillis());
+    }
+
+    /**
+     * @param now time of the byte count in ms since the epoch
+     */
+    synchronized void record(String profileUUID, String server, long diffIn, long diffOut, long now) {
+        if (diffIn <= 0 && diffOut <= 0)
+            return;
+
+        Key key = getKey(profileUUID, server == null ? "" : server);
+
+        long minute = Resolution.MINUTE.bucketStart(now);
+        if (key.mPendingMinute != minute)
+            writePending(key);
+        key.mPendingMinute = minute;
+        key.mPendingIn += diffIn;
+        key.mPendingOut += diffOut;
+
+        for (Resolution res : RESOLUTIONS)
+            add(key, res, res.bucketStart(now), diffIn, diffOut);
+    }
+
+    /**
+     * Writes the traffic of the current minutes, called when the connection ends
+     */
+    public synchronized void flush() {
+        for (Key key : mKeysById)
+            writePending(key);
+    }
+
+    /**
+     * @param profileUUID only traffic of this profile, null for all profiles
+     * @param server      only traffic to this server, null for all servers
+     * @param from        start of the range in ms since the epoch, inclusive
+     * @param to          end of the range, exclusive
+     * @return buckets in the range ordered by profile, server and time. Minutes are only kept
+     * for two days and hours for 90 days.
+     */
+    public synchronized List<Bucket> query(Resolution res, String profileUUID, String server, long from, long to) {
+        ArrayList<Bucket> result = new ArrayList<>();
+        for (Key key : mKeysById) {
+            if (!key.matches(profileUUID, server))
+                continue;
+            for (Map.Entry<Long, long[]> e : key.mBuckets[res.ordinal()].subMap(from, to).entrySet())
+                result.add(new Bucket(key.mProfileUUID, key.mServer, e.getKey(), res, e.getValue()[0], e.getValue()[1]));
+        }
+        return result;
+    }
+
+    /**
+     * @return bytes {in, out} in the range summed up over all matching profiles and servers
+     */
+    public synchronized long[] getTotal(Resolution res, String profileUUID, String server, long from, long to) {
+        long[] total = new long[2];
+        for (Bucket bucket : query(res, profileUUID, server, from, to)) {
+            total[0] += bucket.getIn();
+            total[1] += bucket.getOut();
+        }
+        return total;
+    }
+
+    /**
+     * @return all servers that traffic has been recorded for
+     */
+    public synchronized List<String> getServers(String profileUUID) {
+        ArrayList<String> servers = new ArrayList<>();
+        for (Key key : mKeysById)
+            if (key.matches(profileUUID, null) && !servers.contains(key.mServer))
+                servers.add(key.mServer);
+        return servers;
+    }
+
+    public synchronized void clear() {
+        closeOutput();
+        mKeys.clear();
+        mKeysById.clear();
+        mFile.delete();
+    }
+
+    private void add(Key key, Resolution res, long bucket, long in, long out) {
+        TreeMap<Long, long[]> buckets = key.mBuckets[res.ordinal()];
+        long[] value = buckets.get(bucket);
+        if (value == null) {
+            value = new long[2];
+            buckets.put(bucket, value);
+            // Drop expired buckets once per new bucket
+            if (res.mRetention != Long.MAX_VALUE)
+                buckets.headMap(bucket - res.mRetention).clear();
+        }
+        value[0] += in;
+        value[1] += out;
+    }
+
+    private Key getKey(String profileUUID, String server) {
+        String name = profileUUID + "\n" + server;
+        Key key = mKeys.get(name);
+        if (key == null) {
+            key = new Key(mKeysById.size(), profileUUID, server);
+            mKeys.put(name, key);
+            mKeysById.add(key);
+            try {
+                writeKey(openOutput(), key);
+            } catch (IOException e) {
+                VpnStatus.logException("Writing traffic database", e);
+            }
+        }
+        return key;
+    }
+
+    private void writePending(Key key) {
+        if (key.mPendingIn == 0 && key.mPendingOut == 0)
+            return;
+        try {
+            // At most one write per key and minute
+            DataOutputStream out = openOutput();
+            writeBucket(out, key, Resolution.MINUTE, key.mPendingMinute, key.mPendingIn, key.mPendingOut);
+            out.flush();
+        } catch (IOException e) {
+            VpnStatus.logException("Writing traffic database", e);
+        }
+        key.mPendingIn = 0;
+        key.mPendingOut = 0;
+    }
+
+    private DataOutputStream openOutput() throws IOException {
+        if (mOut == null) {
+            boolean newFile = !mFile.exists() || mFile.length() == 0;
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true), 4096));
+            if (newFile)
+                mOut.writeInt(FILE_VERSION);
+        }
+        return mOut;
+    }
+
+    private void closeOutput() {
+        if (mOut == null)
+            return;
+        try {
+            mOut.close();
+        } catch (IOException ignored) {
+        }
+        mOut = null;
+    }
+
+    private static void writeKey(DataOutputStream out, Key key) throws IOException {
+        out.writeByte(RECORD_KEY);
+        out.writeInt(key.mId);
+        out.writeUTF(key.mProfileUUID);
+        out.writeUTF(key.mServer);
+    }
+
+    private static void writeBucket(DataOutputStream out, Key key, Resolution res, long bucket, long in, long out2) throws IOException {
+        out.writeByte(RECORD_TYPES[res.ordinal()]);
+        out.writeInt(key.mId);
+        out.writeLong(bucket);
+        out.writeLong(in);
+        out.writeLong(out2);
+    }
+
+    private void load() {
+        if (!mFile.exists())
+            return;
+
+        try {
+            byte[] data = new byte[(int) mFile.length()];
+            DataInputStream file = new DataInputStream(new FileInputStream(mFile));
+            try {
+                file.readFully(data);
+            } finally {
+                file.close();
+            }
+
+            ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+            DataInputStream in = new DataInputStream(bytes);
+            long validLength = 0;
+            try {
+                if (in.readInt() != FILE_VERSION) {
+                    mFile.delete();
+                    return;
+                }
+                validLength = data.length - bytes.available();
+                while (bytes.available() > 0 && readRecord(in))
+                    validLength = data.length - bytes.available();
+            } catch (EOFException ignored) {
+                // A record was cut off by a crash
+            }
+
+            if (validLength < data.length) {
+                RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+                try {
+                    raf.setLength(validLength);
+                } finally {
+                    raf.close();
+                }
+            }
+            if (validLength > COMPACT_THRESHOLD)
+                compact();
+        } catch (IOException e) {
+            VpnStatus.logException("Reading traffic database", e);
+        }
+    }
+
+    /**
+     * @return false if the record is invalid
+     */
+    private boolean readRecord(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        int id = in.readInt();
+        if (type == RECORD_KEY) {
+            String uuid = in.readUTF();
+            String server = in.readUTF();
+            if (id != mKeysById.size())
+                return false;
+            Key key = new Key(id, uuid, server);
+            mKeys.put(uuid + "\n" + server, key);
+            mKeysById.add(key);
+            return true;
+        }
+
+        long bucket = in.readLong();
+        long bytesIn = in.readLong();
+        long bytesOut = in.readLong();
+        if (id < 0 || id >= mKeysById.size())
+            return false;
+        Key key = mKeysById.get(id);
+
+        // A minute also counts for its hour and day, an hour for its day
+        int first = -1;
+        for (int i = 0; i < RECORD_TYPES.length; i++)
+            if (RECORD_TYPES[i] == type)
+                first = i;
+        if (first == -1)
+            return false;
+        for (int i = first; i < RESOLUTIONS.length; i++)
+            add(key, RESOLUTIONS[i], RESOLUTIONS[i].bucketStart(bucket), bytesIn, bytesOut);
+        return true;
+    }
+
+    /**
+     * Rewrites the file with one record per bucket. Hours that are no longer covered by minutes
+     * are written as hours, days no longer covered by hours as days.
+     */
+    private void compact() throws IOException {
+        long now = System.currentTimeMillis();
+        long minuteCutoff = Resolution.HOUR.bucketStart(now - Resolution.MINUTE.mRetention) + Resolution.HOUR.mLength;
+        long hourCutoff = Resolution.DAY.bucketStart(now - Resolution.HOUR.mRetention) + Resolution.DAY.mLength;
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 16384));
+        try {
+            out.writeInt(FILE_VERSION);
+            for (Key key : mKeysById) {
+                writeKey(out, key);
+                writeRange(out, key, Resolution.DAY, Long.MIN_VALUE, hourCutoff);
+                writeRange(out, key, Resolution.HOUR, hourCutoff, minuteCutoff);
+                writeRange(out, key, Resolution.MINUTE, minuteCutoff, Long.MAX_VALUE);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mFile))
+            throw new IOException("Could not replace " + mFile);
+    }
+
+    private static void writeRange(DataOutputStream out, Key key, Resolution res, long from, long to) throws IOException {
+        SortedMap<Long, long[]> range = key.mBuckets[res.ordinal()].subMap(from, to);
+        for (Map.Entry<Long, long[]> e : range.entrySet())
+            writeBucket(out, key, res, e.getKey(), e.getValue()[0], e.getValue()[1]);
+    }
+
+    private static class Key {
+        final int mId;
+        final String mProfileUUID;
+        final String mServer;
+        @SuppressWarnings("unchecked")
+        final TreeMap<Long, long[]>[] mBuckets = new TreeMap[RESOLUTIONS.length];
+
+        // Traffic of the current minute that has not been written yet
+        long mPendingMinute;
+        long mPendingIn;
+        long mPendingOut;
+
+        Key(int id, String profileUUID, String server) {
+            mId = id;
+            mProfileUUID = profileUUID;
+            mServer = server;
+            for (int i = 0; i < mBuckets.length; i++)
+                mBuckets[i] = new TreeMap<>();
+        }
+
+        boolean matches(String profileUUID, String server) {
+            return (profileUUID == null || profileUUID.equals(mProfileUUID))
+                    && (server == null || server.equals(mServer));
+        }
+    }
+
+    /**
+     * Traffic of one profile and server in one time bucket
+     */
+    public static class Bucket {
+        private final String mProfileUUID;
+        private final String mServer;
+        private final long mStart;
+        private final Resolution mResolution;
+        private final long mIn;
+        private final long mOut;
+
+        private Bucket(String profileUUID, String server, long start, Resolution resolution, long in, long out) {
+            mProfileUUID = profileUUID;
+            mServer = server;
+            mStart = start;
+            mResolution = resolution;
+            mIn = in;
+            mOut = out;
+        }
+
+        public String getProfileUUID() {
+            return mProfileUUID;
+        }
+
+        public String getServer() {
+            return mServer;
+        }
+
+        /**
+         * @return start of the bucket in ms since the epoch
+         */
+        public long getStart() {
+            return mStart;
+        }
+
+        public Resolution getResolution() {
+            return mResolution;
+        }
+
+        public long getIn() {
+            return mIn;
+        }
+
+        public long getOut() {
+            return mOut;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares {@link ByteCountFormatter} with the Math.log based implementation it replaced.
+ */
+public class ByteCountFormatterTest {
+
+    // Same as the volume_* and *bits_per_second strings
+    private static final String[] VOLUME_FORMATS = {"%.0f B", "%.1f kB", "%.1f MB", "%.1f GB"};
+    private static final String[] SPEED_FORMATS = {"%.0f bit/s", "%.1f kbit/s", "%.1f Mbit/s", "%.1f Gbit/s"};
+
+    private static final Locale[] LOCALES = {Locale.US, Locale.GERMANY, Locale.FRANCE,
+            new Locale("ar", "EG"), new Locale("hi", "IN"), new Locale("fa", "IR")};
+
+    /**
+     * The former humanReadableByteCount of OpenVPNService
+     */
+    private static String formatWithLog(long bytes, boolean speed, Locale locale) {
+        if (speed)
+            bytes = bytes * 8;
+        int unit = speed ? 1000 : 1024;
+
+        int exp = Math.max(0, Math.min((int) (Math.log(bytes) / Math.log(unit)), 3));
+
+        float bytesUnit = (float) (bytes / Math.pow(unit, exp));
+        return String.format(locale, (speed ? SPEED_FORMATS : VOLUME_FORMATS)[exp], bytesUnit);
+    }
+
+    private static String format(long bytes, boolean speed, Locale locale) {
+        StringBuilder sb = new StringBuilder();
+        ByteCountFormatter.formatTo(sb, bytes, speed, locale, speed ? SPEED_FORMATS : VOLUME_FORMATS);
+        return sb.toString();
+    }
+
+    private static List<Long> boundaryValues() {
+        List<Long> values = new ArrayList<>();
+        long[] fixed = {0, 1, 999, 1000, 1001, 1023, 1024, 1025, 999999, 1000000, 1048575, 1048576,
+                Long.MAX_VALUE, Long.MAX_VALUE / 8, Long.MAX_VALUE / 8 + 1, -1, Long.MIN_VALUE};
+        for (long value : fixed)
+            values.add(value);
+        for (int unit : new int[]{1000, 1024}) {
+            long power = 1;
+            for (int exp = 0; exp <= 6; exp++) {
+                for (long delta = -2; delta <= 2; delta++)
+                    values.add(power + delta);
+                // Speeds are multiplied by 8 before choosing the unit
+                values.add(power / 8);
+                values.add(power / 8 + 1);
+                power *= unit;
+            }
+        }
+        return values;
+    }
+
+    @Test
+    public void boundaryValuesMatchLogImplementation() throws Exception {
+        for (Locale locale : LOCALES) {
+            for (long value : boundaryValues()) {
+                for (boolean speed : new boolean[]{false, true}) {
+                    assertEquals(value + " speed " + speed + " in " + locale,
+                            formatWithLog(value, speed, locale), format(value, speed, locale));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void randomValuesMatchLogImplementation() throws Exception {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            // Spread over all magnitudes instead of mostly huge numbers
+            long value = random.nextLong() >>> random.nextInt(64);
+            boolean speed = random.nextBoolean();
+            Locale locale = LOCALES[random.nextInt(LOCALES.length)];
+            assertEquals(value + " speed " + speed + " in " + locale,
+                    formatWithLog(value, speed, locale), format(value, speed, locale));
+        }
+    }
+
+    @Test
+    public void appendsToBuilder() throws Exception {
+        StringBuilder sb = new StringBuilder("in: ");
+        ByteCountFormatter.formatTo(sb, 2048, false, Locale.US, VOLUME_FORMATS);
+        sb.append(", out: ");
+        ByteCountFormatter.formatTo(sb, 1536, false, Locale.GERMANY, VOLUME_FORMATS);
+        sb.append(", speed: ");
+        ByteCountFormatter.formatTo(sb, 125, true, Locale.US, SPEED_FORMATS);
+        assertEquals("in: 2.0 kB, out: 1,5 kB, speed: 1.0 kbit/s", sb.toString());
+    }
+
+    @Test
+    public void formattersArePerThread() throws Exception {
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final Locale locale = LOCALES[t];
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (long value = 0; value < 200000; value += 7)
+                            assertEquals(formatWithLog(value, false, locale), format(value, false, locale));
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        if (failure[0] != null)
+            throw new AssertionError(failure[0]);
+    }
+}
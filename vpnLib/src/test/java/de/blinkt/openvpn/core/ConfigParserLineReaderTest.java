@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link ConfigParser.LineReader} splits lines like BufferedReader.readLine().
+ */
+public class ConfigParserLineReaderTest {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Returns at most chunk chars per read
+     */
+    private static class ChunkedReader extends Reader {
+        private final String mData;
+        private final int mChunk;
+        private int mPos;
+
+        ChunkedReader(String data, int chunk) {
+            mData = data;
+            mChunk = chunk;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (mPos == mData.length())
+                return -1;
+            int n = Math.min(Math.min(len, mChunk), mData.length() - mPos);
+            mData.getChars(mPos, mPos + n, cbuf, off);
+            mPos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static List<String> readLines(Reader reader) throws IOException {
+        List<String> lines = new ArrayList<>();
+        ConfigParser.LineReader lr = new ConfigParser.LineReader(reader);
+        while (lr.readLine())
+            lines.add(lr.line.toString());
+        // Stays at the end
+        assertFalse(lr.readLine());
+        return lines;
+    }
+
+    private static List<String> bufferedReaderLines(String input) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader br = new BufferedReader(new StringReader(input));
+        String line;
+        while ((line = br.readLine()) != null)
+            lines.add(line);
+        return lines;
+    }
+
+    private static void assertSameLines(String input) throws IOException {
+        List<String> expected = bufferedReaderLines(input);
+        assertEquals(expected, readLines(new StringReader(input)));
+        for (int chunk : new int[]{1, 2, 3, 7, 4095, BUFFER_SIZE - 1, BUFFER_SIZE + 1})
+            assertEquals("chunk size " + chunk, expected, readLines(new ChunkedReader(input, chunk)));
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void lineEndings() throws Exception {
+        assertSameLines("");
+        assertSameLines("\n");
+        assertSameLines("\r\n");
+        assertSameLines("\r");
+        assertSameLines("\n\r");
+        assertSameLines("remote vpn.example 1194\r\nproto udp\ndev tun\rverb 3\r\n");
+        assertSameLines("a\r\r\n\n\rb");
+    }
+
+    @Test
+    public void finalLineWithoutTerminator() throws Exception {
+        assertSameLines("client");
+        assertSameLines("client\nnobind");
+        assertSameLines("client\r\nnobind\r");
+        assertSameLines(repeat('x', BUFFER_SIZE));
+        assertSameLines(repeat('x', BUFFER_SIZE * 3 + 5));
+    }
+
+    @Test
+    public void crLfSplitAtBufferBoundary() throws Exception {
+        for (int offset = -3; offset <= 3; offset++) {
+            String first = repeat('a', BUFFER_SIZE - 1 + offset);
+            assertSameLines(first + "\r\nsecond\r\n");
+            assertSameLines(first + "\r\n");
+            assertSameLines(first + "\r");
+            assertSameLines(first + "\r\r\nthird");
+            // The \r ends one buffer and the next buffer starts with an empty line
+            assertSameLines(first + "\r\n\r\nafter empty line");
+        }
+        // Exactly one buffer in front of the \n
+        String line = repeat('b', BUFFER_SIZE - 1);
+        assertEquals(Arrays.asList(line, "next"), readLines(new StringReader(line + "\r\nnext")));
+    }
+
+    @Test
+    public void byteOrderMark() throws Exception {
+        // The line reader keeps the BOM like BufferedReader, ConfigParser removes it
+        assertSameLines("\uFEFFclient\r\ndev tun\r\n");
+        assertSameLines("\uFEFF");
+        assertSameLines("\uFEFF\r\n");
+        assertEquals(Arrays.asList("\uFEFFclient"), readLines(new StringReader("\uFEFFclient")));
+    }
+
+    @Test
+    public void inlineBlockWithoutEndTag() throws Exception {
+        String config = "client\r\n<ca>\r\n-----BEGIN CERTIFICATE-----\r\nMIIB\r\n-----END CERTIFICATE-----";
+        assertSameLines(config);
+        assertSameLines(config + "\r\n");
+
+        try {
+            new ConfigParser().parseConfig(new StringReader(config));
+            fail("config without </ca> accepted");
+        } catch (ConfigParser.ConfigParseError e) {
+            assertEquals("No endtag </ca> for starttag <ca> found", e.getMessage());
+        }
+    }
+
+    @Test
+    public void randomInput() throws Exception {
+        Random random = new Random(3);
+        char[] alphabet = {'a', 'b', ' ', '\r', '\n', '\uFEFF', 'ü', '<', '>'};
+        for (int round = 0; round < 300; round++) {
+            int length = random.nextInt(3) == 0 ? BUFFER_SIZE * 2 + random.nextInt(100) : random.nextInt(200);
+            StringBuilder sb = new StringBuilder(length);
+            for (int i = 0; i < length; i++)
+                sb.append(alphabet[random.nextInt(alphabet.length)]);
+            String input = sb.toString();
+            List<String> expected = bufferedReaderLines(input);
+            int chunk = 1 + random.nextInt(BUFFER_SIZE + 10);
+            assertEquals("round " + round, expected, readLines(new ChunkedReader(input, chunk)));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.Intent;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Posts events while the listener is still busy with the first one and checks the order in which
+ * they are delivered.
+ */
+public class ListenerQueueTest {
+
+    private static class RecordingListener implements VpnStatus.LogListener, VpnStatus.StateListener,
+            VpnStatus.ByteCountListener {
+        final CountDownLatch mFirstDelivered = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        // Guarded by this
+        final List<String> mEvents = new ArrayList<>();
+
+        private void record(String event) {
+            synchronized (this) {
+                mEvents.add(event);
+                notifyAll();
+            }
+            mFirstDelivered.countDown();
+            try {
+                mRelease.await();
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        @Override
+        public void newLog(LogItem logItem) {
+            record("log " + logItem);
+        }
+
+        @Override
+        public void updateState(String state, String logmessage, int localizedResId, ConnectionStatus level, Intent intent) {
+            record("state " + state);
+        }
+
+        @Override
+        public void setConnectedVPN(String uuid) {
+            record("vpn " + uuid);
+        }
+
+        @Override
+        public void updateByteCount(long in, long out, long diffIn, long diffOut) {
+            record("bytes " + in + "/" + out + " +" + diffIn + "/+" + diffOut);
+        }
+
+        synchronized List<String> awaitEvents(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (mEvents.size() < count && System.currentTimeMillis() < deadline)
+                wait(100);
+            return new ArrayList<>(mEvents);
+        }
+    }
+
+    private static ListenerQueue.Event log(String message) {
+        return new ListenerQueue.LogEvent(new LogItem(VpnStatus.LogLevel.INFO, message));
+    }
+
+    private static ListenerQueue.Event state(String state) {
+        return new ListenerQueue.StateEvent(state, "", 0, ConnectionStatus.LEVEL_CONNECTING_NO_SERVER_REPLY_YET, null);
+    }
+
+    /**
+     * @return a queue whose listener is blocked in the delivery of the "first" log item
+     */
+    private static ListenerQueue blockedQueue(RecordingListener listener) throws InterruptedException {
+        ListenerQueue queue = new ListenerQueue(listener);
+        queue.register(ListenerQueue.KIND_LOG);
+        queue.register(ListenerQueue.KIND_STATE);
+        queue.register(ListenerQueue.KIND_BYTECOUNT);
+        queue.post(log("first"));
+        assertTrue(listener.mFirstDelivered.await(5, TimeUnit.SECONDS));
+        return queue;
+    }
+
+    @Test
+    public void coalescedStateKeepsOrder() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        ListenerQueue queue = blockedQueue(listener);
+
+        queue.post(state("CONNECTING"));
+        queue.post(log("second"));
+        queue.post(state("CONNECTED"));
+        queue.post(log("third"));
+        assertEquals(1, queue.getCoalesced());
+
+        listener.mRelease.countDown();
+        assertEquals(Arrays.asList("log first", "log second", "state CONNECTED", "log third"),
+                listener.awaitEvents(4));
+    }
+
+    @Test
+    public void coalescedByteCountKeepsOrderAndTraffic() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        ListenerQueue queue = blockedQueue(listener);
+
+        queue.post(new ListenerQueue.ByteCountEvent(100, 50, 100, 50));
+        queue.post(log("second"));
+        queue.post(new ListenerQueue.ByteCountEvent(300, 80, 200, 30));
+        queue.post(new ListenerQueue.ByteCountEvent(310, 90, 10, 10));
+        assertEquals(2, queue.getCoalesced());
+
+        listener.mRelease.countDown();
+        assertEquals(Arrays.asList("log first", "log second", "bytes 310/90 +310/+90"), listener.awaitEvents(3));
+    }
+
+    @Test
+    public void eventsWithoutCoalescingStayInOrder() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        ListenerQueue queue = blockedQueue(listener);
+
+        queue.post(log("second"));
+        queue.post(state("CONNECTING"));
+        queue.post(log("third"));
+
+        listener.mRelease.countDown();
+        assertEquals(Arrays.asList("log first", "log second", "state CONNECTING", "log third"),
+                listener.awaitEvents(4));
+        assertEquals(0, queue.getCoalesced());
+    }
+}
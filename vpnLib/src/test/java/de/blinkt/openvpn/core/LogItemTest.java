@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips of {@link LogItem#marschalTo(ByteBuffer)} and {@link LogItem#LogItem(ByteBuffer)}.
+ */
+public class LogItemTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Random mRandom = new Random(42);
+
+    private static LogItem roundTrip(LogItem item, ByteBuffer bb) throws UnsupportedEncodingException {
+        bb.clear();
+        item.marschalTo(bb);
+        bb.flip();
+        return new LogItem(bb);
+    }
+
+    /**
+     * @return what a string looks like after a round trip through UTF-8, unpaired surrogates
+     * become '?'
+     */
+    private static String utf8(String str) {
+        return new String(str.getBytes(UTF8), UTF8);
+    }
+
+    private String randomString() {
+        int len = mRandom.nextInt(4) == 0 ? 0 : mRandom.nextInt(60);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < len; i++) {
+            switch (mRandom.nextInt(6)) {
+                case 0:
+                    sb.append((char) (0x80 + mRandom.nextInt(0x780)));
+                    break;
+                case 1:
+                    sb.append((char) (0x800 + mRandom.nextInt(0xd000)));
+                    break;
+                case 2:
+                    sb.appendCodePoint(0x10000 + mRandom.nextInt(0x100000));
+                    break;
+                case 3:
+                    // Unpaired surrogate
+                    sb.append((char) (0xd800 + mRandom.nextInt(0x800)));
+                    break;
+                default:
+                    sb.append((char) mRandom.nextInt(0x80));
+            }
+        }
+        return sb.toString();
+    }
+
+    private Object randomArg() {
+        switch (mRandom.nextInt(6)) {
+            case 0:
+                return mRandom.nextInt();
+            case 1:
+                return mRandom.nextLong();
+            case 2:
+                return mRandom.nextFloat() * 1e6f;
+            case 3:
+                return mRandom.nextDouble() * 1e12;
+            case 4:
+                return null;
+            default:
+                return randomString();
+        }
+    }
+
+    @Test
+    public void randomArgs() throws Exception {
+        ByteBuffer bb = ByteBuffer.allocate(16384);
+        VpnStatus.LogLevel[] levels = VpnStatus.LogLevel.values();
+        for (int i = 0; i < 5000; i++) {
+            Object[] args = new Object[1 + mRandom.nextInt(30)];
+            for (int j = 0; j < args.length; j++) {
+                args[j] = randomArg();
+                if (args[j] instanceof String)
+                    args[j] = utf8((String) args[j]);
+            }
+            LogItem item = new LogItem(levels[mRandom.nextInt(levels.length)], mRandom.nextInt(), args);
+
+            LogItem read = roundTrip(item, bb);
+            assertEquals(Arrays.deepToString(args), item, read);
+            assertEquals(item.toString(), read.toString());
+        }
+    }
+
+    @Test
+    public void randomMessages() throws Exception {
+        ByteBuffer bb = ByteBuffer.allocate(16384);
+        for (int i = 0; i < 5000; i++) {
+            String message = randomString();
+            LogItem item = new LogItem(VpnStatus.LogLevel.WARNING, mRandom.nextInt(12), message);
+            LogItem read = roundTrip(item, bb);
+            // Empty messages are written like missing ones
+            if (message.isEmpty()) {
+                assertEquals(item.getLogtime(), read.getLogtime());
+                assertEquals("Log (no context) resid 0", read.toString());
+            } else {
+                assertEquals(utf8(message), read.toString());
+                if (message.equals(utf8(message)))
+                    assertEquals(item, read);
+            }
+            assertEquals(item.getVerbosityLevel(), read.getVerbosityLevel());
+            assertEquals(item.getLogLevel(), read.getLogLevel());
+        }
+    }
+
+    @Test
+    public void surrogatePairs() throws Exception {
+        String message = "lock \uD83D\uDD12 key \uD83D\uDD11 end";
+        String arg = "\uD800\uDC00\uDBFF\uDFFF";
+        LogItem item = new LogItem(VpnStatus.LogLevel.INFO, 1, arg, message);
+        assertEquals(item, roundTrip(item, ByteBuffer.allocate(256)));
+
+        // Same bytes as String.getBytes, 4 bytes per pair
+        ByteBuffer bb = ByteBuffer.allocate(256);
+        new LogItem(VpnStatus.LogLevel.INFO, 0, message).marschalTo(bb);
+        byte[] expected = message.getBytes(UTF8);
+        int offset = 1 + 8 + 4 + 4 + 4;
+        assertEquals(expected.length, bb.getInt(offset));
+        assertArrayEquals(expected, Arrays.copyOfRange(bb.array(), offset + 4, offset + 4 + expected.length));
+    }
+
+    @Test
+    public void unpairedSurrogates() throws Exception {
+        String broken = "a\uD800b\uDC00c\uD83D";
+        LogItem read = roundTrip(new LogItem(VpnStatus.LogLevel.INFO, 0, broken), ByteBuffer.allocate(256));
+        assertEquals("a?b?c?", read.toString());
+        assertEquals(utf8(broken), read.toString());
+
+        read = roundTrip(new LogItem(VpnStatus.LogLevel.INFO, 5, (Object) broken), ByteBuffer.allocate(256));
+        assertEquals("Log (no context) resid 5a?b?c?", read.toString());
+    }
+
+    @Test
+    public void emptyStringsAndNulls() throws Exception {
+        ByteBuffer bb = ByteBuffer.allocate(256);
+        LogItem item = new LogItem(VpnStatus.LogLevel.INFO, 7, "", null, "", 0);
+        assertEquals(item, roundTrip(item, bb));
+
+        item = new LogItem(VpnStatus.LogLevel.INFO, 7);
+        assertEquals(item, roundTrip(item, bb));
+
+        // No arguments are read back as null
+        item = new LogItem(VpnStatus.LogLevel.INFO, 7, new Object[0]);
+        assertEquals(new LogItem(VpnStatus.LogLevel.INFO, 7).toString(), roundTrip(item, bb).toString());
+
+        item = new LogItem(VpnStatus.LogLevel.DEBUG, (String) null);
+        LogItem read = roundTrip(item, bb);
+        assertEquals(item, read);
+        assertEquals(VpnStatus.LogLevel.DEBUG, read.getLogLevel());
+    }
+
+    @Test
+    public void matchesMarschaledBytes() throws Exception {
+        LogItem item = new LogItem(VpnStatus.LogLevel.ERROR, 3, "x", 1.5f, 2.5d, 3L, null, Float.NaN);
+        byte[] bytes = item.getMarschaledBytes();
+
+        // Reused buffer with an offset
+        ByteBuffer bb = ByteBuffer.allocate(512);
+        bb.position(17);
+        item.marschalTo(bb);
+        assertArrayEquals(bytes, Arrays.copyOfRange(bb.array(), 17, bb.position()));
+
+        // Strings of buffers without an array are decoded differently
+        ByteBuffer direct = ByteBuffer.allocateDirect(512);
+        item.marschalTo(direct);
+        direct.flip();
+        assertEquals(item, new LogItem(direct));
+
+        assertEquals(item, new LogItem(bytes, bytes.length));
+    }
+
+    @Test
+    public void overflowIsRejected() throws Exception {
+        LogItem item = new LogItem(VpnStatus.LogLevel.INFO, 0, "message that does not fit");
+        for (int size = 0; size < item.getMarschaledBytes().length; size++) {
+            try {
+                item.marschalTo(ByteBuffer.allocate(size));
+                fail("no overflow with buffer size " + size);
+            } catch (BufferOverflowException ignored) {
+            }
+        }
+
+        char[] huge = new char[20000];
+        Arrays.fill(huge, '€');
+        try {
+            new LogItem(VpnStatus.LogLevel.INFO, 0, new String(huge)).getMarschaledBytes();
+            fail("no overflow for a message bigger than the buffer");
+        } catch (BufferOverflowException ignored) {
+        }
+    }
+
+    @Test
+    public void invalidInputIsRejected() throws Exception {
+        byte[] bytes = new LogItem(VpnStatus.LogLevel.INFO, 0, "x", "hello").getMarschaledBytes();
+
+        for (int len = 0; len < bytes.length; len++) {
+            try {
+                new LogItem(bytes, len);
+                fail("truncated item of " + len + " bytes accepted");
+            } catch (BufferUnderflowException | IndexOutOfBoundsException ignored) {
+            }
+        }
+
+        byte[] trailing = Arrays.copyOf(bytes, bytes.length + 1);
+        try {
+            new LogItem(trailing, trailing.length);
+            fail("trailing byte accepted");
+        } catch (UnsupportedEncodingException ignored) {
+        }
+
+        ByteBuffer bb = ByteBuffer.allocate(64);
+        bb.put((byte) 0).putLong(0).putInt(0).putInt(2).putInt(0).putInt(0).putInt(31);
+        bb.flip();
+        try {
+            new LogItem(bb);
+            fail("31 arguments accepted");
+        } catch (IndexOutOfBoundsException ignored) {
+        }
+
+        bb.clear();
+        bb.put((byte) 0).putLong(0).putInt(0).putInt(2).putInt(0).putInt(0).putInt(1).putChar('x');
+        bb.flip();
+        try {
+            new LogItem(bb);
+            fail("unknown type accepted");
+        } catch (UnsupportedEncodingException ignored) {
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes records to a {@link LogSegmentStore}, reopens it like after a restart of the app and
+ * checks what is replayed.
+ */
+public class LogSegmentStoreTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static void append(LogSegmentStore store, String... records) throws IOException {
+        for (String record : records) {
+            byte[] data = record.getBytes(UTF_8);
+            store.append(data, 0, data.length);
+        }
+        store.flush();
+    }
+
+    private static List<String> replay(LogSegmentStore store) throws IOException {
+        final List<String> records = new ArrayList<>();
+        store.replay(new LogSegmentStore.RecordListener() {
+            @Override
+            public void onRecord(ByteBuffer record) {
+                byte[] data = new byte[record.remaining()];
+                record.get(data);
+                records.add(new String(data, UTF_8));
+            }
+        });
+        return records;
+    }
+
+    private File[] segments(File dir) {
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        return files;
+    }
+
+    @Test
+    public void restartContinuesNewestSegment() throws Exception {
+        File dir = mFolder.newFolder();
+        LogSegmentStore store = new LogSegmentStore(dir, 10, 3);
+        replay(store);
+        store.open();
+        append(store, "a", "b");
+        store.close();
+
+        for (int restart = 0; restart < 3; restart++) {
+            store = new LogSegmentStore(dir, 10, 3);
+            replay(store);
+            store.open();
+            append(store, "c" + restart);
+            store.close();
+        }
+
+        assertEquals(1, segments(dir).length);
+        assertEquals(Arrays.asList("a", "b", "c0", "c1", "c2"), replay(new LogSegmentStore(dir, 10, 3)));
+    }
+
+    @Test
+    public void fullSegmentStartsNewOne() throws Exception {
+        File dir = mFolder.newFolder();
+        LogSegmentStore store = new LogSegmentStore(dir, 2, 3);
+        replay(store);
+        store.open();
+        append(store, "1", "2");
+        store.close();
+
+        store = new LogSegmentStore(dir, 2, 3);
+        replay(store);
+        store.open();
+        assertEquals(1, segments(dir).length);
+        append(store, "3");
+        store.close();
+        assertEquals(2, segments(dir).length);
+
+        // Only the newest segments are kept
+        store = new LogSegmentStore(dir, 2, 3);
+        replay(store);
+        store.open();
+        append(store, "4", "5", "6", "7");
+        store.close();
+        assertEquals(3, segments(dir).length);
+        assertEquals(Arrays.asList("3", "4", "5", "6", "7"), replay(new LogSegmentStore(dir, 2, 3)));
+    }
+
+    @Test
+    public void tornRecordIsOverwritten() throws Exception {
+        File dir = mFolder.newFolder();
+        LogSegmentStore store = new LogSegmentStore(dir, 10, 3);
+        replay(store);
+        store.open();
+        append(store, "first", "second");
+        store.close();
+
+        // Crash in the middle of the last record
+        File segment = segments(dir)[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        store = new LogSegmentStore(dir, 10, 3);
+        assertEquals(Arrays.asList("first"), replay(store));
+        store.open();
+        append(store, "third");
+        store.close();
+
+        assertEquals(1, segments(dir).length);
+        assertEquals(Arrays.asList("first", "third"), replay(new LogSegmentStore(dir, 10, 3)));
+    }
+
+    @Test
+    public void clearStartsOver() throws Exception {
+        File dir = mFolder.newFolder();
+        LogSegmentStore store = new LogSegmentStore(dir, 10, 3);
+        replay(store);
+        store.open();
+        append(store, "old");
+        store.clear();
+        append(store, "new");
+        store.close();
+
+        assertEquals(Arrays.asList("new"), replay(new LogSegmentStore(dir, 10, 3)));
+    }
+}
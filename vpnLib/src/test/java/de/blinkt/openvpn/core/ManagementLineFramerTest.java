@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Feeds management output to {@link ManagementLineFramer} in chunks of varying size.
+ */
+public class ManagementLineFramerTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Returns at most chunk bytes per read, like a socket that delivers partial lines
+     */
+    private static class ChunkedInputStream extends InputStream {
+        private final byte[] mData;
+        private final int mChunk;
+        private int mPos;
+
+        ChunkedInputStream(byte[] data, int chunk) {
+            mData = data;
+            mChunk = chunk;
+        }
+
+        void rewind() {
+            mPos = 0;
+        }
+
+        @Override
+        public int read() {
+            return mPos < mData.length ? mData[mPos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (mPos == mData.length)
+                return -1;
+            int n = Math.min(Math.min(len, mChunk), mData.length - mPos);
+            System.arraycopy(mData, mPos, b, off, n);
+            mPos += n;
+            return n;
+        }
+    }
+
+    private static List<String> frame(InputStream in) throws IOException {
+        final List<String> lines = new ArrayList<>();
+        ManagementLineFramer framer = new ManagementLineFramer();
+        ManagementLineFramer.LineListener listener = new ManagementLineFramer.LineListener() {
+            @Override
+            public void onLine(ManagementLineFramer.Line line) {
+                lines.add(line.toString());
+            }
+        };
+        while (framer.readFrom(in) != -1)
+            framer.drainLines(listener);
+        framer.drainLines(listener);
+        return lines;
+    }
+
+    private static List<String> frame(String input, int chunk) throws IOException {
+        return frame(new ChunkedInputStream(input.getBytes(UTF_8), chunk));
+    }
+
+    @Test
+    public void lineEndingsSplitAcrossReads() throws Exception {
+        String input = ">STATE:1,CONNECTING\r\n>LOG:1,I,hello\nSUCCESS: pid=1\r\n\r\n\nEND\n";
+        List<String> expected = Arrays.asList(">STATE:1,CONNECTING", ">LOG:1,I,hello",
+                "SUCCESS: pid=1", "", "", "END");
+        for (int chunk = 1; chunk <= input.length(); chunk++)
+            assertEquals("chunk size " + chunk, expected, frame(input, chunk));
+    }
+
+    @Test
+    public void incompleteLineIsKept() throws Exception {
+        ManagementLineFramer framer = new ManagementLineFramer();
+        final List<String> lines = new ArrayList<>();
+        ManagementLineFramer.LineListener listener = new ManagementLineFramer.LineListener() {
+            @Override
+            public void onLine(ManagementLineFramer.Line line) {
+                lines.add(line.toString());
+            }
+        };
+
+        framer.readFrom(new ByteArrayInputStream("first\r".getBytes(UTF_8)));
+        framer.drainLines(listener);
+        assertTrue(lines.isEmpty());
+        assertEquals(6, framer.pendingBytes());
+
+        framer.readFrom(new ByteArrayInputStream("\nsec".getBytes(UTF_8)));
+        framer.drainLines(listener);
+        assertEquals(Arrays.asList("first"), lines);
+        assertEquals(3, framer.pendingBytes());
+    }
+
+    @Test
+    public void loneCarriageReturnIsKept() throws Exception {
+        assertEquals(Arrays.asList("a\rb", "\r"), frame("a\rb\n\r\r\n", 2));
+    }
+
+    @Test
+    public void linesLongerThanBuffer() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int len : new int[]{4095, 4096, 4097, 10000, 70000, 3}) {
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < len; i++)
+                line.append((char) ('a' + (i * 7 + len) % 26));
+            expected.add(line.toString());
+            sb.append(line).append(len % 2 == 0 ? "\r\n" : "\n");
+        }
+        String input = sb.toString();
+        for (int chunk : new int[]{1, 1000, 4096, 8191, 1 << 20})
+            assertEquals("chunk size " + chunk, expected, frame(input, chunk));
+    }
+
+    @Test
+    public void nonAsciiText() throws Exception {
+        String[] lines = {
+                ">LOG:1,I,Verbindung hergestellt: Grüße aus Köln",
+                ">PASSWORD:Need 'Auth' username/password €",
+                "日本語のサーバー",
+                "emoji 🔒 lock",
+                "ascii prefix then é"
+        };
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines)
+            sb.append(line).append("\r\n");
+        String input = sb.toString();
+        // Small chunks split multi byte characters between reads
+        for (int chunk = 1; chunk <= 9; chunk++)
+            assertEquals("chunk size " + chunk, Arrays.asList(lines), frame(input, chunk));
+    }
+
+    @Test
+    public void malformedUtf8IsReplaced() throws Exception {
+        byte[] input = {'a', (byte) 0xc3, 'b', '\n', (byte) 0xff, '\n'};
+        assertEquals(Arrays.asList("a�b", "�"), frame(new ChunkedInputStream(input, 2)));
+    }
+
+    @Test
+    public void lineAccessors() throws Exception {
+        ManagementLineFramer framer = new ManagementLineFramer();
+        framer.readFrom(new ByteArrayInputStream(">BYTECOUNT:12345,678\n".getBytes(UTF_8)));
+        framer.drainLines(new ManagementLineFramer.LineListener() {
+            @Override
+            public void onLine(ManagementLineFramer.Line line) {
+                assertTrue(line.startsWith(">BYTECOUNT:"));
+                assertFalse(line.startsWith(">BYTECOUNT_CLI:"));
+                int comma = line.indexOf(',', 0);
+                assertEquals(16, comma);
+                assertEquals(12345, line.parseLong(11, comma));
+                assertEquals(678, line.parseLong(comma + 1, line.length()));
+                assertEquals("678", line.substring(comma + 1));
+            }
+        });
+    }
+
+    @Test
+    public void multiMegabyteStreamDoesNotAllocatePerLine() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        StringBuilder sb = new StringBuilder();
+        int lineCount = 0;
+        while (sb.length() < 4 << 20) {
+            sb.append(">BYTECOUNT:").append(lineCount * 1013L).append(',').append(lineCount * 17L).append("\r\n");
+            sb.append(">LOG:1566,I,Data Channel: cipher 'AES-256-GCM' Grüße\n");
+            lineCount += 2;
+        }
+        final ChunkedInputStream in = new ChunkedInputStream(sb.toString().getBytes(UTF_8), 1500);
+
+        final long[] sum = new long[2];
+        ManagementLineFramer framer = new ManagementLineFramer();
+        ManagementLineFramer.LineListener listener = new ManagementLineFramer.LineListener() {
+            @Override
+            public void onLine(ManagementLineFramer.Line line) {
+                sum[0]++;
+                if (line.startsWith(">BYTECOUNT:"))
+                    sum[1] += line.parseLong(11, line.indexOf(',', 11));
+            }
+        };
+
+        // First pass grows the buffers and warms up the JIT
+        while (framer.readFrom(in) != -1)
+            framer.drainLines(listener);
+        assertEquals(lineCount, sum[0]);
+
+        long threadId = Thread.currentThread().getId();
+        for (int round = 0; round < 3; round++) {
+            in.rewind();
+            long before = threadBean.getThreadAllocatedBytes(threadId);
+            while (framer.readFrom(in) != -1)
+                framer.drainLines(listener);
+            long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+            // Allow some noise from the JIT and the measurement itself, but nothing per line
+            assertTrue("allocated " + allocated + " bytes for " + lineCount + " lines",
+                    allocated < lineCount);
+        }
+        assertEquals(4 * lineCount, sum[0]);
+    }
+}
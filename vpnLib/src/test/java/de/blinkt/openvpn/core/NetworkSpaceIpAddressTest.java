@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.net.Inet6Address;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the long based address arithmetic of {@link NetworkSpace.IpAddress} against the same
+ * calculations done with BigInteger for random IPv4 and IPv6 networks.
+ */
+public class NetworkSpaceIpAddressTest {
+
+    private static final BigInteger LOW_64 = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+    private static final int ROUNDS = 20000;
+
+    private final Random mRandom = new Random(0x5eed);
+
+    /**
+     * Network with its address as BigInteger next to the IpAddress under test
+     */
+    private static class Net {
+        final NetworkSpace.IpAddress ip;
+        final BigInteger address;
+        final int mask;
+        final int bits;
+
+        Net(NetworkSpace.IpAddress ip, BigInteger address, int mask, int bits) {
+            this.ip = ip;
+            this.address = address;
+            this.mask = mask;
+            this.bits = bits;
+        }
+
+        BigInteger hostMask() {
+            return BigInteger.ONE.shiftLeft(bits - mask).subtract(BigInteger.ONE);
+        }
+
+        BigInteger first() {
+            return address.andNot(hostMask());
+        }
+
+        BigInteger last() {
+            return address.or(hostMask());
+        }
+    }
+
+    private int randomMask(int bits) {
+        // Favour the masks around the 32 and 64 bit boundaries of the longs
+        int[] edges = {0, 1, 31, 32, 33, 63, 64, 65, 95, 96, 127, 128};
+        if (mRandom.nextInt(4) == 0) {
+            int edge = edges[mRandom.nextInt(edges.length)];
+            if (edge <= bits)
+                return edge;
+        }
+        return mRandom.nextInt(bits + 1);
+    }
+
+    private Net randomV4() {
+        int mask = randomMask(32);
+        long address = mRandom.nextInt() & 0xffffffffL;
+        String dotted = String.format(Locale.US, "%d.%d.%d.%d",
+                address >>> 24, (address >>> 16) & 0xff, (address >>> 8) & 0xff, address & 0xff);
+        NetworkSpace.IpAddress ip = new NetworkSpace.IpAddress(new CIDRIP(dotted, mask), true);
+        return new Net(ip, BigInteger.valueOf(address), mask, 32);
+    }
+
+    private Net randomV6() throws Exception {
+        int mask = randomMask(128);
+        byte[] bytes = new byte[16];
+        mRandom.nextBytes(bytes);
+        // Sparse addresses exercise the :: handling of getIPv6Address
+        for (int i = 0; i < 16; i++) {
+            if (mRandom.nextInt(3) == 0)
+                bytes[i] = 0;
+        }
+        if (mRandom.nextInt(8) == 0)
+            bytes = new byte[16];
+        Inet6Address address = Inet6Address.getByAddress(null, bytes, -1);
+        NetworkSpace.IpAddress ip = new NetworkSpace.IpAddress(address, mask, true);
+        return new Net(ip, new BigInteger(1, bytes), mask, 128);
+    }
+
+    private Net randomNet(boolean v4) throws Exception {
+        return v4 ? randomV4() : randomV6();
+    }
+
+    /**
+     * @return a network that overlaps net in most cases, to get both results of containsNet
+     */
+    private Net relatedNet(Net net) throws Exception {
+        Net other = net.bits == 32 ? randomV4() : randomV6();
+        if (mRandom.nextBoolean())
+            return other;
+        BigInteger address = net.address.andNot(other.hostMask()).or(other.address.and(other.hostMask()));
+        NetworkSpace.IpAddress ip = new NetworkSpace.IpAddress(address.shiftRight(64).longValue(),
+                address.and(LOW_64).longValue(), other.mask, true, net.bits == 32);
+        return new Net(ip, address, other.mask, net.bits);
+    }
+
+    private static void assertHalves(String msg, BigInteger expected, long high, long low) {
+        assertEquals(msg + " high", expected.shiftRight(64).longValue(), high);
+        assertEquals(msg + " low", expected.and(LOW_64).longValue(), low);
+    }
+
+    private static int signum(int value) {
+        return Integer.signum(value);
+    }
+
+    @Test
+    public void firstAndLastAddress() throws Exception {
+        for (int i = 0; i < ROUNDS; i++) {
+            Net net = randomNet(i % 2 == 0);
+            String msg = net.ip + " from " + net.address.toString(16);
+            assertHalves(msg + " first", net.first(), net.ip.getFirstHigh(), net.ip.getFirstLow());
+            assertHalves(msg + " last", net.last(), net.ip.getLastHigh(), net.ip.getLastLow());
+        }
+    }
+
+    @Test
+    public void masksAtLongBoundaries() throws Exception {
+        byte[] ones = new byte[16];
+        java.util.Arrays.fill(ones, (byte) 0xff);
+        BigInteger all = new BigInteger(1, ones);
+        for (int mask = 0; mask <= 128; mask++) {
+            NetworkSpace.IpAddress ip = new NetworkSpace.IpAddress(Inet6Address.getByAddress(null, ones, -1), mask, true);
+            Net net = new Net(ip, all, mask, 128);
+            assertHalves("ffff.../" + mask + " first", net.first(), ip.getFirstHigh(), ip.getFirstLow());
+            assertHalves("ffff.../" + mask + " last", net.last(), ip.getLastHigh(), ip.getLastLow());
+
+            NetworkSpace.IpAddress zero = new NetworkSpace.IpAddress(0, 0, mask, true, false);
+            Net zeroNet = new Net(zero, BigInteger.ZERO, mask, 128);
+            assertHalves("::/" + mask + " last", zeroNet.last(), zero.getLastHigh(), zero.getLastLow());
+        }
+        for (int mask = 0; mask <= 32; mask++) {
+            NetworkSpace.IpAddress ip = new NetworkSpace.IpAddress(new CIDRIP("255.255.255.255", mask), true);
+            Net net = new Net(ip, BigInteger.valueOf(0xffffffffL), mask, 32);
+            assertHalves("255.255.255.255/" + mask + " first", net.first(), ip.getFirstHigh(), ip.getFirstLow());
+            assertHalves("255.255.255.255/" + mask + " last", net.last(), ip.getLastHigh(), ip.getLastLow());
+        }
+    }
+
+    @Test
+    public void containsNetAndCompare() throws Exception {
+        for (int i = 0; i < ROUNDS; i++) {
+            Net a = randomNet(i % 2 == 0);
+            Net b = relatedNet(a);
+            String msg = a.ip + " vs " + b.ip;
+
+            boolean contains = a.first().compareTo(b.first()) <= 0 && a.last().compareTo(b.last()) >= 0;
+            assertEquals(msg + " containsNet", contains, a.ip.containsNet(b.ip));
+
+            assertEquals(msg + " compareFirst", a.first().compareTo(b.first()), signum(a.ip.compareFirst(b.ip)));
+            assertEquals(msg + " compareLast", a.last().compareTo(b.last()), signum(a.ip.compareLast(b.ip)));
+            assertEquals(msg + " endsBefore", a.last().compareTo(b.first()) < 0, a.ip.endsBefore(b.ip));
+
+            int expected = a.first().compareTo(b.first());
+            if (expected == 0)
+                expected = -Integer.signum(a.mask - b.mask);
+            assertEquals(msg + " compareTo", expected, signum(a.ip.compareTo(b.ip)));
+            assertEquals(msg + " equals", expected == 0, a.ip.equals(b.ip));
+            if (expected == 0)
+                assertEquals(msg + " hashCode", a.ip.hashCode(), b.ip.hashCode());
+        }
+    }
+
+    @Test
+    public void split() throws Exception {
+        for (int i = 0; i < ROUNDS; i++) {
+            Net net = randomNet(i % 2 == 0);
+            if (net.mask == net.bits)
+                continue;
+            NetworkSpace.IpAddress[] halves = net.ip.split();
+            BigInteger half = BigInteger.ONE.shiftLeft(net.bits - net.mask - 1);
+            String msg = net.ip.toString();
+            assertEquals(msg, net.mask + 1, halves[0].networkMask);
+            assertEquals(msg, net.mask + 1, halves[1].networkMask);
+            assertHalves(msg + " first half", net.first(), halves[0].getFirstHigh(), halves[0].getFirstLow());
+            assertHalves(msg + " first half last", net.first().add(half).subtract(BigInteger.ONE),
+                    halves[0].getLastHigh(), halves[0].getLastLow());
+            assertHalves(msg + " second half", net.first().add(half), halves[1].getFirstHigh(), halves[1].getFirstLow());
+            assertHalves(msg + " second half last", net.last(), halves[1].getLastHigh(), halves[1].getLastLow());
+        }
+    }
+
+    /**
+     * Formatting of the BigInteger based implementation this class replaced
+     */
+    private static String bigIntegerIPv6Address(BigInteger r) {
+        String ipv6str = null;
+        boolean lastPart = true;
+        while (r.compareTo(BigInteger.ZERO) == 1) {
+            long part = r.mod(BigInteger.valueOf(0x10000)).longValue();
+            if (ipv6str != null || part != 0) {
+                if (ipv6str == null && !lastPart)
+                    ipv6str = ":";
+                if (lastPart)
+                    ipv6str = String.format(Locale.US, "%x", part);
+                else
+                    ipv6str = String.format(Locale.US, "%x:%s", part, ipv6str);
+            }
+            r = r.shiftRight(16);
+            lastPart = false;
+        }
+        return ipv6str == null ? "::" : ipv6str;
+    }
+
+    @Test
+    public void ipv6Address() throws Exception {
+        for (int i = 0; i < ROUNDS; i++) {
+            Net net = randomV6();
+            assertEquals(net.address.toString(16), bigIntegerIPv6Address(net.address), net.ip.getIPv6Address());
+        }
+        assertEquals("::", new NetworkSpace.IpAddress(0, 0, 0, true, false).getIPv6Address());
+        assertEquals("2000::", new NetworkSpace.IpAddress(0x2000L << 48, 0, 3, true, false).getIPv6Address());
+        assertEquals("1", new NetworkSpace.IpAddress(0, 1, 128, true, false).getIPv6Address());
+        assertEquals("1::", new NetworkSpace.IpAddress(0, 1L << 16, 112, true, false).getIPv6Address());
+    }
+
+    @Test
+    public void ipv4Address() throws Exception {
+        for (int i = 0; i < ROUNDS; i++) {
+            Net net = randomV4();
+            long ip = net.address.longValue();
+            String expected = String.format(Locale.US, "%d.%d.%d.%d/%d",
+                    ip >> 24, (ip >> 16) & 0xff, (ip >> 8) & 0xff, ip & 0xff, net.mask);
+            assertEquals(expected, net.ip.toString());
+        }
+    }
+}
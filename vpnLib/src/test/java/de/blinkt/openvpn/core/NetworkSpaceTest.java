@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the routes {@link NetworkSpace#getPositiveIPList(boolean)} computes from included and
+ * excluded networks and how {@link NetworkSpace#widenRoutes} limits their number.
+ */
+public class NetworkSpaceTest {
+
+    /**
+     * Adds routes like "10.0.0.0/8", excluded ones start with "!"
+     */
+    private static NetworkSpace space(String... routes) throws Exception {
+        NetworkSpace space = new NetworkSpace();
+        for (String route : routes) {
+            boolean include = !route.startsWith("!");
+            String[] parts = route.substring(include ? 0 : 1).split("/");
+            int mask = Integer.parseInt(parts[1]);
+            if (parts[0].contains(":"))
+                space.addIPv6((Inet6Address) InetAddress.getByName(parts[0]), mask, include);
+            else
+                space.addIP(new CIDRIP(parts[0], mask), include);
+        }
+        return space;
+    }
+
+    private static String toString(NetworkSpace.IpAddress ip) throws Exception {
+        if (ip.toString().indexOf(':') < 0)
+            return ip.toString();
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (ip.getFirstHigh() >>> (56 - 8 * i));
+            bytes[i + 8] = (byte) (ip.getFirstLow() >>> (56 - 8 * i));
+        }
+        return InetAddress.getByAddress(bytes).getHostAddress() + "/" + ip.networkMask;
+    }
+
+    private static List<String> positive(NetworkSpace space, boolean keepIncludedRoutes) throws Exception {
+        List<String> routes = new ArrayList<>();
+        for (NetworkSpace.IpAddress ip : space.getPositiveIPList(keepIncludedRoutes))
+            routes.add(toString(ip));
+        return routes;
+    }
+
+    private static List<String> positive(String... routes) throws Exception {
+        return positive(space(routes), false);
+    }
+
+    @Test
+    public void singleRoutes() throws Exception {
+        assertEquals(Arrays.asList("10.0.0.0/8"), positive("10.0.0.0/8"));
+        assertEquals(Arrays.asList("10.0.0.1/32"), positive("10.0.0.1/32"));
+        assertEquals(Arrays.asList("0.0.0.0/0"), positive("0.0.0.0/0"));
+        assertEquals(Arrays.asList("2001:db8:0:0:0:0:0:1/128"), positive("2001:db8::1/128"));
+        assertEquals(Arrays.asList("0:0:0:0:0:0:0:0/0"), positive("::/0"));
+        assertEquals(Arrays.<String>asList(), positive("!10.0.0.0/8"));
+        assertEquals(Arrays.<String>asList(), positive());
+    }
+
+    @Test
+    public void nestedIncludeAndExclude() throws Exception {
+        assertEquals(Arrays.asList("10.0.0.0/16", "10.1.2.0/24", "10.2.0.0/15", "10.4.0.0/14", "10.8.0.0/13",
+                        "10.16.0.0/12", "10.32.0.0/11", "10.64.0.0/10", "10.128.0.0/9"),
+                positive("10.0.0.0/8", "!10.1.0.0/16", "10.1.2.0/24"));
+
+        // Include inside exclude inside include inside exclude
+        assertEquals(Arrays.asList("10.0.0.0/25", "10.0.0.192/26"),
+                positive("!10.0.0.0/16", "10.0.0.0/24", "!10.0.0.128/25", "10.0.0.192/26"));
+
+        // The more specific network wins regardless of the order
+        assertEquals(positive("10.0.0.0/8", "!10.0.0.0/9"), positive("!10.0.0.0/9", "10.0.0.0/8"));
+        assertEquals(Arrays.asList("10.128.0.0/9"), positive("!10.0.0.0/9", "10.0.0.0/8"));
+    }
+
+    @Test
+    public void adjacentNetworksAreMerged() throws Exception {
+        assertEquals(Arrays.asList("192.168.0.0/23"), positive("192.168.0.0/24", "192.168.1.0/24"));
+        assertEquals(Arrays.asList("10.0.0.0/8"), positive("10.0.0.0/9", "10.128.0.0/10", "10.192.0.0/10"));
+        // Adjacent but not in the same parent network
+        assertEquals(Arrays.asList("192.168.1.0/24", "192.168.2.0/24"), positive("192.168.1.0/24", "192.168.2.0/24"));
+        // Excluding and including the same half again
+        assertEquals(Arrays.asList("10.0.0.0/8"), positive("10.0.0.0/8", "!10.0.0.0/9", "10.0.0.0/10", "10.64.0.0/10"));
+        assertEquals(Arrays.asList("0.0.0.0/0"), positive("0.0.0.0/1", "128.0.0.0/1"));
+        assertEquals(Arrays.asList("2001:db8:0:0:0:0:0:0/127"), positive("2001:db8::/128", "2001:db8::1/128"));
+    }
+
+    @Test
+    public void excludeFromDefaultRoute() throws Exception {
+        assertEquals(Arrays.asList("0.0.0.0/5", "8.0.0.0/7", "11.0.0.0/8", "12.0.0.0/6", "16.0.0.0/4",
+                        "32.0.0.0/3", "64.0.0.0/2", "128.0.0.0/1"),
+                positive("0.0.0.0/0", "!10.0.0.0/8"));
+
+        List<String> routes = positive("0.0.0.0/0", "!255.255.255.255/32");
+        assertEquals(32, routes.size());
+        assertEquals("0.0.0.0/1", routes.get(0));
+        assertEquals("255.255.255.254/32", routes.get(31));
+    }
+
+    @Test
+    public void hostRoutes() throws Exception {
+        assertEquals(Arrays.asList("10.0.0.0/31", "10.0.0.3/32"), positive("10.0.0.0/30", "!10.0.0.2/32"));
+        assertEquals(Arrays.asList("10.0.0.1/32", "10.0.0.2/32"), positive("10.0.0.1/32", "10.0.0.2/32"));
+        assertEquals(Arrays.asList("2001:db8:0:0:0:0:0:0/128", "2001:db8:0:0:0:0:0:2/127"),
+                positive("2001:db8::/126", "!2001:db8::1/128"));
+    }
+
+    @Test
+    public void ipv6AroundLongBoundary() throws Exception {
+        // The prefixes cross the border between the high and the low 64 bits
+        assertEquals(Arrays.asList("2001:db8:0:0:0:0:0:0/64", "2001:db8:0:1:8000:0:0:0/65", "2001:db8:0:2:0:0:0:0/63"),
+                positive("2001:db8::/62", "!2001:db8:0:1::/65"));
+        assertEquals(Arrays.asList("2001:db8:0:0:0:0:0:0/63"), positive("2001:db8::/64", "2001:db8:0:1::/64"));
+    }
+
+    @Test
+    public void ipv4AndIpv6InOneSpace() throws Exception {
+        assertEquals(Arrays.asList("10.0.0.0/8", "2001:db8:0:0:0:0:0:0/32"),
+                positive("2001:db8::/32", "10.0.0.0/8", "!fd00::/8"));
+    }
+
+    @Test
+    public void keepIncludedRoutes() throws Exception {
+        NetworkSpace space = space("10.0.0.0/9", "10.128.0.0/9", "10.0.0.0/16", "!10.200.0.0/16");
+        assertEquals(Arrays.asList("10.0.0.0/9", "10.128.0.0/10", "10.192.0.0/13", "10.201.0.0/16",
+                "10.202.0.0/15", "10.204.0.0/14", "10.208.0.0/12", "10.224.0.0/11"), positive(space, false));
+        // Only the included networks that contain no excluded one are added back
+        List<String> kept = positive(space, true);
+        assertEquals(positive(space, false), kept.subList(0, 8));
+        assertEquals(Arrays.asList("10.0.0.0/16"), kept.subList(8, kept.size()));
+    }
+
+    /**
+     * Routes below 10.0.0.0/24 and 2001:db8:0:100::/56 are compared with the most specific
+     * network of every single address, or /64 for IPv6
+     */
+    @Test
+    public void randomRoutesMatchMostSpecificNetwork() throws Exception {
+        Random random = new Random(7);
+        for (int round = 0; round < 3000; round++) {
+            boolean v4 = round % 2 == 0;
+            int baseMask = v4 ? 24 : 56;
+            List<String> routes = new ArrayList<>();
+            int count = 1 + random.nextInt(12);
+            for (int i = 0; i < count; i++) {
+                int mask = baseMask + random.nextInt(9);
+                int unit = random.nextInt(256) & ~((1 << (baseMask + 8 - mask)) - 1);
+                String prefix = random.nextInt(3) == 0 ? "!" : "";
+                if (v4)
+                    routes.add(prefix + "10.0.0." + unit + "/" + mask);
+                else
+                    routes.add(prefix + String.format("2001:db8:0:1%02x::/%d", unit, mask));
+            }
+            String[] array = routes.toArray(new String[0]);
+
+            // Route of every unit like the most specific network that contains it, first one wins
+            boolean[] routed = new boolean[256];
+            int[] best = new int[256];
+            Arrays.fill(best, -1);
+            for (String route : array) {
+                boolean include = !route.startsWith("!");
+                int mask = Integer.parseInt(route.substring(route.indexOf('/') + 1));
+                int unit = v4 ? Integer.parseInt(route.substring(route.lastIndexOf('.') + 1, route.indexOf('/')))
+                        : Integer.parseInt(route.substring(route.indexOf(":1") + 2, route.indexOf("::")), 16);
+                for (int u = unit; u < unit + (1 << (baseMask + 8 - mask)); u++) {
+                    if (mask > best[u]) {
+                        best[u] = mask;
+                        routed[u] = include;
+                    }
+                }
+            }
+
+            List<String> expected = new ArrayList<>();
+            cover(routed, 0, 256, baseMask, v4, expected);
+            assertEquals(routes.toString(), expected, positive(array));
+        }
+    }
+
+    private static Vector<NetworkSpace.IpAddress> merged(String... routes) throws Exception {
+        return NetworkSpace.compactRoutes(space(routes).getNetworks(true), !routes[0].contains(":"));
+    }
+
+    private static List<String> widen(int maxRoutes, String... routes) throws Exception {
+        List<String> widened = new ArrayList<>();
+        for (NetworkSpace.IpAddress ip : NetworkSpace.widenRoutes(merged(routes), !routes[0].contains(":"), maxRoutes))
+            widened.add(toString(ip));
+        return widened;
+    }
+
+    @Test
+    public void widenRoutesToSingleRoute() throws Exception {
+        assertEquals(Arrays.asList("10.0.0.0/8"), widen(1, "10.1.0.0/16", "10.200.0.0/16"));
+        assertEquals(Arrays.asList("0.0.0.0/0"), widen(1, "10.0.0.0/24", "192.168.0.0/24"));
+        assertEquals(Arrays.asList("10.0.0.0/30"), widen(1, "10.0.0.1/32", "10.0.0.2/32"));
+    }
+
+    @Test
+    public void widenRoutesKeepsRoutesBelowLimit() throws Exception {
+        assertEquals(Arrays.asList("10.1.0.0/16", "10.200.0.0/16"), widen(2, "10.1.0.0/16", "10.200.0.0/16"));
+        assertEquals(Arrays.asList("10.1.0.0/16", "10.200.0.0/16"), widen(0, "10.1.0.0/16", "10.200.0.0/16"));
+        // Only the long prefixes are shortened
+        assertEquals(Arrays.asList("10.0.0.0/8", "192.168.0.0/22"),
+                widen(2, "10.0.0.0/8", "192.168.1.0/24", "192.168.2.0/24"));
+    }
+
+    @Test
+    public void widenIpv6RoutesAcrossLongBoundary() throws Exception {
+        // Differ in bit 63, the widened route ends in the high 64 bits
+        assertEquals(Arrays.asList("2001:db8:0:0:0:0:0:0/63"),
+                widen(1, "2001:db8::/96", "2001:db8:0:1::/96"));
+        // Differ in bit 70, the widened route ends in the low 64 bits
+        assertEquals(Arrays.asList("2001:db8:0:0:0:0:0:0/70"),
+                widen(1, "2001:db8::/80", "2001:db8::200:0:0:0/80"));
+        assertEquals(Arrays.asList("2001:db8:0:0:0:0:0:0/64", "2001:db8:0:1:0:0:0:0/65"),
+                widen(2, "2001:db8::/65", "2001:db8::8000:0:0:0/66", "2001:db8:0:1::/72", "2001:db8:0:1:100::/72"));
+    }
+
+    @Test
+    public void randomWidenedRoutesCoverOriginalRoutes() throws Exception {
+        Random random = new Random(11);
+        for (int round = 0; round < 500; round++) {
+            boolean v4 = round % 2 == 0;
+            List<String> routes = new ArrayList<>();
+            for (int i = 1 + random.nextInt(40); i > 0; i--) {
+                if (v4)
+                    routes.add(String.format("10.%d.%d.0/%d", random.nextInt(256), random.nextInt(256), 16 + random.nextInt(9)));
+                else
+                    routes.add(String.format("2001:db8:%x:%x::/%d", random.nextInt(65536), random.nextInt(65536),
+                            48 + random.nextInt(40)));
+            }
+            Vector<NetworkSpace.IpAddress> original = merged(routes.toArray(new String[0]));
+
+            for (int maxRoutes = 1; maxRoutes <= original.size() + 1; maxRoutes++) {
+                Vector<NetworkSpace.IpAddress> widened = NetworkSpace.widenRoutes(original, v4, maxRoutes);
+                String msg = routes + " max " + maxRoutes + " widened " + widened;
+                assertTrue(msg, widened.size() <= maxRoutes);
+                assertTrue(msg, widened.size() >= 1);
+                if (original.size() <= maxRoutes)
+                    assertEquals(msg, original, widened);
+                // Every original route stays routed and no widened route comes from nowhere
+                for (NetworkSpace.IpAddress route : original)
+                    assertTrue(msg + " lost " + route, containedInAny(widened, route));
+                for (NetworkSpace.IpAddress route : widened) {
+                    boolean hasOriginal = false;
+                    for (NetworkSpace.IpAddress orig : original)
+                        hasOriginal |= route.containsNet(orig);
+                    assertTrue(msg + " unrelated " + route, hasOriginal);
+                }
+            }
+        }
+    }
+
+    private static boolean containedInAny(Collection<NetworkSpace.IpAddress> routes, NetworkSpace.IpAddress ip) {
+        for (NetworkSpace.IpAddress route : routes) {
+            if (route.containsNet(ip))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the smallest set of networks that covers the routed units in [start, end)
+     */
+    private static void cover(boolean[] routed, int start, int end, int mask, boolean v4, Collection<String> out) {
+        boolean all = true;
+        boolean none = true;
+        for (int u = start; u < end; u++) {
+            all &= routed[u];
+            none &= !routed[u];
+        }
+        if (none)
+            return;
+        if (all) {
+            out.add(v4 ? "10.0.0." + start + "/" + mask
+                    : String.format("2001:db8:0:%x:0:0:0:0/%d", 0x100 + start, mask));
+            return;
+        }
+        int middle = (start + end) / 2;
+        cover(routed, start, middle, mask + 1, v4, out);
+        cover(routed, middle, end, mask + 1, v4, out);
+    }
+}
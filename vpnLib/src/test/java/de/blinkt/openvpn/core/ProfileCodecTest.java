@@ -0,0 +1,453 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import de.blinkt.openvpn.VpnProfile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Encodes and decodes profiles with {@link ProfileCodec}. The fields are found by reflection, so
+ * a field that is added to {@link VpnProfile} or {@link Connection} but not to the codec fails
+ * the round trip.
+ */
+public class ProfileCodecTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Field numbers and wire types of the format, they must never change
+    private static final int P_NAME = 2;
+    private static final int P_CONNECTIONS = 50;
+    private static final int P_ALLOWED_APPS_VPN = 52;
+    private static final int C_SERVER_NAME = 1;
+    private static final int C_SERVER_PORT = 2;
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_NULL = 1;
+    private static final int WIRE_BYTES = 2;
+
+    private final Random mRandom = new Random(23);
+
+    /**
+     * @return the fields that were written by Java serialization
+     */
+    private static List<Field> persistentFields(Class<?> cls) {
+        List<Field> fields = new ArrayList<>();
+        for (Field field : cls.getDeclaredFields()) {
+            int modifiers = field.getModifiers();
+            if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic())
+                continue;
+            field.setAccessible(true);
+            fields.add(field);
+        }
+        return fields;
+    }
+
+    private Object testValue(Field field, Object current) {
+        Class<?> type = field.getType();
+        if (type == String.class) {
+            return "value " + mRandom.nextInt() + " \u00e4\u20ac\uD83D\uDD12";
+        } else if (type == boolean.class) {
+            return !(Boolean) current;
+        } else if (type == int.class) {
+            int value;
+            do {
+                value = mRandom.nextInt();
+            } while (value == (Integer) current);
+            return value;
+        } else if (type == long.class) {
+            long value;
+            do {
+                value = mRandom.nextLong();
+            } while (value == (Long) current);
+            return value;
+        } else if (type == UUID.class) {
+            return UUID.randomUUID();
+        } else if (type == HashSet.class) {
+            return new HashSet<>(Arrays.asList("com.example.a", "org.example.b" + mRandom.nextInt()));
+        } else if (type == Connection[].class) {
+            Connection[] connections = new Connection[1 + mRandom.nextInt(3)];
+            for (int i = 0; i < connections.length; i++)
+                connections[i] = fill(new Connection());
+            return connections;
+        } else if (type.isEnum()) {
+            Object[] constants = type.getEnumConstants();
+            Object value;
+            do {
+                value = constants[mRandom.nextInt(constants.length)];
+            } while (value == current);
+            return value;
+        }
+        fail("No test value for " + field + ", it probably also needs a field number in ProfileCodec");
+        return null;
+    }
+
+    /**
+     * Sets every persistent field to a value that differs from its default
+     */
+    private <T> T fill(T obj) {
+        try {
+            for (Field field : persistentFields(obj.getClass())) {
+                Object value = testValue(field, field.get(obj));
+                field.set(obj, value);
+            }
+        } catch (IllegalAccessException e) {
+            throw new AssertionError(e);
+        }
+        return obj;
+    }
+
+    private static void assertFieldsEqual(String path, Object expected, Object actual) throws Exception {
+        assertEquals(path, expected.getClass(), actual.getClass());
+        for (Field field : persistentFields(expected.getClass())) {
+            Object e = field.get(expected);
+            Object a = field.get(actual);
+            String name = path + "." + field.getName();
+            if (e instanceof Connection[] && a instanceof Connection[]) {
+                assertEquals(name, ((Connection[]) e).length, ((Connection[]) a).length);
+                for (int i = 0; i < ((Connection[]) e).length; i++)
+                    assertFieldsEqual(name + "[" + i + "]", ((Connection[]) e)[i], ((Connection[]) a)[i]);
+            } else {
+                assertEquals(name, e, a);
+            }
+        }
+    }
+
+    private static VpnProfile roundTrip(VpnProfile vp) throws Exception {
+        VpnProfile decoded = ProfileCodec.decode(ProfileCodec.encode(vp));
+        assertFieldsEqual("profile", vp, decoded);
+        return decoded;
+    }
+
+    private static void assertSummaryMatches(byte[] data) throws Exception {
+        VpnProfile vp = ProfileCodec.decode(data);
+        ProfileCodec.Summary summary = ProfileCodec.decodeSummary(data);
+        assertEquals(vp.getUUID(), summary.uuid);
+        assertEquals(vp.mName, summary.name);
+        assertEquals(vp.mVersion, summary.version);
+        assertEquals(vp.mLastUsed, summary.lastUsed);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long v) {
+        while ((v & ~0x7fL) != 0) {
+            out.write((int) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, int field, byte[] bytes) {
+        writeVarLong(out, field << 3 | WIRE_BYTES);
+        writeVarLong(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeUnknownFields(ByteArrayOutputStream out) {
+        writeVarLong(out, 200 << 3 | WIRE_VARINT);
+        writeVarLong(out, 300);
+        writeVarLong(out, 201 << 3 | WIRE_NULL);
+        writeBytes(out, 202, new byte[]{1, 2, 3, (byte) 0x80, (byte) 0xff});
+    }
+
+    private static ByteArrayOutputStream header(int formatVersion) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('V');
+        out.write('P');
+        out.write('B');
+        out.write(0);
+        writeVarLong(out, formatVersion);
+        return out;
+    }
+
+    @Test
+    public void everyFieldRoundTrips() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            VpnProfile vp = fill(new VpnProfile("profile"));
+            VpnProfile defaults = new VpnProfile("profile");
+            // Guards against a test value that equals the default, the field would then pass unchecked
+            for (Field field : persistentFields(VpnProfile.class)) {
+                if (field.getType() != UUID.class && field.getType() != Connection[].class)
+                    assertNotEquals(field.getName(), field.get(defaults), field.get(vp));
+            }
+            roundTrip(vp);
+        }
+    }
+
+    @Test
+    public void defaultProfileRoundTrips() throws Exception {
+        roundTrip(new VpnProfile("default"));
+        roundTrip(new VpnProfile(null));
+    }
+
+    @Test
+    public void nullAndEmptyValues() throws Exception {
+        VpnProfile vp = new VpnProfile("");
+        vp.mAlias = null;
+        vp.mCaFilename = "";
+        vp.mDNS1 = null;
+        vp.mDNS2 = "";
+        vp.mConnections = null;
+        vp.mAllowedAppsVpn = null;
+        vp.setUUID(null);
+        VpnProfile decoded = roundTrip(vp);
+        assertEquals("", decoded.mName);
+        assertNull(decoded.mAlias);
+        assertEquals("", decoded.mCaFilename);
+        assertNull(decoded.mDNS1);
+        assertEquals("", decoded.mDNS2);
+        assertNull(decoded.mConnections);
+        assertNull(decoded.mAllowedAppsVpn);
+        assertNull(decoded.getUUID());
+
+        vp = new VpnProfile(null);
+        vp.mConnections = new Connection[0];
+        vp.mAllowedAppsVpn = new HashSet<>(Arrays.asList("", "com.example.app"));
+        decoded = roundTrip(vp);
+        assertEquals(0, decoded.mConnections.length);
+        assertNull(decoded.mName);
+
+        Connection conn = new Connection();
+        conn.mServerName = null;
+        conn.mServerPort = "";
+        conn.mProxyType = null;
+        conn.mProxyAuthUser = "";
+        vp.mConnections = new Connection[]{conn, new Connection()};
+        decoded = roundTrip(vp);
+        assertNull(decoded.mConnections[0].mServerName);
+        assertEquals("", decoded.mConnections[0].mServerPort);
+        assertNull(decoded.mConnections[0].mProxyType);
+        assertNull(decoded.mConnections[0].mProxyAuthPassword);
+        assertEquals("", decoded.mConnections[0].mProxyAuthUser);
+    }
+
+    @Test
+    public void unknownFieldsAreSkipped() throws Exception {
+        VpnProfile vp = fill(new VpnProfile("profile"));
+        byte[] data = ProfileCodec.encode(vp);
+
+        // In front of the first and behind the last field, the last byte is the end tag
+        int headerLength = 5;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(data, 0, headerLength);
+        writeUnknownFields(out);
+        out.write(data, headerLength, data.length - headerLength - 1);
+        writeUnknownFields(out);
+        out.write(data, data.length - 1, 1);
+        byte[] withUnknown = out.toByteArray();
+
+        assertFieldsEqual("profile", vp, ProfileCodec.decode(withUnknown));
+        assertSummaryMatches(withUnknown);
+    }
+
+    @Test
+    public void unknownConnectionFieldsAreSkipped() throws Exception {
+        ByteArrayOutputStream conn = new ByteArrayOutputStream();
+        writeBytes(conn, C_SERVER_NAME, "vpn.example.com".getBytes(UTF_8));
+        writeUnknownFields(conn);
+        writeBytes(conn, C_SERVER_PORT, "443".getBytes(UTF_8));
+
+        ByteArrayOutputStream list = new ByteArrayOutputStream();
+        writeVarLong(list, 1);
+        writeVarLong(list, conn.size());
+        list.write(conn.toByteArray(), 0, conn.size());
+
+        ByteArrayOutputStream out = header(1);
+        writeBytes(out, P_CONNECTIONS, list.toByteArray());
+        // A known field with an unexpected wire type keeps its default
+        writeVarLong(out, P_NAME << 3 | WIRE_VARINT);
+        writeVarLong(out, 5);
+        writeVarLong(out, 0 << 3 | WIRE_NULL);
+
+        VpnProfile vp = ProfileCodec.decode(out.toByteArray());
+        assertEquals(1, vp.mConnections.length);
+        assertEquals("vpn.example.com", vp.mConnections[0].mServerName);
+        assertEquals("443", vp.mConnections[0].mServerPort);
+        assertEquals(new Connection().mProxyName, vp.mConnections[0].mProxyName);
+        assertNull(vp.mName);
+        // Fields missing from the file keep the defaults of a new profile
+        assertEquals(new VpnProfile(null).mDNS1, vp.mDNS1);
+    }
+
+    @Test
+    public void unknownWireTypeIsRejected() throws Exception {
+        ByteArrayOutputStream out = header(1);
+        writeVarLong(out, 200 << 3 | 5);
+        writeVarLong(out, 0 << 3 | WIRE_NULL);
+        try {
+            ProfileCodec.decode(out.toByteArray());
+            fail("unknown wire type accepted");
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Test
+    public void truncatedInputIsRejected() throws Exception {
+        VpnProfile vp = fill(new VpnProfile("profile"));
+        vp.mAllowedAppsVpn = new HashSet<>(Arrays.asList("com.example.a", "com.example.b"));
+        byte[] data = ProfileCodec.encode(vp);
+        for (int length = 0; length < data.length; length++) {
+            byte[] truncated = Arrays.copyOf(data, length);
+            try {
+                ProfileCodec.decode(truncated);
+                fail("profile cut off after " + length + " of " + data.length + " bytes accepted");
+            } catch (IOException ignored) {
+            }
+            try {
+                ProfileCodec.decodeSummary(truncated);
+                fail("summary cut off after " + length + " of " + data.length + " bytes accepted");
+            } catch (IOException ignored) {
+            }
+        }
+
+        // Length of the allowed apps list larger than the rest of the file
+        ByteArrayOutputStream out = header(1);
+        writeVarLong(out, P_ALLOWED_APPS_VPN << 3 | WIRE_BYTES);
+        writeVarLong(out, 1000);
+        writeVarLong(out, 2);
+        try {
+            ProfileCodec.decode(out.toByteArray());
+            fail("list longer than the file accepted");
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Test
+    public void newerFormatIsRejected() throws Exception {
+        ByteArrayOutputStream out = header(2);
+        writeVarLong(out, 0 << 3 | WIRE_NULL);
+        byte[] data = out.toByteArray();
+        assertTrue(ProfileCodec.isEncoded(data));
+        try {
+            ProfileCodec.decode(data);
+            fail("format version 2 accepted");
+        } catch (IOException ignored) {
+        }
+        try {
+            ProfileCodec.decodeSummary(data);
+            fail("format version 2 accepted by decodeSummary");
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Test
+    public void serializedProfilesAreNotEncoded() throws Exception {
+        byte[] serialized = serialize(new VpnProfile("old"));
+        assertFalse(ProfileCodec.isEncoded(serialized));
+        assertFalse(ProfileCodec.isEncoded(new byte[]{'V', 'P'}));
+        try {
+            ProfileCodec.decode(serialized);
+            fail("serialized profile accepted");
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Test
+    public void corruptInputOnlyThrowsIOException() throws Exception {
+        byte[] data = ProfileCodec.encode(fill(new VpnProfile("profile")));
+        for (int i = 0; i < 3000; i++) {
+            byte[] corrupt = data.clone();
+            for (int flips = 1 + mRandom.nextInt(3); flips > 0; flips--)
+                corrupt[5 + mRandom.nextInt(corrupt.length - 5)] = (byte) mRandom.nextInt(256);
+            try {
+                ProfileCodec.decode(corrupt);
+            } catch (IOException ignored) {
+            }
+            try {
+                ProfileCodec.decodeSummary(corrupt);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Test
+    public void summaryMatchesDecode() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            VpnProfile vp = fill(new VpnProfile("profile"));
+            if (i % 4 == 1)
+                vp.mName = null;
+            if (i % 4 == 2)
+                vp.setUUID(null);
+            assertSummaryMatches(ProfileCodec.encode(vp));
+        }
+        assertSummaryMatches(ProfileCodec.encode(new VpnProfile(null)));
+    }
+
+    private static byte[] serialize(VpnProfile vp) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(vp);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static String inlineBlob(int size, char c) {
+        char[] chars = new char[size];
+        Arrays.fill(chars, c);
+        return VpnProfile.INLINE_TAG + new String(chars);
+    }
+
+    /**
+     * Loads 50 profiles with three 5 kB inline blobs each, like at the start of the service,
+     * and compares the best time of several rounds with ObjectInputStream
+     */
+    @Test
+    public void loadFiftyProfiles() throws Exception {
+        List<byte[]> encoded = new ArrayList<>();
+        List<byte[]> serialized = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            VpnProfile vp = new VpnProfile("profile " + i);
+            vp.mCaFilename = inlineBlob(5000, 'c');
+            vp.mClientCertFilename = inlineBlob(5000, 'z');
+            vp.mClientKeyFilename = inlineBlob(5000, 'k');
+            encoded.add(ProfileCodec.encode(vp));
+            serialized.add(serialize(vp));
+        }
+
+        long bestCodec = Long.MAX_VALUE;
+        long bestSummary = Long.MAX_VALUE;
+        long bestSerialization = Long.MAX_VALUE;
+        for (int round = 0; round < 30; round++) {
+            long start = System.nanoTime();
+            for (byte[] data : encoded)
+                assertNotNull(ProfileCodec.decode(data).getUUID());
+            bestCodec = Math.min(bestCodec, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (byte[] data : encoded)
+                assertNotNull(ProfileCodec.decodeSummary(data).uuid);
+            bestSummary = Math.min(bestSummary, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (byte[] data : serialized) {
+                ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+                assertNotNull(((VpnProfile) in.readObject()).getUUID());
+                in.close();
+            }
+            bestSerialization = Math.min(bestSerialization, System.nanoTime() - start);
+        }
+
+        String times = String.format("decode %d us, summary %d us, ObjectInputStream %d us",
+                bestCodec / 1000, bestSummary / 1000, bestSerialization / 1000);
+        assertTrue(times, bestCodec < bestSerialization);
+        assertTrue(times, bestSummary < bestCodec);
+    }
+}
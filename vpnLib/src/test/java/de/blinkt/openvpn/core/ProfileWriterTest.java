@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Queues writes on a {@link ProfileWriter} while its thread is held in an onWritten callback.
+ */
+public class ProfileWriterTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Keeps the writer thread in the onWritten callback of a write until released
+     */
+    private static class BlockingCallback implements Runnable {
+        final CountDownLatch mEntered = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+
+        @Override
+        public void run() {
+            mEntered.countDown();
+            try {
+                mRelease.await();
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        void awaitEntered() throws InterruptedException {
+            assertTrue("writer thread did not write", mEntered.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private static class CountingCallback implements Runnable {
+        final AtomicInteger mCalls = new AtomicInteger();
+
+        @Override
+        public void run() {
+            mCalls.incrementAndGet();
+        }
+    }
+
+    /**
+     * Calls flush on another thread, the result is known once the thread has ended
+     */
+    private static class FlushThread extends Thread {
+        private final ProfileWriter mWriter;
+        private final long mTimeoutMillis;
+        final AtomicBoolean mResult = new AtomicBoolean();
+
+        FlushThread(ProfileWriter writer, long timeoutMillis) {
+            mWriter = writer;
+            mTimeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public void run() {
+            mResult.set(mWriter.flush(mTimeoutMillis));
+        }
+
+        /**
+         * Starts the thread and returns once it waits in flush
+         */
+        FlushThread startWaiting() throws InterruptedException {
+            start();
+            while (getState() != State.TIMED_WAITING && isAlive())
+                Thread.sleep(1);
+            return this;
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(UTF_8);
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), UTF_8);
+    }
+
+    @Test
+    public void writesFiles() throws Exception {
+        ProfileWriter writer = new ProfileWriter();
+        File file = new File(mFolder.getRoot(), "a.vp");
+        CountingCallback callback = new CountingCallback();
+        writer.write(file, bytes("profile"), callback);
+        assertTrue(writer.flush(5000));
+
+        assertEquals("profile", read(file));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        assertEquals(1, callback.mCalls.get());
+        assertEquals(1, writer.getWriteCount());
+        assertFalse(writer.hasPendingWrite(file));
+
+        // Replaces the old content
+        writer.write(file, bytes("new"), null);
+        assertTrue(writer.flush(5000));
+        assertEquals("new", read(file));
+    }
+
+    @Test
+    public void queuedWritesAreCoalesced() throws Exception {
+        ProfileWriter writer = new ProfileWriter();
+        File blocked = new File(mFolder.getRoot(), "blocked.vp");
+        File file = new File(mFolder.getRoot(), "b.vp");
+        BlockingCallback block = new BlockingCallback();
+        writer.write(blocked, bytes("blocked"), block);
+        block.awaitEntered();
+
+        CountingCallback[] callbacks = new CountingCallback[3];
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i] = new CountingCallback();
+            writer.write(file, bytes("version " + i), callbacks[i]);
+        }
+        assertEquals(2, writer.getCoalescedCount());
+        assertTrue(writer.hasPendingWrite(file));
+
+        block.mRelease.countDown();
+        assertTrue(writer.flush(5000));
+        assertEquals("version 2", read(file));
+        assertEquals(0, callbacks[0].mCalls.get());
+        assertEquals(0, callbacks[1].mCalls.get());
+        assertEquals(1, callbacks[2].mCalls.get());
+        assertEquals(2, writer.getWriteCount());
+    }
+
+    @Test
+    public void flushWaitsOnlyForEarlierWrites() throws Exception {
+        ProfileWriter writer = new ProfileWriter();
+        File first = new File(mFolder.getRoot(), "first.vp");
+        File second = new File(mFolder.getRoot(), "second.vp");
+        BlockingCallback firstBlock = new BlockingCallback();
+        writer.write(first, bytes("first"), firstBlock);
+        firstBlock.awaitEntered();
+
+        // The write is on disk, but not done before the callback returned
+        assertFalse(writer.flush(50));
+        assertTrue(writer.hasPendingWrite(first));
+
+        FlushThread flush = new FlushThread(writer, 5000).startWaiting();
+        BlockingCallback secondBlock = new BlockingCallback();
+        writer.write(second, bytes("second"), secondBlock);
+
+        // The flush returns while the later write is still in progress
+        firstBlock.mRelease.countDown();
+        flush.join(5000);
+        assertFalse(flush.isAlive());
+        assertTrue(flush.mResult.get());
+        secondBlock.awaitEntered();
+        assertTrue(writer.hasPendingWrite(second));
+
+        secondBlock.mRelease.countDown();
+        assertTrue(writer.flush(5000));
+        assertEquals("first", read(first));
+        assertEquals("second", read(second));
+    }
+
+    @Test
+    public void cancelWakesUpFlush() throws Exception {
+        // A writer thread that never writes, queued writes stay queued
+        ProfileWriter writer = new ProfileWriter() {
+            @Override
+            public void run() {
+            }
+        };
+        File file = new File(mFolder.getRoot(), "cancelled.vp");
+        writer.write(file, bytes("cancelled"), null);
+        assertTrue(writer.hasPendingWrite(file));
+
+        long start = System.nanoTime();
+        FlushThread flush = new FlushThread(writer, 10000).startWaiting();
+        writer.cancel(file);
+        flush.join(5000);
+        assertFalse(flush.isAlive());
+        assertTrue(flush.mResult.get());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+
+        assertFalse(writer.hasPendingWrite(file));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void cancelDropsQueuedWrite() throws Exception {
+        ProfileWriter writer = new ProfileWriter();
+        File blocked = new File(mFolder.getRoot(), "blocked.vp");
+        File file = new File(mFolder.getRoot(), "c.vp");
+        BlockingCallback block = new BlockingCallback();
+        writer.write(blocked, bytes("blocked"), block);
+        block.awaitEntered();
+
+        CountingCallback callback = new CountingCallback();
+        writer.write(file, bytes("dropped"), callback);
+        writer.cancel(file);
+        assertFalse(writer.hasPendingWrite(file));
+
+        block.mRelease.countDown();
+        assertTrue(writer.flush(5000));
+        assertFalse(file.exists());
+        assertEquals(0, callback.mCalls.get());
+        assertEquals(1, writer.getWriteCount());
+    }
+
+    @Test
+    public void cancelWaitsForWriteInProgress() throws Exception {
+        final ProfileWriter writer = new ProfileWriter();
+        final File file = new File(mFolder.getRoot(), "d.vp");
+        BlockingCallback block = new BlockingCallback();
+        writer.write(file, bytes("in progress"), block);
+        block.awaitEntered();
+
+        Thread cancel = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writer.cancel(file);
+            }
+        });
+        cancel.start();
+        cancel.join(100);
+        assertTrue(cancel.isAlive());
+
+        block.mRelease.countDown();
+        cancel.join(5000);
+        assertFalse(cancel.isAlive());
+        assertFalse(writer.hasPendingWrite(file));
+        assertEquals("in progress", read(file));
+    }
+}
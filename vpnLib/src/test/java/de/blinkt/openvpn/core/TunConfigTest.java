@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares tun configurations as they look before and after a push-reply.
+ */
+public class TunConfigTest {
+
+    private static final List<String> DNS = Arrays.asList("10.8.0.1", "8.8.8.8");
+
+    private static NetworkSpace v4Routes(String... routes) {
+        NetworkSpace space = new NetworkSpace();
+        for (String route : routes) {
+            boolean include = !route.startsWith("!");
+            String[] parts = route.replace("!", "").split("/");
+            space.addIP(new CIDRIP(parts[0], Integer.parseInt(parts[1])), include);
+        }
+        return space;
+    }
+
+    private static NetworkSpace v6Routes(String... routes) throws Exception {
+        NetworkSpace space = new NetworkSpace();
+        for (String route : routes) {
+            String[] parts = route.split("/");
+            space.addIPv6((Inet6Address) InetAddress.getByName(parts[0]), Integer.parseInt(parts[1]), true);
+        }
+        return space;
+    }
+
+    private static TunConfig config(NetworkSpace routes, List<String> dns) throws Exception {
+        return new TunConfig(new CIDRIP("10.8.0.6", 24), "fd00::6/64", routes, v6Routes("2000::/3"),
+                dns, "vpn.example", 1500, null, false);
+    }
+
+    @Test
+    public void firstConfigChangesEverything() throws Exception {
+        TunConfig cfg = config(v4Routes("10.0.0.0/8"), DNS);
+        assertEquals(EnumSet.allOf(TunConfig.Change.class), cfg.diff(null));
+        assertEquals("no previous configuration", cfg.describeChanges(null, cfg.diff(null)));
+    }
+
+    @Test
+    public void noopPushReply() throws Exception {
+        TunConfig old = config(v4Routes("10.0.0.0/8", "192.168.0.0/16"), DNS);
+        TunConfig same = config(v4Routes("192.168.0.0/16", "10.0.0.0/8"), DNS);
+        assertTrue(same.diff(old).isEmpty());
+        assertEquals("", same.describeChanges(old, same.diff(old)));
+    }
+
+    @Test
+    public void equivalentRoutesAreNoChange() throws Exception {
+        TunConfig old = config(v4Routes("10.0.0.0/8"), DNS);
+        // Two halves and an include that is already covered route the same addresses
+        TunConfig split = config(v4Routes("10.0.0.0/9", "10.128.0.0/9", "10.1.0.0/16"), DNS);
+        assertTrue(split.diff(old).isEmpty());
+
+        // An exclude of addresses that are not routed anyway
+        TunConfig excluded = config(v4Routes("10.0.0.0/8", "!192.168.0.0/16"), DNS);
+        assertTrue(excluded.diff(old).isEmpty());
+    }
+
+    @Test
+    public void routeOnlyPushReply() throws Exception {
+        TunConfig old = config(v4Routes("10.0.0.0/8"), DNS);
+        TunConfig added = config(v4Routes("10.0.0.0/8", "172.16.0.0/12"), DNS);
+        EnumSet<TunConfig.Change> changes = added.diff(old);
+        assertEquals(EnumSet.of(TunConfig.Change.ROUTES), changes);
+        assertEquals("routes: +172.16.0.0/12", added.describeChanges(old, changes));
+
+        TunConfig excluded = config(v4Routes("10.0.0.0/8", "!10.1.0.0/16"), DNS);
+        changes = excluded.diff(old);
+        assertEquals(EnumSet.of(TunConfig.Change.ROUTES), changes);
+        assertEquals("routes: +10.0.0.0/16 +10.128.0.0/9 +10.16.0.0/12 +10.2.0.0/15 +10.32.0.0/11 +10.4.0.0/14 "
+                + "+10.64.0.0/10 +10.8.0.0/13 -10.0.0.0/8", excluded.describeChanges(old, changes));
+
+        TunConfig v6Added = new TunConfig(new CIDRIP("10.8.0.6", 24), "fd00::6/64", v4Routes("10.0.0.0/8"),
+                v6Routes("2000::/3", "fd00::/8"), DNS, "vpn.example", 1500, null, false);
+        changes = v6Added.diff(old);
+        assertEquals(EnumSet.of(TunConfig.Change.ROUTES), changes);
+        assertFalse(v6Added.describeChanges(old, changes), v6Added.describeChanges(old, changes).endsWith(" "));
+        assertTrue(v6Added.describeChanges(old, changes), v6Added.describeChanges(old, changes).startsWith("routes: +fd00:"));
+    }
+
+    @Test
+    public void dnsOnlyPushReply() throws Exception {
+        TunConfig old = config(v4Routes("10.0.0.0/8"), DNS);
+        TunConfig changed = config(v4Routes("10.0.0.0/8"), Arrays.asList("10.8.0.1", "1.1.1.1"));
+        EnumSet<TunConfig.Change> changes = changed.diff(old);
+        assertEquals(EnumSet.of(TunConfig.Change.DNS), changes);
+        assertEquals("dns: 10.8.0.1|8.8.8.8 -> 10.8.0.1|1.1.1.1", changed.describeChanges(old, changes));
+
+        // The order of DNS servers is significant
+        TunConfig reordered = config(v4Routes("10.0.0.0/8"), Arrays.asList("8.8.8.8", "10.8.0.1"));
+        assertEquals(EnumSet.of(TunConfig.Change.DNS), reordered.diff(old));
+
+        TunConfig empty = config(v4Routes("10.0.0.0/8"), Collections.<String>emptyList());
+        assertEquals("dns: 10.8.0.1|8.8.8.8 -> ", empty.describeChanges(old, empty.diff(old)));
+    }
+
+    @Test
+    public void multipleChanges() throws Exception {
+        TunConfig old = config(v4Routes("10.0.0.0/8"), DNS);
+        TunConfig changed = new TunConfig(new CIDRIP("10.8.0.6", 24), "fd00::6/64", v4Routes("10.0.0.0/8"),
+                v6Routes("2000::/3"), DNS, "vpn.example", 1400,
+                Arrays.asList("com.example.b", "com.example.a"), true);
+        EnumSet<TunConfig.Change> changes = changed.diff(old);
+        assertEquals(EnumSet.of(TunConfig.Change.MTU, TunConfig.Change.ALLOWED_APPS), changes);
+        assertEquals("mtu: 1500 -> 1400, apps: allowed [] -> disallowed [com.example.a|com.example.b]",
+                changed.describeChanges(old, changes));
+
+        TunConfig moreApps = new TunConfig(new CIDRIP("10.8.0.6", 24), "fd00::6/64", v4Routes("10.0.0.0/8"),
+                v6Routes("2000::/3"), DNS, "vpn.example", 1400,
+                Arrays.asList("com.example.a", "com.example.b", "com.example.c"), true);
+        assertEquals("apps: disallowed [com.example.a|com.example.b] -> disallowed [com.example.a|com.example.b|com.example.c]",
+                moreApps.describeChanges(changed, moreApps.diff(changed)));
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.blinkt.openvpn.utils.TrafficDatabase.Resolution;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records traffic, reopens the database file like after a restart and compares what is loaded.
+ */
+public class TrafficDatabaseTest {
+
+    private static final long MINUTE = 60 * 1000L;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+    // Size of a bucket record in the file
+    private static final int BUCKET_RECORD = 1 + 4 + 8 + 8 + 8;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static List<String> buckets(TrafficDatabase db, Resolution res, long from, long to) {
+        List<String> buckets = new ArrayList<>();
+        for (TrafficDatabase.Bucket b : db.query(res, null, null, from, to))
+            buckets.add(b.getProfileUUID() + " " + b.getServer() + " " + b.getStart() + " " + b.getIn() + "/" + b.getOut());
+        return buckets;
+    }
+
+    private static List<String> allBuckets(TrafficDatabase db, Resolution res) {
+        return buckets(db, res, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    private static void assertSameBuckets(TrafficDatabase expected, TrafficDatabase actual) {
+        for (Resolution res : Resolution.values())
+            assertEquals(res.toString(), allBuckets(expected, res), allBuckets(actual, res));
+    }
+
+    private File dbFile() {
+        return new File(mFolder.getRoot(), TrafficDatabase.FILE_NAME);
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        File file = dbFile();
+        TrafficDatabase db = new TrafficDatabase(file);
+        long start = Resolution.DAY.bucketStart(System.currentTimeMillis()) - DAY;
+        db.record("profile-a", "vpn1.example", 100, 10, start + 5 * MINUTE);
+        db.record("profile-a", "vpn1.example", 200, 20, start + 5 * MINUTE + 30000);
+        db.record("profile-a", "vpn2.example", 300, 30, start + 2 * HOUR);
+        db.record("profile-b", null, 400, 40, start + DAY + MINUTE);
+        // Ignored
+        db.record("profile-b", null, 0, 0, start + DAY + 2 * MINUTE);
+        db.flush();
+
+        // The same minute again, written as a second record
+        db.record("profile-b", null, 1, 2, start + DAY + MINUTE + 1000);
+        db.flush();
+
+        TrafficDatabase loaded = new TrafficDatabase(file);
+        assertSameBuckets(db, loaded);
+        assertEquals(Arrays.asList("profile-a vpn1.example " + (start + 5 * MINUTE) + " 300/30",
+                "profile-a vpn2.example " + (start + 2 * HOUR) + " 300/30",
+                "profile-b  " + (start + DAY + MINUTE) + " 401/42"), allBuckets(loaded, Resolution.MINUTE));
+        assertEquals(Arrays.asList("profile-a vpn1.example " + start + " 300/30",
+                "profile-a vpn2.example " + start + " 300/30",
+                "profile-b  " + (start + DAY) + " 401/42"), allBuckets(loaded, Resolution.DAY));
+        assertArrayEquals(new long[]{600, 60}, loaded.getTotal(Resolution.DAY, "profile-a", null, Long.MIN_VALUE, Long.MAX_VALUE));
+        assertArrayEquals(new long[]{300, 30}, loaded.getTotal(Resolution.HOUR, null, "vpn2.example", start, start + DAY));
+        assertEquals(Arrays.asList("vpn1.example", "vpn2.example"), loaded.getServers("profile-a"));
+
+        // Keeps appending to the loaded file
+        loaded.record("profile-c", "vpn3.example", 5, 6, start + DAY + HOUR);
+        loaded.flush();
+        assertSameBuckets(loaded, new TrafficDatabase(file));
+    }
+
+    @Test
+    public void unflushedMinuteIsWrittenOnNextMinute() throws Exception {
+        File file = dbFile();
+        TrafficDatabase db = new TrafficDatabase(file);
+        long start = Resolution.HOUR.bucketStart(System.currentTimeMillis()) - HOUR;
+        db.record("profile", "server", 10, 1, start);
+        db.record("profile", "server", 10, 1, start + 1000);
+        // Not written yet
+        assertEquals(0, allBuckets(new TrafficDatabase(file), Resolution.MINUTE).size());
+
+        db.record("profile", "server", 5, 5, start + MINUTE);
+        assertEquals(Arrays.asList("profile server " + start + " 20/2"),
+                allBuckets(new TrafficDatabase(file), Resolution.MINUTE));
+    }
+
+    @Test
+    public void compactionKeepsTraffic() throws Exception {
+        File file = dbFile();
+        TrafficDatabase db = new TrafficDatabase(file);
+        // More than the compaction threshold of 512 kB, ending now
+        int minutes = 20000;
+        long end = Resolution.MINUTE.bucketStart(System.currentTimeMillis());
+        for (int i = minutes; i >= 0; i--) {
+            long time = end - i * MINUTE;
+            db.record("profile", i % 3 == 0 ? "a.example" : "b.example", 1000 + i, i, time);
+        }
+        db.flush();
+        long uncompacted = file.length();
+        assertTrue(uncompacted > 512 * 1024);
+
+        TrafficDatabase compacting = new TrafficDatabase(file);
+        assertSameBuckets(db, compacting);
+        assertTrue(file.length() < uncompacted / 4);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        // Minutes older than two days are only kept as hours in the compacted file
+        TrafficDatabase compacted = new TrafficDatabase(file);
+        assertEquals(allBuckets(db, Resolution.DAY), allBuckets(compacted, Resolution.DAY));
+        assertEquals(allBuckets(db, Resolution.HOUR), allBuckets(compacted, Resolution.HOUR));
+        long recent = end - DAY;
+        assertEquals(buckets(db, Resolution.MINUTE, recent, Long.MAX_VALUE),
+                buckets(compacted, Resolution.MINUTE, recent, Long.MAX_VALUE));
+        assertTrue(allBuckets(compacted, Resolution.MINUTE).size() < allBuckets(db, Resolution.MINUTE).size());
+
+        long[] total = db.getTotal(Resolution.DAY, null, null, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertArrayEquals(total, compacted.getTotal(Resolution.DAY, null, null, Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void truncatedRecordIsDropped() throws Exception {
+        File file = dbFile();
+        TrafficDatabase db = new TrafficDatabase(file);
+        long start = Resolution.HOUR.bucketStart(System.currentTimeMillis()) - HOUR;
+        db.record("profile", "server", 10, 1, start);
+        db.record("profile", "server", 20, 2, start + MINUTE);
+        db.record("profile", "server", 30, 3, start + 2 * MINUTE);
+        db.flush();
+
+        long length = file.length();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(length - 5);
+        raf.close();
+
+        TrafficDatabase loaded = new TrafficDatabase(file);
+        assertEquals(Arrays.asList("profile server " + start + " 10/1", "profile server " + (start + MINUTE) + " 20/2"),
+                allBuckets(loaded, Resolution.MINUTE));
+        // The torn record is cut off so new records are readable again
+        assertEquals(length - BUCKET_RECORD, file.length());
+        loaded.record("profile", "server", 40, 4, start + 3 * MINUTE);
+        loaded.flush();
+        assertEquals(3, allBuckets(new TrafficDatabase(file), Resolution.MINUTE).size());
+    }
+
+    @Test
+    public void invalidRecordEndsFile() throws Exception {
+        File file = dbFile();
+        TrafficDatabase db = new TrafficDatabase(file);
+        long start = Resolution.HOUR.bucketStart(System.currentTimeMillis()) - HOUR;
+        db.record("profile", "server", 10, 1, start);
+        db.flush();
+        long length = file.length();
+
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true));
+        // Bucket of a key that does not exist
+        out.writeByte('M');
+        out.writeInt(7);
+        out.writeLong(start);
+        out.writeLong(1);
+        out.writeLong(1);
+        out.close();
+
+        TrafficDatabase loaded = new TrafficDatabase(file);
+        assertEquals(Arrays.asList("profile server " + start + " 10/1"), allBuckets(loaded, Resolution.MINUTE));
+        assertEquals(length, file.length());
+    }
+
+    @Test
+    public void unknownVersionStartsOver() throws Exception {
+        File file = dbFile();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(2);
+        out.writeByte('K');
+        out.writeInt(0);
+        out.writeUTF("profile");
+        out.writeUTF("server");
+        out.close();
+
+        TrafficDatabase db = new TrafficDatabase(file);
+        assertTrue(db.getServers(null).isEmpty());
+        assertFalse(file.exists());
+
+        // A new file is written in the current version
+        long start = Resolution.HOUR.bucketStart(System.currentTimeMillis()) - HOUR;
+        db.record("profile", "server", 10, 1, start);
+        db.flush();
+        assertEquals(Arrays.asList("profile server " + start + " 10/1"),
+                allBuckets(new TrafficDatabase(file), Resolution.MINUTE));
+    }
+
+    @Test
+    public void fileShorterThanHeader() throws Exception {
+        File file = dbFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[]{0, 0});
+        out.close();
+
+        TrafficDatabase db = new TrafficDatabase(file);
+        assertTrue(db.getServers(null).isEmpty());
+        assertEquals(0, file.length());
+
+        long start = Resolution.HOUR.bucketStart(System.currentTimeMillis()) - HOUR;
+        db.record("profile", "server", 10, 1, start);
+        db.flush();
+        assertEquals(1, allBuckets(new TrafficDatabase(file), Resolution.MINUTE).size());
+    }
+}